@@ -3,7 +3,6 @@ package edu.berkeley.icsi.cdfs;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.URI;
 
 import org.apache.hadoop.conf.Configuration;
@@ -17,6 +16,7 @@ import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.ipc.RPC;
 import org.apache.hadoop.util.Progressable;
 
+import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.protocols.ClientNameNodeProtocol;
 import edu.berkeley.icsi.cdfs.statistics.AbstractUserStatistics;
 import edu.berkeley.icsi.cdfs.utils.HostUtils;
@@ -63,14 +63,19 @@ public class CDFS extends FileSystem {
 			throw new IOException("File " + f + " does already exist");
 		}
 
-		final Socket socket = new Socket();
-		socket.connect(this.dataNodeAddress);
+		final DataNodeConnection connection = ConnectionPool.get().acquire(this.dataNodeAddress);
 
 		// Send header
-		final Header header = new Header(ConnectionMode.WRITE, f, 0L);
-		header.toOutputStream(socket.getOutputStream());
+		final Header header = new Header(ConnectionMode.WRITE, f, 0L, -1L, getConf().get(
+			ConfigConstants.COMPRESSION_CODEC_KEY, ""));
+		try {
+			connection.startStream(header);
+		} catch (IOException ioe) {
+			connection.close();
+			throw ioe;
+		}
 
-		return new CDFSDataOutputStream(socket);
+		return new CDFSDataOutputStream(connection);
 	}
 
 	@Override
@@ -173,10 +178,8 @@ public class CDFS extends FileSystem {
 	@Override
 	public FSDataInputStream open(final Path arg0, int arg1) throws IOException {
 
-		final Socket socket = new Socket();
-		socket.connect(this.dataNodeAddress);
-
-		return new CDFSDataInputStream(socket, arg0);
+		// The stream connects to the data node on the first read, but needs the file length to skip correctly
+		return new CDFSDataInputStream(this.dataNodeAddress, arg0, getFileStatus(arg0).getLen());
 	}
 
 	@Override
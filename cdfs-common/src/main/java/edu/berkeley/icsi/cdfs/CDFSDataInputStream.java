@@ -1,14 +1,15 @@
 package edu.berkeley.icsi.cdfs;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.Path;
 
 final class CDFSDataInputStream extends FSDataInputStream {
 
-	CDFSDataInputStream(final Socket socket, final Path path) throws IOException {
-		super(new SharedMemoryInputStream(socket, path));
+	CDFSDataInputStream(final InetSocketAddress dataNodeAddress, final Path path, final long fileLength)
+			throws IOException {
+		super(new SharedMemoryInputStream(dataNodeAddress, path, fileLength));
 	}
 }
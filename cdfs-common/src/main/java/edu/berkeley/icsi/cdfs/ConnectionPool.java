@@ -0,0 +1,80 @@
+package edu.berkeley.icsi.cdfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps the connections of this JVM to the data nodes open between streams. A connection is only returned to the
+ * pool if its stream has ended cleanly, connections abandoned in the middle of a stream are closed.
+ */
+final class ConnectionPool {
+
+	/**
+	 * The maximum number of idle connections kept per data node
+	 */
+	private static final int MAXIMUM_NUMBER_OF_IDLE_CONNECTIONS = 8;
+
+	private static final ConnectionPool INSTANCE = new ConnectionPool();
+
+	private final Map<InetSocketAddress, LinkedList<DataNodeConnection>> idleConnections;
+
+	private ConnectionPool() {
+
+		this.idleConnections = new HashMap<InetSocketAddress, LinkedList<DataNodeConnection>>();
+	}
+
+	static ConnectionPool get() {
+
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns an idle connection to the given data node or opens a new one.
+	 */
+	DataNodeConnection acquire(final InetSocketAddress address) throws IOException {
+
+		while (true) {
+
+			final DataNodeConnection connection;
+			synchronized (this.idleConnections) {
+				final LinkedList<DataNodeConnection> idle = this.idleConnections.get(address);
+				if (idle == null || idle.isEmpty()) {
+					break;
+				}
+				connection = idle.removeLast();
+			}
+
+			if (!connection.isStale()) {
+				return connection;
+			}
+			connection.close();
+		}
+
+		return new DataNodeConnection(address);
+	}
+
+	/**
+	 * Completes the connection's current stream and keeps the connection for the next one if possible.
+	 */
+	void release(final DataNodeConnection connection) {
+
+		if (connection.finishStream()) {
+			synchronized (this.idleConnections) {
+				LinkedList<DataNodeConnection> idle = this.idleConnections.get(connection.getAddress());
+				if (idle == null) {
+					idle = new LinkedList<DataNodeConnection>();
+					this.idleConnections.put(connection.getAddress(), idle);
+				}
+				if (idle.size() < MAXIMUM_NUMBER_OF_IDLE_CONNECTIONS) {
+					idle.addLast(connection);
+					return;
+				}
+			}
+		}
+
+		connection.close();
+	}
+}
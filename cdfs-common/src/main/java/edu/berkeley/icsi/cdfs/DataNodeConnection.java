@@ -0,0 +1,140 @@
+package edu.berkeley.icsi.cdfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import edu.berkeley.icsi.cdfs.sharedmem.AbstractSharedMemoryComponent;
+import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryConsumer;
+import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryProducer;
+
+/**
+ * A connection to a data node which carries one stream at a time. The shared memory rings for both directions are
+ * kept along with the connection, so consecutive streams do not have to set them up again.
+ */
+final class DataNodeConnection implements Closeable {
+
+	private final InetSocketAddress address;
+
+	private final Socket socket;
+
+	/**
+	 * The ring the data node writes to when the client reads
+	 */
+	private final SharedMemoryConsumer consumer;
+
+	/**
+	 * The ring the client writes to
+	 */
+	private final SharedMemoryProducer producer;
+
+	private ConnectionMode mode = null;
+
+	DataNodeConnection(final InetSocketAddress address) throws IOException {
+
+		this.address = address;
+		this.socket = new Socket();
+		try {
+			this.socket.connect(address);
+			this.consumer = new SharedMemoryConsumer(this.socket);
+			this.producer = new SharedMemoryProducer(this.socket);
+		} catch (IOException ioe) {
+			this.socket.close();
+			throw ioe;
+		}
+	}
+
+	InetSocketAddress getAddress() {
+
+		return this.address;
+	}
+
+	SharedMemoryConsumer getConsumer() {
+
+		return this.consumer;
+	}
+
+	SharedMemoryProducer getProducer() {
+
+		return this.producer;
+	}
+
+	/**
+	 * Starts a new stream by sending its header to the data node.
+	 */
+	void startStream(final Header header) throws IOException {
+
+		this.mode = header.getConnectionMode();
+		header.toOutputStream(this.socket.getOutputStream());
+	}
+
+	/**
+	 * Completes the current stream.
+	 *
+	 * @return <code>true</code> if the stream has ended cleanly and the connection can carry the next one,
+	 *         <code>false</code> if the connection must be closed
+	 */
+	boolean finishStream() {
+
+		final AbstractSharedMemoryComponent component;
+		if (this.mode == ConnectionMode.READ) {
+			// Unless the data node has ended the stream, it may still be sending
+			if (!this.consumer.isEndOfStream()) {
+				return false;
+			}
+			component = this.consumer;
+		} else {
+			if (!this.producer.isEndOfStream()) {
+				return false;
+			}
+			component = this.producer;
+		}
+
+		try {
+			component.finishStream();
+		} catch (IOException ioe) {
+			return false;
+		}
+
+		this.mode = null;
+
+		return true;
+	}
+
+	/**
+	 * Checks if the data node has closed the idle connection in the meantime.
+	 */
+	boolean isStale() {
+
+		try {
+			final int timeout = this.socket.getSoTimeout();
+			this.socket.setSoTimeout(1);
+			try {
+				// An idle connection carries no data, so anything but a timeout means it is no longer usable
+				this.socket.getInputStream().read();
+				return true;
+			} finally {
+				this.socket.setSoTimeout(timeout);
+			}
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() {
+
+		try {
+			this.consumer.close();
+			this.producer.close();
+		} catch (IOException e) {
+		}
+	}
+}
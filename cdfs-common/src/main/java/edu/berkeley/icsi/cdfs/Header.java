@@ -1,7 +1,6 @@
 package edu.berkeley.icsi.cdfs;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.apache.hadoop.fs.Path;
@@ -16,11 +15,28 @@ public final class Header {
 
 	private final long pos;
 
+	/**
+	 * The number of bytes to read, <code>-1</code> to read until the end of the file
+	 */
+	private final long length;
+
+	/**
+	 * The codec to compress a written file with, empty to use the data node's default
+	 */
+	private final String codec;
+
 	public Header(final ConnectionMode connectionMode, final Path path, final long pos) {
+		this(connectionMode, path, pos, -1L, "");
+	}
+
+	public Header(final ConnectionMode connectionMode, final Path path, final long pos, final long length,
+			final String codec) {
 
 		this.connectionMode = connectionMode;
 		this.path = path;
 		this.pos = pos;
+		this.length = length;
+		this.codec = (codec == null) ? "" : codec;
 	}
 
 	public void toOutputStream(final OutputStream outputStream) throws IOException {
@@ -33,38 +49,15 @@ public final class Header {
 		outputStream.write(path);
 		NumberUtils.longToByteArray(this.pos, tmp, 0);
 		outputStream.write(tmp);
+		NumberUtils.longToByteArray(this.length, tmp, 0);
+		outputStream.write(tmp);
+		final byte[] codec = this.codec.getBytes();
+		NumberUtils.integerToByteArray(codec.length, tmp, 0);
+		outputStream.write(tmp, 0, 4);
+		outputStream.write(codec);
 		outputStream.flush();
 	}
 
-	public static Header fromInputStream(final InputStream inputStream) throws IOException {
-
-		final byte[] tmp = new byte[512];
-		readFully(inputStream, tmp, 5);
-
-		final ConnectionMode mode = ConnectionMode.toConnectionMode(tmp[0]);
-		final int pathLength = NumberUtils.byteArrayToInteger(tmp, 1);
-		readFully(inputStream, tmp, pathLength + 8);
-		final Path p = new Path(new String(tmp, 0, pathLength));
-		final long pos = NumberUtils.byteArrayToLong(tmp, pathLength);
-
-		return new Header(mode, p, pos);
-	}
-
-	private static void readFully(final InputStream inputStream, final byte[] buf, final int len)
-			throws IOException {
-
-		int bytesRead = 0;
-		while (bytesRead < len) {
-
-			final int r = inputStream.read(buf, bytesRead, len - bytesRead);
-			if (r < 0) {
-				throw new IOException("Unexpected end of input stream");
-			}
-
-			bytesRead += r;
-		}
-	}
-
 	public ConnectionMode getConnectionMode() {
 
 		return this.connectionMode;
@@ -80,6 +73,16 @@ public final class Header {
 		return this.pos;
 	}
 
+	public long getLength() {
+
+		return this.length;
+	}
+
+	public String getCodec() {
+
+		return this.codec;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -96,6 +99,10 @@ public final class Header {
 		sb.append(this.path.toString());
 		sb.append(", ");
 		sb.append(this.pos);
+		if (this.length >= 0L) {
+			sb.append(", ");
+			sb.append(this.length);
+		}
 		sb.append(')');
 
 		return sb.toString();
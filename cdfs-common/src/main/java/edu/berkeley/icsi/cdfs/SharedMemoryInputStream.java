@@ -3,31 +3,46 @@ package edu.berkeley.icsi.cdfs;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.fs.Seekable;
 
+import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryConsumer;
 
 final class SharedMemoryInputStream extends InputStream implements Seekable, PositionedReadable {
 
+	/**
+	 * Forward seeks up to this distance read through the open connection instead of opening a new one
+	 */
+	private static final long MAXIMUM_SKIP_DISTANCE = ConfigConstants.BUFFER_SIZE;
+
+	private final InetSocketAddress dataNodeAddress;
+
 	private final Path path;
 
-	private final Socket socket;
+	private final long fileLength;
 
-	private long seek = 0L;
+	private long pos = 0L;
 
-	private boolean headerSent = false;
+	private DataNodeConnection connection = null;
 
 	private SharedMemoryConsumer smc = null;
 
-	SharedMemoryInputStream(final Socket socket, final Path path) throws IOException {
+	/**
+	 * Whether the stream has reached the end of the file since it has been opened or the last seek
+	 */
+	private boolean endOfFile = false;
+
+	SharedMemoryInputStream(final InetSocketAddress dataNodeAddress, final Path path, final long fileLength)
+			throws IOException {
 
-		this.socket = socket;
+		this.dataNodeAddress = dataNodeAddress;
 		this.path = path;
+		this.fileLength = fileLength;
 	}
 
 	/**
@@ -36,9 +51,41 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	@Override
 	public int read(final long position, final byte[] buffer, final int offset, final int length) throws IOException {
 
-		System.out.println("read 4");
+		if (position < 0L) {
+			throw new IOException("Cannot read from negative position " + position);
+		}
+
+		if (length == 0) {
+			return 0;
+		}
+
+		// The data node has nothing to send beyond the end of the file
+		if (position >= this.fileLength) {
+			return -1;
+		}
 
-		return 0;
+		// Positioned reads leave the stream untouched, so they use a connection of their own
+		final DataNodeConnection positionedConnection = connect(position, length);
+		final SharedMemoryConsumer positionedSmc = positionedConnection.getConsumer();
+		try {
+			int bytesRead = 0;
+			while (bytesRead < length) {
+				final int r = read(positionedSmc, buffer, offset + bytesRead, length - bytesRead);
+				if (r < 0) {
+					break;
+				}
+				bytesRead += r;
+			}
+
+			// The data node ends the stream after the requested range, receiving the end makes the connection reusable
+			if (bytesRead == length) {
+				read(positionedSmc, buffer, offset, 0);
+			}
+
+			return (bytesRead == 0) ? -1 : bytesRead;
+		} finally {
+			ConnectionPool.get().release(positionedConnection);
+		}
 	}
 
 	/**
@@ -48,7 +95,15 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	public void readFully(final long position, final byte[] buffer, final int offset, final int length)
 			throws IOException {
 
-		System.out.println("readFully");
+		if (length == 0) {
+			return;
+		}
+
+		final int bytesRead = read(position, buffer, offset, length);
+		if (bytesRead < length) {
+			throw new EOFException("Reached end of " + this.path + " after " + Math.max(bytesRead, 0) + " of "
+				+ length + " bytes at position " + position);
+		}
 	}
 
 	/**
@@ -66,12 +121,25 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	@Override
 	public void seek(final long pos) throws IOException {
 
-		if (this.headerSent) {
-			throw new IOException("Cannot seek, header already sent");
+		if (pos < 0L) {
+			throw new IOException("Cannot seek to negative position " + pos);
+		}
+
+		if (pos == this.pos) {
+			return;
 		}
 
-		System.out.println("Setting seek to " + pos);
-		this.seek = pos;
+		// Short forward seeks are cheaper to read through, the data is likely to be in shared memory already
+		if (this.smc != null && pos > this.pos && pos - this.pos <= MAXIMUM_SKIP_DISTANCE) {
+			if (skipBytes(pos - this.pos) == pos - this.pos) {
+				return;
+			}
+		}
+
+		// Otherwise the next read opens a new connection at the new position
+		disconnect();
+		this.pos = pos;
+		this.endOfFile = false;
 	}
 
 	/**
@@ -80,9 +148,7 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	@Override
 	public long getPos() throws IOException {
 
-		System.out.println("getPos");
-
-		return 0;
+		return this.pos;
 	}
 
 	/**
@@ -102,9 +168,10 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	@Override
 	public int read() throws IOException {
 
-		System.out.println("Read 1");
+		final byte[] b = new byte[1];
+		final int r = read(b, 0, 1);
 
-		return 0;
+		return (r < 0) ? -1 : (b[0] & 0xFF);
 	}
 
 	/**
@@ -122,21 +189,38 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	@Override
 	public int read(final byte b[], final int off, final int len) throws IOException {
 
-		// If this is the first read attempt, send header first
-		if (!this.headerSent) {
+		if (len == 0) {
+			return 0;
+		}
 
-			final Header header = new Header(ConnectionMode.READ, this.path, this.seek);
-			header.toOutputStream(this.socket.getOutputStream());
-			this.headerSent = true;
+		if (this.endOfFile || this.pos >= this.fileLength) {
+			return -1;
 		}
 
+		// If this is the first read attempt after opening or seeking, connect to the data node first
 		if (this.smc == null) {
-			this.smc = new SharedMemoryConsumer(this.socket);
+			this.connection = connect(this.pos, -1L);
+			this.smc = this.connection.getConsumer();
+		}
+
+		final int r = read(this.smc, b, off, len);
+		if (r > 0) {
+			this.pos += r;
+		} else if (r < 0) {
+			// The data node waits for the stream to be completed, so the connection is handed back right away
+			disconnect();
+			this.endOfFile = true;
 		}
 
+		return r;
+	}
+
+	private static int read(final SharedMemoryConsumer consumer, final byte b[], final int off, final int len)
+			throws IOException {
+
 		final ByteBuffer sharedMemBuf;
 		try {
-			sharedMemBuf = this.smc.lockSharedMemory();
+			sharedMemBuf = consumer.lockSharedMemory();
 		} catch (EOFException eof) {
 			return -1;
 		}
@@ -145,21 +229,75 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 		sharedMemBuf.get(b, off, dataToRead);
 
 		if (!sharedMemBuf.hasRemaining()) {
-			this.smc.unlockSharedMemory();
+			consumer.unlockSharedMemory();
 		}
 
 		return dataToRead;
 	}
 
+	/**
+	 * Requests the given number of bytes from the given position on from the data node.
+	 */
+	private DataNodeConnection connect(final long position, final long length) throws IOException {
+
+		final DataNodeConnection c = ConnectionPool.get().acquire(this.dataNodeAddress);
+		try {
+			c.startStream(new Header(ConnectionMode.READ, this.path, position, length, ""));
+		} catch (IOException ioe) {
+			c.close();
+			throw ioe;
+		}
+
+		return c;
+	}
+
+	private void disconnect() {
+
+		if (this.connection != null) {
+			// The connection is only kept if the stream has been read to its end
+			ConnectionPool.get().release(this.connection);
+			this.connection = null;
+			this.smc = null;
+		}
+	}
+
+	/**
+	 * Reads and drops up to the given number of bytes from the open connection.
+	 *
+	 * @return the number of bytes actually skipped
+	 */
+	private long skipBytes(final long n) throws IOException {
+
+		long skipped = 0L;
+		while (skipped < n) {
+
+			final ByteBuffer sharedMemBuf;
+			try {
+				sharedMemBuf = this.smc.lockSharedMemory();
+			} catch (EOFException eof) {
+				break;
+			}
+
+			final int toSkip = (int) Math.min(sharedMemBuf.remaining(), n - skipped);
+			sharedMemBuf.position(sharedMemBuf.position() + toSkip);
+			if (!sharedMemBuf.hasRemaining()) {
+				this.smc.unlockSharedMemory();
+			}
+			skipped += toSkip;
+		}
+
+		this.pos += skipped;
+
+		return skipped;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public int available() throws IOException {
 
-		System.out.println("Available");
-
-		return 0;
+		return (this.smc == null) ? 0 : this.smc.available();
 	}
 
 	/**
@@ -168,7 +306,7 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	@Override
 	public void close() throws IOException {
 
-		this.socket.close();
+		disconnect();
 	}
 
 	/**
@@ -206,8 +344,14 @@ final class SharedMemoryInputStream extends InputStream implements Seekable, Pos
 	@Override
 	public long skip(final long n) throws IOException {
 
-		System.out.println("Skip");
+		// Seeks are lazy, so the end of the file must be taken into account here
+		final long bytesToSkip = Math.min(n, this.fileLength - this.pos);
+		if (bytesToSkip <= 0L) {
+			return 0L;
+		}
+
+		seek(this.pos + bytesToSkip);
 
-		return 0;
+		return bytesToSkip;
 	}
 }
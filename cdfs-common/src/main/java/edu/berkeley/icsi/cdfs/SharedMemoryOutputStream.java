@@ -2,7 +2,6 @@ package edu.berkeley.icsi.cdfs;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
@@ -14,16 +13,19 @@ final class SharedMemoryOutputStream extends OutputStream {
 
 	private static final Log LOG = LogFactory.getLog(SharedMemoryOutputStream.class);
 
-	private final Socket socket;
+	private final DataNodeConnection connection;
 
-	private SharedMemoryProducer smp = null;
+	private final SharedMemoryProducer smp;
 
 	private ByteBuffer sharedMemoryBuffer = null;
 
 	private long totalWritten = 0L;
 
-	SharedMemoryOutputStream(final Socket socket) throws IOException {
-		this.socket = socket;
+	private boolean closed = false;
+
+	SharedMemoryOutputStream(final DataNodeConnection connection) throws IOException {
+		this.connection = connection;
+		this.smp = connection.getProducer();
 	}
 
 	@Override
@@ -35,22 +37,27 @@ final class SharedMemoryOutputStream extends OutputStream {
 	@Override
 	public void close() throws IOException {
 
-		if (this.sharedMemoryBuffer != null) {
-			if (this.sharedMemoryBuffer.position() != 0) {
-				this.totalWritten += this.sharedMemoryBuffer.position();
-				this.smp.unlockSharedMemory();
-			}
+		// Once released, the connection may already carry the stream of someone else
+		if (this.closed) {
+			return;
 		}
+		this.closed = true;
+
+		try {
+			if (this.sharedMemoryBuffer != null) {
+				if (this.sharedMemoryBuffer.position() != 0) {
+					this.totalWritten += this.sharedMemoryBuffer.position();
+					this.smp.unlockSharedMemory();
+				}
+				this.sharedMemoryBuffer = null;
+			}
 
-		if (this.smp == null) {
-			// No data has been written, but we lock/unlock the shared buffer once to establish communication anyway
-			this.smp = new SharedMemoryProducer(this.socket);
-			this.smp.lockSharedMemory();
-			this.smp.unlockSharedMemory();
+			// The data node completes the stream once it has stored the data
+			this.smp.endStream();
+		} finally {
+			ConnectionPool.get().release(this.connection);
 		}
 
-		this.smp.close();
-
 		LOG.info("Wrote " + this.totalWritten + " bytes to output stream");
 	}
 
@@ -69,10 +76,6 @@ final class SharedMemoryOutputStream extends OutputStream {
 	@Override
 	public void write(final byte[] b, final int off, final int len) throws IOException {
 
-		if (this.smp == null) {
-			this.smp = new SharedMemoryProducer(this.socket);
-		}
-
 		int written = 0;
 		while (written < len) {
 
@@ -10,6 +10,11 @@ public class ConfigConstants {
 	 */
 	public static final int BUFFER_SIZE = 2 * 1024 * 1024;
 
+	/**
+	 * The number of buffers in the ring shared between a client and a data node.
+	 */
+	public static final int NUMBER_OF_SHARED_MEMORY_SLOTS = 4;
+
 	/**
 	 * The block size in bytes.
 	 */
@@ -43,4 +48,162 @@ public class ConfigConstants {
 	public static final String ENABLE_AUTO_EVICT_KEY = "cache.autoevict.enable";
 
 	public static final boolean DEFAULT_ENABLE_AUTO_EVICT = false;
+
+	public static final String CACHE_RECLAIM_LOW_WATERMARK_KEY = "cache.reclaim.watermark.low";
+
+	/**
+	 * The fraction of free buffers below which the data node starts evicting files in the background.
+	 */
+	public static final float DEFAULT_CACHE_RECLAIM_LOW_WATERMARK = 0.05f;
+
+	public static final String CACHE_RECLAIM_HIGH_WATERMARK_KEY = "cache.reclaim.watermark.high";
+
+	/**
+	 * The fraction of free buffers up to which the data node evicts files once it has started.
+	 */
+	public static final float DEFAULT_CACHE_RECLAIM_HIGH_WATERMARK = 0.1f;
+
+	public static final String CACHE_RECLAIM_TIMEOUT_KEY = "cache.reclaim.timeout";
+
+	/**
+	 * The time in milliseconds a read or write waits for a free buffer before it continues without caching.
+	 */
+	public static final long DEFAULT_CACHE_RECLAIM_TIMEOUT = 1000L;
+
+	public static final String BUFFER_POOL_MODE_KEY = "cache.bufferpool.mode";
+
+	/**
+	 * The buffer pool mode, either <code>heap</code>, <code>direct</code> or <code>mmap</code>.
+	 */
+	public static final String DEFAULT_BUFFER_POOL_MODE = "heap";
+
+	public static final String BUFFER_POOL_CAPACITY_KEY = "cache.bufferpool.capacity";
+
+	/**
+	 * The capacity of the buffer pool in bytes, <code>-1</code> to derive it from the free heap memory.
+	 */
+	public static final long DEFAULT_BUFFER_POOL_CAPACITY = -1L;
+
+	public static final String BUFFER_POOL_MMAP_FILE_KEY = "cache.bufferpool.mmap.file";
+
+	/**
+	 * The file backing the buffer pool in <code>mmap</code> mode. Local clients map cached blocks directly from this
+	 * file, so it must be readable by them.
+	 */
+	public static final String DEFAULT_BUFFER_POOL_MMAP_FILE = "/dev/shm/cdfs_bufferpool.dat";
+
+	public static final String PIPELINE_DEPTH_KEY = "datanode.pipeline.depth";
+
+	/**
+	 * The maximum number of chunks a single read or write operation may have in flight.
+	 */
+	public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+	public static final String PIPELINE_WORKERS_KEY = "datanode.pipeline.workers";
+
+	/**
+	 * The number of compression and decompression workers, <code>-1</code> to use one per core.
+	 */
+	public static final int DEFAULT_PIPELINE_WORKERS = -1;
+
+	public static final String DATANODE_WORKERS_KEY = "datanode.workers";
+
+	/**
+	 * The maximum number of connections a data node serves at the same time.
+	 */
+	public static final int DEFAULT_DATANODE_WORKERS = 64;
+
+	public static final String DATANODE_PENDING_CONNECTIONS_KEY = "datanode.connections.pending";
+
+	/**
+	 * The number of connections which may wait for a worker. Beyond that, the data node stops accepting connections
+	 * until a worker becomes available.
+	 */
+	public static final int DEFAULT_DATANODE_PENDING_CONNECTIONS = 256;
+
+	public static final String DATANODE_MAXIMUM_BLOCK_READS_KEY = "datanode.reads.max";
+
+	/**
+	 * The maximum number of blocks a data node reads for its clients at the same time.
+	 */
+	public static final int DEFAULT_DATANODE_MAXIMUM_BLOCK_READS = 16;
+
+	public static final String DATANODE_READAHEAD_DEPTH_KEY = "datanode.readahead.depth";
+
+	/**
+	 * The number of blocks a data node reads ahead from HDFS while it streams a block to the client, <code>0</code> to
+	 * disable readahead. Blocks are only read ahead into the uncompressed cache and only while the buffer pool has room
+	 * for them.
+	 */
+	public static final int DEFAULT_DATANODE_READAHEAD_DEPTH = 1;
+
+	public static final String DATANODE_REPORT_INTERVAL_KEY = "datanode.report.interval";
+
+	/**
+	 * The interval in milliseconds in which a data node sends cache reports and read statistics to the name node.
+	 */
+	public static final long DEFAULT_DATANODE_REPORT_INTERVAL = 1000L;
+
+	public static final String DATANODE_FULL_REPORT_INTERVAL_KEY = "datanode.report.full.interval";
+
+	/**
+	 * The interval in milliseconds in which a data node reports the full content of its caches to the name node. The
+	 * full report corrects any state the name node may have lost or missed in between.
+	 */
+	public static final long DEFAULT_DATANODE_FULL_REPORT_INTERVAL = 60000L;
+
+	public static final String NAMENODE_HDFS_HOSTS_TTL_KEY = "namenode.hdfshosts.ttl";
+
+	/**
+	 * The time in milliseconds the name node keeps the HDFS hosts of a block before it asks HDFS again. The block files
+	 * never change, but HDFS may move their replicas.
+	 */
+	public static final long DEFAULT_NAMENODE_HDFS_HOSTS_TTL = 10L * 60L * 1000L;
+
+	public static final String NAMENODE_SNAPSHOT_EDITS_KEY = "namenode.snapshot.edits";
+
+	/**
+	 * The number of edit log records after which the name node compacts its meta data into a new snapshot.
+	 */
+	public static final int DEFAULT_NAMENODE_SNAPSHOT_EDITS = 10000;
+
+	public static final String NAMENODE_POPULARITY_HALF_LIFE_KEY = "namenode.popularity.halflife";
+
+	/**
+	 * The time in milliseconds after which an access counts half as much towards the popularity of a file. Popularity
+	 * drives both prefetching and eviction.
+	 */
+	public static final long DEFAULT_NAMENODE_POPULARITY_HALF_LIFE = 60L * 60L * 1000L;
+
+	public static final String NAMENODE_EVICTION_POLICY_KEY = "namenode.eviction.policy";
+
+	/**
+	 * The policy which decides what data nodes evict from their caches, either <code>lfu-f</code>, <code>life</code>,
+	 * <code>lru-k</code>, <code>arc</code> or <code>w-tinylfu</code>.
+	 */
+	public static final String DEFAULT_NAMENODE_EVICTION_POLICY = "lfu-f";
+
+	public static final String NAMENODE_EVICTION_ALL_OR_NOTHING_KEY = "namenode.eviction.allornothing";
+
+	/**
+	 * Whether incompletely cached files are evicted before completely cached ones. A file only speeds up a job once
+	 * all of its blocks are cached.
+	 */
+	public static final boolean DEFAULT_NAMENODE_EVICTION_ALL_OR_NOTHING = true;
+
+	public static final String COMPRESSION_CODEC_KEY = "compression.codec";
+
+	/**
+	 * The codec new files are compressed with, either <code>snappy</code>, <code>lz4</code>, <code>zstd</code>,
+	 * <code>zstd:&lt;level&gt;</code> or <code>stored</code>. Clients may choose a different codec per file.
+	 */
+	public static final String DEFAULT_COMPRESSION_CODEC = "snappy";
+
+	public static final String COMPRESSION_MINIMUM_SAVINGS_KEY = "compression.minsavings";
+
+	/**
+	 * The fraction of a chunk its compression must save. Chunks which compress worse are stored as they are, so
+	 * reading them requires no decompression.
+	 */
+	public static final float DEFAULT_COMPRESSION_MINIMUM_SAVINGS = 0.1f;
 }
@@ -8,9 +8,19 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 
+import edu.berkeley.icsi.cdfs.utils.NumberUtils;
+
 public abstract class AbstractSharedMemoryComponent implements Closeable {
 
-	protected static final byte ACK_BYTE = 21;
+	/**
+	 * Sent to the other side after it announced that it waits for the ring to change
+	 */
+	private static final byte WAKEUP_BYTE = 21;
+
+	/**
+	 * Sent to the other side once a side is done with the ring for the current stream
+	 */
+	private static final byte DONE_BYTE = 22;
 
 	private final Socket socket;
 
@@ -18,10 +28,58 @@ public abstract class AbstractSharedMemoryComponent implements Closeable {
 
 	protected final OutputStream outputStream;
 
+	/**
+	 * Whether the other side has announced that it is done with the current stream
+	 */
+	private boolean peerDone = false;
+
 	protected AbstractSharedMemoryComponent(final Socket socket) throws IOException {
 		this.socket = socket;
 		this.inputStream = socket.getInputStream();
 		this.outputStream = socket.getOutputStream();
+
+		// Wakeups are single bytes, they must not be held back waiting for the acknowledgment of the previous one
+		socket.setTcpNoDelay(true);
+	}
+
+	protected void sendWakeup() throws IOException {
+
+		this.outputStream.write(WAKEUP_BYTE);
+	}
+
+	protected void waitForWakeup() throws IOException {
+
+		final int r = this.inputStream.read();
+		if (r < 0) {
+			throw new EOFException();
+		}
+
+		if (r == DONE_BYTE) {
+			// The other side will not touch the ring anymore, so checking it again is enough
+			this.peerDone = true;
+			return;
+		}
+
+		if (r != WAKEUP_BYTE) {
+			throw new IOException("Received unexpected value for wakeup");
+		}
+	}
+
+	/**
+	 * Completes the current stream. Both sides call this method once they are done with the ring. Afterwards, no stale
+	 * wakeups are left on the connection, so it can carry the next stream.
+	 *
+	 * @throws IOException
+	 *         thrown if the connection to the other side is lost
+	 */
+	public void finishStream() throws IOException {
+
+		this.outputStream.write(DONE_BYTE);
+
+		while (!this.peerDone) {
+			waitForWakeup();
+		}
+		this.peerDone = false;
 	}
 
 	protected void readFully(final byte[] buf, final int len) throws IOException {
@@ -50,6 +108,26 @@ public abstract class AbstractSharedMemoryComponent implements Closeable {
 		}
 	}
 
+	protected void writeFilename(final String filename) throws IOException {
+
+		final byte[] filenameBuf = filename.getBytes();
+		final byte[] buf = new byte[4 + filenameBuf.length];
+		NumberUtils.integerToByteArray(filenameBuf.length, buf, 0);
+		System.arraycopy(filenameBuf, 0, buf, 4, filenameBuf.length);
+		this.outputStream.write(buf);
+	}
+
+	protected String readFilename() throws IOException {
+
+		final byte[] lenBuf = new byte[4];
+		readFully(lenBuf, lenBuf.length);
+		final int len = NumberUtils.byteArrayToInteger(lenBuf, 0);
+		final byte[] filenameBuf = new byte[len];
+		readFully(filenameBuf, len);
+
+		return new String(filenameBuf);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
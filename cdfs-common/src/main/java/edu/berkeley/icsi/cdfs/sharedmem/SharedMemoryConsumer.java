@@ -1,81 +1,198 @@
 package edu.berkeley.icsi.cdfs.sharedmem;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
 
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
-import edu.berkeley.icsi.cdfs.utils.NumberUtils;
 
 public final class SharedMemoryConsumer extends AbstractSharedMemoryComponent {
 
-	private final RandomAccessFile memoryMappedFile;
+	/**
+	 * The size of the windows in which files announced through segment descriptors are mapped, must be a multiple of
+	 * the buffer size so no segment spans two windows
+	 */
+	private static final long SEGMENT_WINDOW_SIZE = 32L * ConfigConstants.BUFFER_SIZE;
 
-	private final MappedByteBuffer sharedMemoryBuffer;
+	private SharedMemoryRing ring = null;
 
-	private boolean bufferReady = false;
+	/**
+	 * The local copy of the ring's tail counter
+	 */
+	private long tail = 0L;
 
-	public SharedMemoryConsumer(final Socket socket) throws IOException {
-		super(socket);
+	private RandomAccessFile segmentFile = null;
+
+	private int segmentFileGeneration = 0;
 
-		// Receive information about memory mapped file
-		final String filename = readFilename();
+	private final Map<Long, MappedByteBuffer> segmentWindows = new HashMap<Long, MappedByteBuffer>();
 
-		this.memoryMappedFile = new RandomAccessFile(filename, "r");
-		final FileChannel fc = this.memoryMappedFile.getChannel();
+	private ByteBuffer currentBuffer = null;
 
-		this.sharedMemoryBuffer = fc.map(MapMode.READ_ONLY, 0, ConfigConstants.BUFFER_SIZE);
+	/**
+	 * Whether the producer has ended the current stream
+	 */
+	private boolean endOfStream = false;
+
+	public SharedMemoryConsumer(final Socket socket) throws IOException {
+		super(socket);
 	}
 
 	public ByteBuffer lockSharedMemory() throws IOException {
 
-		if (!this.bufferReady) {
-			final int bufferSize = readBufferSize();
-			this.sharedMemoryBuffer.position(0);
-			this.sharedMemoryBuffer.limit(bufferSize);
-			this.bufferReady = true;
+		if (this.currentBuffer != null) {
+			return this.currentBuffer;
+		}
+
+		if (this.endOfStream) {
+			throw new EOFException();
 		}
 
-		return this.sharedMemoryBuffer;
+		if (this.ring == null) {
+			// Receive information about memory mapped file and tell the producer where to find the tail counter
+			final SharedMemoryRing ring = SharedMemoryRing.open(readFilename());
+			try {
+				writeFilename(ring.getConsumerFilename());
+			} catch (IOException ioe) {
+				ring.close();
+				throw ioe;
+			}
+			this.ring = ring;
+		}
+
+		waitForPublishedSlot();
+
+		// Do not read the slot's descriptor or data before the head
+		this.ring.fence();
+
+		final int length = this.ring.getDescriptorLength(this.tail);
+		final int type = this.ring.getDescriptorType(this.tail);
+		if (type == SharedMemoryRing.TYPE_DATA) {
+			final ByteBuffer slot = this.ring.getSlot(this.tail);
+			slot.limit(length);
+			this.currentBuffer = slot;
+		} else if (type == SharedMemoryRing.TYPE_SEGMENT) {
+			this.currentBuffer = getSegment(this.ring.getDescriptorSegmentOffset(this.tail), length);
+		} else if (type == SharedMemoryRing.TYPE_END) {
+			// The slot carries no data, so it is handed back right away
+			releaseSlot();
+			this.endOfStream = true;
+			throw new EOFException();
+		} else {
+			throw new IOException("Received unexpected slot type " + type);
+		}
+
+		return this.currentBuffer;
+	}
+
+	/**
+	 * Returns the number of bytes left in the currently locked buffer, which can be read without blocking.
+	 */
+	public int available() {
+
+		return (this.currentBuffer == null) ? 0 : this.currentBuffer.remaining();
 	}
 
 	public void unlockSharedMemory() throws IOException {
 
-		this.bufferReady = false;
-		sendACK();
+		if (this.currentBuffer == null) {
+			throw new IllegalStateException("Shared memory buffer has not been locked before");
+		}
+
+		this.currentBuffer = null;
+		releaseSlot();
 	}
 
-	private void sendACK() throws IOException {
+	/**
+	 * Returns <code>true</code> if the producer has ended the current stream, <code>false</code> if the end of the
+	 * stream has not been reached yet or the connection has been lost.
+	 */
+	public boolean isEndOfStream() {
 
-		this.outputStream.write(ACK_BYTE);
+		return this.endOfStream;
 	}
 
-	private int readBufferSize() throws IOException {
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void finishStream() throws IOException {
 
-		final byte[] buf = new byte[4];
-		readFully(buf, buf.length);
+		super.finishStream();
+		this.endOfStream = false;
+	}
+
+	private void releaseSlot() throws IOException {
+
+		// Finish reading the slot before handing it back to the producer
+		this.ring.fence();
+		this.ring.setTail(++this.tail);
+		this.ring.fence();
 
-		return NumberUtils.byteArrayToInteger(buf, 0);
+		// The producer clears its flag itself once it is awake, so a few stale wakeups may be sent until then
+		if (this.ring.isProducerWaiting()) {
+			sendWakeup();
+		}
 	}
 
-	private String readFilename() throws IOException {
+	private void waitForPublishedSlot() throws IOException {
+
+		while (this.ring.getHead() == this.tail) {
 
-		final byte[] lenBuf = new byte[4];
-		readFully(lenBuf, lenBuf.length);
-		final int len = NumberUtils.byteArrayToInteger(lenBuf, 0);
-		final byte[] filenameBuf = new byte[len];
-		readFully(filenameBuf, len);
+			this.ring.setConsumerWaiting(true);
+			this.ring.fence();
 
-		return new String(filenameBuf);
+			// Check again, the producer may have published a slot before it could see the flag
+			if (this.ring.getHead() == this.tail) {
+				// A wakeup may be stale, so the loop checks the ring again in any case
+				waitForWakeup();
+			}
+
+			this.ring.setConsumerWaiting(false);
+		}
+	}
+
+	private ByteBuffer getSegment(final long offset, final int length) throws IOException {
+
+		final int generation = this.ring.getSegmentFileGeneration();
+		if (this.segmentFile == null || this.segmentFileGeneration != generation) {
+			if (this.segmentFile != null) {
+				this.segmentFile.close();
+				this.segmentWindows.clear();
+			}
+			this.segmentFile = new RandomAccessFile(this.ring.getSegmentFile(), "r");
+			this.segmentFileGeneration = generation;
+		}
+
+		final long windowStart = (offset / SEGMENT_WINDOW_SIZE) * SEGMENT_WINDOW_SIZE;
+		MappedByteBuffer window = this.segmentWindows.get(Long.valueOf(windowStart));
+		if (window == null) {
+			final long windowSize = Math.min(SEGMENT_WINDOW_SIZE, this.segmentFile.length() - windowStart);
+			window = this.segmentFile.getChannel().map(MapMode.READ_ONLY, windowStart, windowSize);
+			this.segmentWindows.put(Long.valueOf(windowStart), window);
+		}
+
+		final ByteBuffer segment = window.duplicate();
+		segment.limit((int) (offset - windowStart) + length);
+		segment.position((int) (offset - windowStart));
+
+		return segment.slice();
 	}
 
 	public void close() throws IOException {
 
-		this.memoryMappedFile.close();
+		if (this.ring != null) {
+			this.ring.close();
+		}
+		if (this.segmentFile != null) {
+			this.segmentFile.close();
+		}
 		super.close();
 	}
 }
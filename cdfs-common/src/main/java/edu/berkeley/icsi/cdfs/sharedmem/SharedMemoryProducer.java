@@ -1,116 +1,206 @@
 package edu.berkeley.icsi.cdfs.sharedmem;
 
-import java.io.EOFException;
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
-import edu.berkeley.icsi.cdfs.utils.NumberUtils;
 
 public final class SharedMemoryProducer extends AbstractSharedMemoryComponent {
 
-	private RandomAccessFile memoryMappedFile = null;
+	private SharedMemoryRing ring = null;
 
-	private MappedByteBuffer sharedMemoryBuffer = null;
+	/**
+	 * The local copy of the ring's head counter
+	 */
+	private long head = 0L;
 
-	private boolean bufferReady;
+	/**
+	 * The slot currently locked by the caller or <code>null</code> if no slot is locked
+	 */
+	private ByteBuffer lockedSlot = null;
+
+	/**
+	 * The name of the file the last segment has been taken from
+	 */
+	private String lastSegmentFile = null;
+
+	/**
+	 * Whether the current stream has been ended
+	 */
+	private boolean endOfStream = false;
 
 	public SharedMemoryProducer(final Socket socket) throws IOException {
 		super(socket);
-
-		this.bufferReady = true;
 	}
 
-	private ByteBuffer getBuffer() throws IOException {
+	private SharedMemoryRing getRing() throws IOException {
+
+		if (this.ring == null) {
+
+			// Create ring, send filename to consumer and map the file with the consumer's counter in return
+			final SharedMemoryRing ring = SharedMemoryRing.create(ConfigConstants.NUMBER_OF_SHARED_MEMORY_SLOTS,
+				ConfigConstants.BUFFER_SIZE);
+			try {
+				writeFilename(ring.getFilename());
+				ring.attachConsumer(readFilename());
+			} catch (IOException ioe) {
+				ring.close();
+				throw ioe;
+			}
+			this.ring = ring;
+		}
 
-		if (this.memoryMappedFile == null) {
+		return this.ring;
+	}
 
-			final File file = getTmpFile();
+	public ByteBuffer lockSharedMemory() throws IOException {
 
-			// Open file and send filename to consumer
-			this.memoryMappedFile = new RandomAccessFile(file, "rw");
-			final FileChannel fc = this.memoryMappedFile.getChannel();
-			this.sharedMemoryBuffer = fc.map(MapMode.READ_WRITE, 0, ConfigConstants.BUFFER_SIZE);
-			writeFilename(file.getAbsolutePath());
+		if (this.lockedSlot == null) {
+			final SharedMemoryRing ring = getRing();
+			waitForFreeSlots(1);
+			this.lockedSlot = ring.getSlot(this.head);
 		}
 
-		return this.sharedMemoryBuffer;
+		return this.lockedSlot;
 	}
 
-	private static File getTmpFile() throws IOException {
+	public void unlockSharedMemory() throws IOException {
 
-		final int rnd = (int) (Math.random() * 100000.0);
+		if (this.lockedSlot == null) {
+			throw new IllegalStateException("Shared memory buffer has not been locked before");
+		}
 
-		final File tmpFile = new File("/tmp/cdfs_" + rnd + "_pipe.dat");
-		tmpFile.deleteOnExit();
+		this.lockedSlot.flip();
+		this.ring.putDescriptor(this.head, this.lockedSlot.limit(), SharedMemoryRing.TYPE_DATA, 0L);
+		this.lockedSlot = null;
 
-		return tmpFile;
+		publish();
 	}
 
-	public ByteBuffer lockSharedMemory() throws IOException {
+	/**
+	 * Hands a segment of a memory mapped file to the consumer, which maps the segment on its own instead of having
+	 * the data copied into the ring. The segment must not be modified or reused before {@link #waitForACKs()} has
+	 * returned.
+	 *
+	 * @param filename
+	 *        the absolute name of the file the segment belongs to
+	 * @param offset
+	 *        the offset of the segment inside the file
+	 * @param length
+	 *        the length of the segment in bytes
+	 * @throws IOException
+	 *         thrown if the connection to the consumer is lost
+	 */
+	public void shareSegment(final String filename, final long offset, final int length) throws IOException {
+
+		if (this.lockedSlot != null) {
+			throw new IllegalStateException("Cannot share segment while a slot is locked");
+		}
 
-		if (!this.bufferReady) {
-			waitForACK();
-			this.bufferReady = true;
+		final SharedMemoryRing ring = getRing();
+
+		if (!filename.equals(this.lastSegmentFile)) {
+			// The consumer must be done with all segments of the previous file before the name is replaced
+			waitForACKs();
+			ring.setSegmentFile(filename);
+			this.lastSegmentFile = filename;
 		}
 
-		final ByteBuffer buf = getBuffer();
-		buf.clear();
+		waitForFreeSlots(1);
+		ring.putDescriptor(this.head, length, SharedMemoryRing.TYPE_SEGMENT, offset);
 
-		return buf;
+		publish();
 	}
 
-	public void unlockSharedMemory() throws IOException {
-
-		if (this.sharedMemoryBuffer == null) {
-			throw new IllegalStateException("Shared memory buffer has never been locked before");
+	/**
+	 * Tells the consumer that the current stream ends. Once both sides have called {@link #finishStream()}, the ring
+	 * can carry the next stream.
+	 *
+	 * @throws IOException
+	 *         thrown if the connection to the consumer is lost
+	 */
+	public void endStream() throws IOException {
+
+		if (this.lockedSlot != null) {
+			throw new IllegalStateException("Cannot end stream while a slot is locked");
 		}
 
-		this.sharedMemoryBuffer.flip();
+		final SharedMemoryRing ring = getRing();
+		waitForFreeSlots(1);
+		ring.putDescriptor(this.head, 0, SharedMemoryRing.TYPE_END, 0L);
+		this.endOfStream = true;
 
-		// Write buffer size
-		writeBufferSize(this.sharedMemoryBuffer.limit());
-		this.bufferReady = false;
+		publish();
 	}
 
-	private void writeBufferSize(final int bufferSize) throws IOException {
+	public boolean isEndOfStream() {
 
-		final byte[] buf = new byte[4];
-		NumberUtils.integerToByteArray(bufferSize, buf, 0);
-		this.outputStream.write(buf);
+		return this.endOfStream;
 	}
 
-	private void waitForACK() throws IOException {
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void finishStream() throws IOException {
 
-		final int r = this.inputStream.read();
-		if (r < 0) {
-			throw new EOFException();
+		super.finishStream();
+		this.endOfStream = false;
+	}
+
+	/**
+	 * Blocks until the consumer has released all slots and segments handed to it so far.
+	 *
+	 * @throws IOException
+	 *         thrown if the connection to the consumer is lost
+	 */
+	public void waitForACKs() throws IOException {
+
+		if (this.ring != null) {
+			waitForFreeSlots(this.ring.getNumberOfSlots());
 		}
+	}
+
+	private void publish() throws IOException {
+
+		// Make the slot's data and descriptor visible before the new head
+		this.ring.fence();
+		this.ring.setHead(++this.head);
+		this.ring.fence();
+
+		// The consumer clears its flag itself once it is awake, so a few stale wakeups may be sent until then
+		if (this.ring.isConsumerWaiting()) {
+			sendWakeup();
+		}
+	}
+
+	private void waitForFreeSlots(final int numberOfSlots) throws IOException {
+
+		while (getNumberOfFreeSlots() < numberOfSlots) {
+
+			this.ring.setProducerWaiting(true);
+			this.ring.fence();
+
+			// Check again, the consumer may have released a slot before it could see the flag
+			if (getNumberOfFreeSlots() < numberOfSlots) {
+				// A wakeup may be stale, so the loop checks the ring again in any case
+				waitForWakeup();
+			}
 
-		if (r != ACK_BYTE) {
-			throw new IOException("Received unexpected value for acknowlegment");
+			this.ring.setProducerWaiting(false);
 		}
 	}
 
-	private void writeFilename(final String filename) throws IOException {
+	private int getNumberOfFreeSlots() {
 
-		final byte[] lenBuf = new byte[4];
-		final byte[] filenameBuf = filename.getBytes();
-		NumberUtils.integerToByteArray(filenameBuf.length, lenBuf, 0);
-		this.outputStream.write(lenBuf);
-		this.outputStream.write(filenameBuf);
+		return this.ring.getNumberOfSlots() - (int) (this.head - this.ring.getTail());
 	}
 
 	public void close() throws IOException {
 
-		if(this.memoryMappedFile != null) {
-			this.memoryMappedFile.close();
+		if (this.ring != null) {
+			this.ring.close();
 		}
 		super.close();
 	}
@@ -0,0 +1,339 @@
+package edu.berkeley.icsi.cdfs.sharedmem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A ring of equally sized slots inside a memory mapped file shared by exactly one producer and one consumer. The
+ * first page of the file holds the control block:
+ * <ul>
+ * <li>the head counter (number of slots published by the producer)</li>
+ * <li>the producer's waiting flag, set before it blocks on the socket</li>
+ * <li>the name of the file segments are taken from and a generation counter for it</li>
+ * <li>one descriptor per slot with the length, the type, and for segments the file offset of the slot's data</li>
+ * </ul>
+ * The slots follow the control block. The file is only written by the producer. The consumer keeps the tail counter
+ * (number of slots released) and its own waiting flag in a separate file, which in turn is only written by the
+ * consumer. Each side creates its file under a random name and only grants read access to others, so a third process
+ * cannot tamper with the ring. Since a side cannot write the other side's waiting flag, each side clears its flag
+ * itself once it has been woken up.
+ * <p>
+ * This class is not thread-safe, each side is expected to be driven by a single thread.
+ */
+final class SharedMemoryRing {
+
+	static final int TYPE_DATA = 0;
+
+	static final int TYPE_SEGMENT = 1;
+
+	/**
+	 * Ends the current stream, the slot carries no data
+	 */
+	static final int TYPE_END = 2;
+
+	private static final int HEAD_OFFSET = 0;
+
+	private static final int PRODUCER_WAITING_OFFSET = 8;
+
+	private static final int NUMBER_OF_SLOTS_OFFSET = 12;
+
+	private static final int SLOT_SIZE_OFFSET = 16;
+
+	private static final int SEGMENT_FILE_GENERATION_OFFSET = 20;
+
+	private static final int SEGMENT_FILE_OFFSET = 128;
+
+	private static final int MAXIMUM_SEGMENT_FILE_LENGTH = 1020;
+
+	private static final int DESCRIPTORS_OFFSET = SEGMENT_FILE_OFFSET + 4 + MAXIMUM_SEGMENT_FILE_LENGTH;
+
+	private static final int DESCRIPTOR_SIZE = 16;
+
+	private static final int CONTROL_BLOCK_SIZE = 4096;
+
+	static final int MAXIMUM_NUMBER_OF_SLOTS = (CONTROL_BLOCK_SIZE - DESCRIPTORS_OFFSET) / DESCRIPTOR_SIZE;
+
+	private static final int TAIL_OFFSET = 0;
+
+	private static final int CONSUMER_WAITING_OFFSET = 8;
+
+	private static final int CONSUMER_CONTROL_BLOCK_SIZE = 16;
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer mapping;
+
+	private File consumerFile = null;
+
+	private RandomAccessFile consumerRaf = null;
+
+	/**
+	 * The mapping of the consumer's file or <code>null</code> if the producer has not been told its name yet
+	 */
+	private MappedByteBuffer consumerMapping = null;
+
+	private final ByteBuffer[] slots;
+
+	private final int slotSize;
+
+	private volatile int barrier = 0;
+
+	private SharedMemoryRing(final File file, final RandomAccessFile raf, final MappedByteBuffer mapping) {
+
+		this.file = file;
+		this.raf = raf;
+		this.mapping = mapping;
+
+		final int numberOfSlots = mapping.getInt(NUMBER_OF_SLOTS_OFFSET);
+		this.slotSize = mapping.getInt(SLOT_SIZE_OFFSET);
+		if (numberOfSlots < 1 || numberOfSlots > MAXIMUM_NUMBER_OF_SLOTS || this.slotSize < 1
+			|| mapping.capacity() < CONTROL_BLOCK_SIZE + (long) numberOfSlots * this.slotSize) {
+			throw new IllegalStateException("Invalid shared memory ring with " + numberOfSlots + " slots of size "
+				+ this.slotSize);
+		}
+
+		this.slots = new ByteBuffer[numberOfSlots];
+		for (int i = 0; i < numberOfSlots; ++i) {
+			final ByteBuffer view = mapping.duplicate();
+			view.limit(CONTROL_BLOCK_SIZE + (i + 1) * this.slotSize);
+			view.position(CONTROL_BLOCK_SIZE + i * this.slotSize);
+			this.slots[i] = view.slice();
+		}
+	}
+
+	/**
+	 * Creates a new ring in a temporary file. The caller still has to attach the consumer's file with
+	 * {@link #attachConsumer(String)} before it can check the tail counter or the consumer's waiting flag.
+	 */
+	static SharedMemoryRing create(final int numberOfSlots, final int slotSize) throws IOException {
+
+		if (numberOfSlots < 1 || numberOfSlots > MAXIMUM_NUMBER_OF_SLOTS) {
+			throw new IllegalArgumentException("Number of slots must be between 1 and " + MAXIMUM_NUMBER_OF_SLOTS);
+		}
+
+		final long size = CONTROL_BLOCK_SIZE + (long) numberOfSlots * slotSize;
+		final File file = createTmpFile("_pipe.dat");
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(size);
+
+		final MappedByteBuffer mapping = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+		mapping.putLong(HEAD_OFFSET, 0L);
+		mapping.putInt(PRODUCER_WAITING_OFFSET, 0);
+		mapping.putInt(SEGMENT_FILE_GENERATION_OFFSET, 0);
+		mapping.putInt(NUMBER_OF_SLOTS_OFFSET, numberOfSlots);
+		mapping.putInt(SLOT_SIZE_OFFSET, slotSize);
+
+		return new SharedMemoryRing(file, raf, mapping);
+	}
+
+	/**
+	 * Opens a ring that has previously been created by the producer and creates the consumer's file for it. The
+	 * producer has to be told the name of that file, see {@link #getConsumerFilename()}.
+	 */
+	static SharedMemoryRing open(final String filename) throws IOException {
+
+		final File file = new File(filename);
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final SharedMemoryRing ring = new SharedMemoryRing(file, raf, raf.getChannel().map(MapMode.READ_ONLY, 0,
+			raf.length()));
+
+		ring.consumerFile = createTmpFile("_tail.dat");
+		ring.consumerRaf = new RandomAccessFile(ring.consumerFile, "rw");
+		ring.consumerRaf.setLength(CONSUMER_CONTROL_BLOCK_SIZE);
+		ring.consumerMapping = ring.consumerRaf.getChannel().map(MapMode.READ_WRITE, 0, CONSUMER_CONTROL_BLOCK_SIZE);
+		ring.consumerMapping.putLong(TAIL_OFFSET, 0L);
+		ring.consumerMapping.putInt(CONSUMER_WAITING_OFFSET, 0);
+
+		return ring;
+	}
+
+	/**
+	 * Maps the file the consumer has created for the ring. Must only be called by the producer.
+	 */
+	void attachConsumer(final String consumerFilename) throws IOException {
+
+		this.consumerFile = new File(consumerFilename);
+		this.consumerRaf = new RandomAccessFile(this.consumerFile, "r");
+		if (this.consumerRaf.length() < CONSUMER_CONTROL_BLOCK_SIZE) {
+			throw new IOException("Invalid consumer file " + consumerFilename);
+		}
+		this.consumerMapping = this.consumerRaf.getChannel().map(MapMode.READ_ONLY, 0, CONSUMER_CONTROL_BLOCK_SIZE);
+	}
+
+	/**
+	 * Creates an empty file under a random name that everyone may read but only the current user may write.
+	 */
+	private static File createTmpFile(final String suffix) throws IOException {
+
+		final File tmpFile = File.createTempFile("cdfs_", suffix);
+		tmpFile.deleteOnExit();
+
+		if (!tmpFile.setWritable(false, false) || !tmpFile.setWritable(true, true)
+			|| !tmpFile.setReadable(true, false)) {
+			throw new IOException("Cannot set permissions of " + tmpFile);
+		}
+
+		return tmpFile;
+	}
+
+	String getFilename() {
+
+		return this.file.getAbsolutePath();
+	}
+
+	String getConsumerFilename() {
+
+		return this.consumerFile.getAbsolutePath();
+	}
+
+	/**
+	 * Orders the accesses to the mapping. None of the accesses before the call can be reordered with any of the
+	 * accesses after it, since a volatile write followed by a volatile read acts as a full fence.
+	 */
+	int fence() {
+
+		this.barrier = 0;
+
+		return this.barrier;
+	}
+
+	int getNumberOfSlots() {
+
+		return this.slots.length;
+	}
+
+	int getSlotSize() {
+
+		return this.slotSize;
+	}
+
+	long getHead() {
+
+		return this.mapping.getLong(HEAD_OFFSET);
+	}
+
+	void setHead(final long head) {
+
+		this.mapping.putLong(HEAD_OFFSET, head);
+	}
+
+	long getTail() {
+
+		return this.consumerMapping.getLong(TAIL_OFFSET);
+	}
+
+	void setTail(final long tail) {
+
+		this.consumerMapping.putLong(TAIL_OFFSET, tail);
+	}
+
+	boolean isProducerWaiting() {
+
+		return (this.mapping.getInt(PRODUCER_WAITING_OFFSET) != 0);
+	}
+
+	void setProducerWaiting(final boolean waiting) {
+
+		this.mapping.putInt(PRODUCER_WAITING_OFFSET, waiting ? 1 : 0);
+	}
+
+	boolean isConsumerWaiting() {
+
+		return (this.consumerMapping.getInt(CONSUMER_WAITING_OFFSET) != 0);
+	}
+
+	void setConsumerWaiting(final boolean waiting) {
+
+		this.consumerMapping.putInt(CONSUMER_WAITING_OFFSET, waiting ? 1 : 0);
+	}
+
+	/**
+	 * Returns a view of the data area of the slot the given counter value refers to. The view's position is
+	 * <code>0</code> and its limit the slot size.
+	 */
+	ByteBuffer getSlot(final long counter) {
+
+		final ByteBuffer view = this.slots[slotIndex(counter)].duplicate();
+		view.clear();
+
+		return view;
+	}
+
+	void putDescriptor(final long counter, final int length, final int type, final long segmentOffset) {
+
+		final int offset = DESCRIPTORS_OFFSET + slotIndex(counter) * DESCRIPTOR_SIZE;
+		this.mapping.putInt(offset, length);
+		this.mapping.putInt(offset + 4, type);
+		this.mapping.putLong(offset + 8, segmentOffset);
+	}
+
+	int getDescriptorLength(final long counter) {
+
+		return this.mapping.getInt(DESCRIPTORS_OFFSET + slotIndex(counter) * DESCRIPTOR_SIZE);
+	}
+
+	int getDescriptorType(final long counter) {
+
+		return this.mapping.getInt(DESCRIPTORS_OFFSET + slotIndex(counter) * DESCRIPTOR_SIZE + 4);
+	}
+
+	long getDescriptorSegmentOffset(final long counter) {
+
+		return this.mapping.getLong(DESCRIPTORS_OFFSET + slotIndex(counter) * DESCRIPTOR_SIZE + 8);
+	}
+
+	/**
+	 * Announces the file subsequent segments are taken from. Must only be called by the producer while the ring is
+	 * empty.
+	 */
+	void setSegmentFile(final String filename) {
+
+		final byte[] filenameBuf = filename.getBytes();
+		if (filenameBuf.length > MAXIMUM_SEGMENT_FILE_LENGTH) {
+			throw new IllegalArgumentException("Segment file name " + filename + " is too long");
+		}
+
+		this.mapping.putInt(SEGMENT_FILE_OFFSET, filenameBuf.length);
+		for (int i = 0; i < filenameBuf.length; ++i) {
+			this.mapping.put(SEGMENT_FILE_OFFSET + 4 + i, filenameBuf[i]);
+		}
+		this.mapping.putInt(SEGMENT_FILE_GENERATION_OFFSET, getSegmentFileGeneration() + 1);
+	}
+
+	String getSegmentFile() {
+
+		final byte[] filenameBuf = new byte[this.mapping.getInt(SEGMENT_FILE_OFFSET)];
+		for (int i = 0; i < filenameBuf.length; ++i) {
+			filenameBuf[i] = this.mapping.get(SEGMENT_FILE_OFFSET + 4 + i);
+		}
+
+		return new String(filenameBuf);
+	}
+
+	int getSegmentFileGeneration() {
+
+		return this.mapping.getInt(SEGMENT_FILE_GENERATION_OFFSET);
+	}
+
+	private int slotIndex(final long counter) {
+
+		return (int) (counter % this.slots.length);
+	}
+
+	void close() throws IOException {
+
+		try {
+			this.raf.close();
+		} finally {
+			if (this.consumerRaf != null) {
+				this.consumerRaf.close();
+			}
+		}
+	}
+}
@@ -1,59 +1,103 @@
 package edu.berkeley.icsi.cdfs.cache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.Path;
 
+/**
+ * The cache index is split into a power-of-two number of stripes, each guarded by its own read/write lock. Lookups,
+ * locks and unlocks only take the read lock of a single stripe, so concurrent readers of different or even the same
+ * block do not serialize. Entries are chained directly into the stripe's hash table, so a lookup does not allocate.
+ * <p>
+ * An entry either holds all buffers of a block or is built up chunk by chunk, with one buffer per chunk. The chunk
+ * array of such an entry tells which chunks are present, missing ones are <code>null</code>. Partial entries are only
+ * visible through {@link #lockChunks(Path, int)} until their last chunk has been added. The name node does not know
+ * about them either, so they are evicted by the data node itself.
+ */
 abstract class AbstractCache {
 
 	private static final Log LOG = LogFactory.getLog(AbstractCache.class);
 
-	private static final class BlockKey {
+	/**
+	 * The initial number of hash buckets per stripe, must be a power of two
+	 */
+	private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+	private static final class CacheEntry {
 
 		private final Path path;
 
 		private final int index;
 
-		private BlockKey(final Path path, final int index) {
+		private final int hash;
+
+		/**
+		 * The buffers of the block in order, <code>null</code> as long as chunks are missing
+		 */
+		private List<Buffer> cachedBuffers;
+
+		/**
+		 * The buffer of each chunk or <code>null</code> if the entry has been added as a whole
+		 */
+		private final Buffer[] chunks;
+
+		private int numberOfCachedChunks = 0;
+
+		private final AtomicInteger lockCounter = new AtomicInteger(0);
+
+		private CacheEntry next;
+
+		private CacheEntry(final Path path, final int index, final int hash, final List<Buffer> cachedBuffers,
+				final Buffer[] chunks, final CacheEntry next) {
 			this.path = path;
 			this.index = index;
+			this.hash = hash;
+			this.cachedBuffers = cachedBuffers;
+			this.chunks = chunks;
+			this.next = next;
 		}
 
 		/**
-		 * {@inheritDoc}
+		 * Must be called while holding the write lock.
 		 */
-		@Override
-		public boolean equals(final Object obj) {
+		private void addChunk(final int chunk, final Buffer buffer) {
 
-			if (!(obj instanceof BlockKey)) {
-				return false;
+			this.chunks[chunk] = buffer;
+			if (++this.numberOfCachedChunks == this.chunks.length) {
+				// The chunk array does not change anymore from now on
+				this.cachedBuffers = Arrays.asList(this.chunks);
 			}
+		}
 
-			final BlockKey bk = (BlockKey) obj;
+		private List<Buffer> getBuffers() {
 
-			if (!this.path.equals(bk.path)) {
-				return false;
+			if (this.cachedBuffers != null) {
+				return this.cachedBuffers;
 			}
 
-			if (this.index != bk.index) {
-				return false;
+			final List<Buffer> buffers = new ArrayList<Buffer>(this.numberOfCachedChunks);
+			for (int i = 0; i < this.chunks.length; ++i) {
+				if (this.chunks[i] != null) {
+					buffers.add(this.chunks[i]);
+				}
 			}
 
-			return true;
+			return buffers;
 		}
 
-		/**
-		 * {@inheritDoc}
-		 */
-		@Override
-		public int hashCode() {
+		private boolean matches(final Path path, final int index, final int hash) {
 
-			return this.path.hashCode() + this.index;
+			return this.hash == hash && this.index == index && this.path.equals(path);
 		}
 
 		/**
@@ -72,73 +116,238 @@ abstract class AbstractCache {
 		}
 	}
 
-	private static final class CacheEntry {
+	private static final class Stripe {
 
-		private final List<Buffer> cachedBuffers;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
-		private int lockCounter = 0;
+		private CacheEntry[] table = new CacheEntry[INITIAL_STRIPE_CAPACITY];
 
-		private CacheEntry(final List<Buffer> cachedBuffers) {
-			this.cachedBuffers = cachedBuffers;
+		private int size = 0;
+
+		/**
+		 * Must be called while holding at least the read lock.
+		 */
+		private CacheEntry find(final Path path, final int index, final int hash) {
+
+			CacheEntry entry = this.table[hash & (this.table.length - 1)];
+			while (entry != null) {
+				if (entry.matches(path, index, hash)) {
+					return entry;
+				}
+				entry = entry.next;
+			}
+
+			return null;
+		}
+
+		/**
+		 * Must be called while holding the write lock.
+		 */
+		private CacheEntry insert(final Path path, final int index, final int hash, final List<Buffer> buffers,
+				final Buffer[] chunks) {
+
+			if (this.size >= (this.table.length >> 1) + (this.table.length >> 2)) {
+				resize();
+			}
+
+			final int bucket = hash & (this.table.length - 1);
+			final CacheEntry entry = new CacheEntry(path, index, hash, buffers, chunks, this.table[bucket]);
+			this.table[bucket] = entry;
+			++this.size;
+
+			return entry;
+		}
+
+		/**
+		 * Must be called while holding the write lock.
+		 */
+		private void remove(final CacheEntry entry) {
+
+			final int bucket = entry.hash & (this.table.length - 1);
+			CacheEntry prev = null;
+			CacheEntry e = this.table[bucket];
+			while (e != null) {
+				if (e == entry) {
+					if (prev == null) {
+						this.table[bucket] = e.next;
+					} else {
+						prev.next = e.next;
+					}
+					--this.size;
+					return;
+				}
+				prev = e;
+				e = e.next;
+			}
+
+			throw new IllegalStateException("Cannot find entry " + entry + " in its stripe");
+		}
+
+		private void resize() {
+
+			final CacheEntry[] oldTable = this.table;
+			final CacheEntry[] newTable = new CacheEntry[oldTable.length << 1];
+			for (int i = 0; i < oldTable.length; ++i) {
+				CacheEntry e = oldTable[i];
+				while (e != null) {
+					final CacheEntry next = e.next;
+					final int bucket = e.hash & (newTable.length - 1);
+					e.next = newTable[bucket];
+					newTable[bucket] = e;
+					e = next;
+				}
+			}
+
+			this.table = newTable;
 		}
 	}
 
-	private final Map<BlockKey, CacheEntry> cache = new HashMap<BlockKey, CacheEntry>();
+	private final Stripe[] stripes;
+
+	private final int stripeShift;
+
+	AbstractCache() {
+
+		// Use a few stripes per core to keep the probability of two threads hitting the same stripe low
+		int numberOfStripes = 1;
+		while (numberOfStripes < 4 * Runtime.getRuntime().availableProcessors()) {
+			numberOfStripes <<= 1;
+		}
+
+		this.stripes = new Stripe[numberOfStripes];
+		for (int i = 0; i < numberOfStripes; ++i) {
+			this.stripes[i] = new Stripe();
+		}
+
+		// The stripe is selected by the upper bits of the hash, the bucket inside the stripe by the lower bits
+		this.stripeShift = 32 - Integer.numberOfTrailingZeros(numberOfStripes);
+	}
+
+	private static int hash(final Path path, final int blockIndex) {
+
+		int h = path.hashCode() * 31 + blockIndex;
+
+		// Spread the bits in the same way java.util.HashMap does
+		h ^= (h >>> 20) ^ (h >>> 12);
+
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	private Stripe stripeFor(final int hash) {
+
+		if (this.stripes.length == 1) {
+			return this.stripes[0];
+		}
+
+		return this.stripes[hash >>> this.stripeShift];
+	}
 
 	public List<Buffer> lock(final Path path, final int blockIndex) {
 
-		final BlockKey bk = new BlockKey(path, blockIndex);
+		final int hash = hash(path, blockIndex);
+		final Stripe stripe = stripeFor(hash);
 
-		synchronized (this) {
+		stripe.lock.readLock().lock();
+		try {
 
-			final CacheEntry entry = this.cache.get(bk);
-			if (entry == null) {
+			final CacheEntry entry = stripe.find(path, blockIndex, hash);
+			if (entry == null || entry.cachedBuffers == null) {
 				return null;
 			}
 
-			entry.lockCounter++;
+			// Evictions take the write lock, so the increment cannot race with the removal of the entry
+			entry.lockCounter.incrementAndGet();
 
 			return entry.cachedBuffers;
+
+		} finally {
+			stripe.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Locks the entry of the given block if it has been built up chunk by chunk, no matter whether it is complete. The
+	 * entry must be unlocked with {@link #unlock(Path, int)} afterwards.
+	 *
+	 * @param path
+	 *        the path of the file
+	 * @param blockIndex
+	 *        the index of the block
+	 * @return a copy of the chunk array of the entry with <code>null</code> for each missing chunk or <code>null</code>
+	 *         if there is no such entry
+	 */
+	public Buffer[] lockChunks(final Path path, final int blockIndex) {
+
+		final int hash = hash(path, blockIndex);
+		final Stripe stripe = stripeFor(hash);
+
+		stripe.lock.readLock().lock();
+		try {
+
+			final CacheEntry entry = stripe.find(path, blockIndex, hash);
+			if (entry == null || entry.chunks == null) {
+				return null;
+			}
+
+			entry.lockCounter.incrementAndGet();
+
+			// Chunks are added under the write lock, so the copy is consistent
+			return entry.chunks.clone();
+
+		} finally {
+			stripe.lock.readLock().unlock();
 		}
 	}
 
 	public void unlock(final Path path, final int blockIndex) {
 
-		final BlockKey bk = new BlockKey(path, blockIndex);
+		final int hash = hash(path, blockIndex);
+		final Stripe stripe = stripeFor(hash);
 
-		synchronized (this) {
+		stripe.lock.readLock().lock();
+		try {
 
-			final CacheEntry entry = this.cache.get(bk);
+			final CacheEntry entry = stripe.find(path, blockIndex, hash);
 			if (entry == null) {
 				throw new IllegalStateException("Cannot find entry for path " + path);
 			}
 
-			entry.lockCounter--;
-
-			if (entry.lockCounter < 0) {
-				throw new IllegalStateException("Lock counter for path " + path + " is " + entry.lockCounter);
+			final int lockCounter = entry.lockCounter.decrementAndGet();
+			if (lockCounter < 0) {
+				throw new IllegalStateException("Lock counter for path " + path + " is " + lockCounter);
 			}
+
+		} finally {
+			stripe.lock.readLock().unlock();
 		}
 	}
 
 	public boolean contains(final Path path, final int blockIndex) {
 
-		final BlockKey bk = new BlockKey(path, blockIndex);
+		final int hash = hash(path, blockIndex);
+		final Stripe stripe = stripeFor(hash);
 
-		synchronized (this) {
-			return this.cache.containsKey(bk);
+		stripe.lock.readLock().lock();
+		try {
+			final CacheEntry entry = stripe.find(path, blockIndex, hash);
+			return (entry != null && entry.cachedBuffers != null);
+		} finally {
+			stripe.lock.readLock().unlock();
 		}
 	}
 
 	public boolean addCachedBlock(final Path path, final int blockIndex, final List<Buffer> buffers) {
 
-		final BlockKey bk = new BlockKey(path, blockIndex);
+		final int hash = hash(path, blockIndex);
+		final Stripe stripe = stripeFor(hash);
 
-		synchronized (this) {
+		stripe.lock.writeLock().lock();
+		try {
 
-			if (this.cache.containsKey(bk)) {
+			final CacheEntry entry = stripe.find(path, blockIndex, hash);
+			if (entry != null) {
 				// Another has already been added for the same block in the meantime
-				LOG.info(bk + " is already contained in cache " + getName());
+				LOG.info(entry + " is already contained in cache " + getName());
 				final Iterator<Buffer> it = buffers.iterator();
 				final BufferPool bp = BufferPool.get();
 				while (it.hasNext()) {
@@ -147,34 +356,199 @@ abstract class AbstractCache {
 				return false;
 			}
 
-			LOG.info("Adding " + path + " to cache " + getName() + " (" + buffers.size() + " buffers)");
-			this.cache.put(bk, new CacheEntry(buffers));
+			stripe.insert(path, blockIndex, hash, buffers, null);
+
+		} finally {
+			stripe.lock.writeLock().unlock();
 		}
 
+		LOG.info("Adding " + path + " to cache " + getName() + " (" + buffers.size() + " buffers)");
+
 		return true;
 	}
 
+	/**
+	 * Adds the given chunks of a block to the cache. Chunks which are already cached are handed back to the buffer
+	 * pool, as are all chunks if the block has been cached as a whole in the meantime.
+	 *
+	 * @param path
+	 *        the path of the file
+	 * @param blockIndex
+	 *        the index of the block
+	 * @param chunks
+	 *        the buffer of each chunk of the block, <code>null</code> for chunks not to add
+	 * @return <code>true</code> if the given chunks have completed the block, which must then be reported to the name
+	 *         node, <code>false</code> otherwise
+	 */
+	public boolean addCachedChunks(final Path path, final int blockIndex, final Buffer[] chunks) {
+
+		final int hash = hash(path, blockIndex);
+		final Stripe stripe = stripeFor(hash);
+		final BufferPool bp = BufferPool.get();
+
+		int numberOfAddedChunks = 0;
+		boolean complete;
+
+		stripe.lock.writeLock().lock();
+		try {
+
+			CacheEntry entry = stripe.find(path, blockIndex, hash);
+			if (entry == null) {
+				entry = stripe.insert(path, blockIndex, hash, null, new Buffer[chunks.length]);
+			}
+
+			if (entry.chunks == null || entry.chunks.length != chunks.length) {
+				for (int i = 0; i < chunks.length; ++i) {
+					if (chunks[i] != null) {
+						bp.releaseBuffer(chunks[i].getData());
+					}
+				}
+				if (entry.chunks != null) {
+					throw new IllegalStateException(entry + " has " + entry.chunks.length + " chunks instead of "
+						+ chunks.length);
+				}
+				return false;
+			}
+
+			for (int i = 0; i < chunks.length; ++i) {
+				if (chunks[i] == null) {
+					continue;
+				}
+				if (entry.chunks[i] == null) {
+					entry.addChunk(i, chunks[i]);
+					++numberOfAddedChunks;
+				} else {
+					bp.releaseBuffer(chunks[i].getData());
+				}
+			}
+
+			if (entry.numberOfCachedChunks == 0) {
+				// Nothing to cache after all
+				stripe.remove(entry);
+				return false;
+			}
+
+			complete = (entry.cachedBuffers != null);
+
+		} finally {
+			stripe.lock.writeLock().unlock();
+		}
+
+		if (numberOfAddedChunks > 0) {
+			LOG.info("Adding " + numberOfAddedChunks + " chunks of " + path + " (" + blockIndex + ") to cache "
+				+ getName() + (complete ? ", block is complete" : ""));
+		}
+
+		return complete && numberOfAddedChunks > 0;
+	}
+
 	protected abstract String getName();
 
+	protected abstract boolean isCompressed();
+
+	/**
+	 * Adds a bitmap of the completely cached blocks of each file in this cache to the given list. The stripes are
+	 * visited one after the other, so blocks added or evicted in the meantime may or may not be included.
+	 *
+	 * @param cachedBlocks
+	 *        the list to add the bitmaps to
+	 */
+	public void collectCachedBlocks(final List<CachedBlocks> cachedBlocks) {
+
+		final Map<Path, CachedBlocks> files = new HashMap<Path, CachedBlocks>();
+
+		for (int i = 0; i < this.stripes.length; ++i) {
+
+			final Stripe stripe = this.stripes[i];
+			stripe.lock.readLock().lock();
+			try {
+				for (int j = 0; j < stripe.table.length; ++j) {
+					for (CacheEntry entry = stripe.table[j]; entry != null; entry = entry.next) {
+						if (entry.cachedBuffers == null) {
+							continue;
+						}
+						CachedBlocks cb = files.get(entry.path);
+						if (cb == null) {
+							cb = new CachedBlocks(entry.path, isCompressed());
+							files.put(entry.path, cb);
+						}
+						cb.set(entry.index);
+					}
+				}
+			} finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+
+		cachedBlocks.addAll(files.values());
+	}
+
+	/**
+	 * Removes incomplete blocks which are not in use from the cache until their buffers add up to the given number.
+	 *
+	 * @param numberOfBuffers
+	 *        the number of buffers to free
+	 * @return the buffers of the evicted blocks
+	 */
+	public List<Buffer> evictIncompleteBlocks(final int numberOfBuffers) {
+
+		final List<Buffer> evictedBuffers = new ArrayList<Buffer>();
+
+		for (int i = 0; i < this.stripes.length && evictedBuffers.size() < numberOfBuffers; ++i) {
+
+			final Stripe stripe = this.stripes[i];
+			stripe.lock.writeLock().lock();
+			try {
+				for (int j = 0; j < stripe.table.length && evictedBuffers.size() < numberOfBuffers; ++j) {
+					CacheEntry entry = stripe.table[j];
+					while (entry != null && evictedBuffers.size() < numberOfBuffers) {
+						final CacheEntry next = entry.next;
+						if (entry.cachedBuffers == null && entry.lockCounter.get() == 0) {
+							LOG.info("Evicting " + entry.numberOfCachedChunks + " chunks of incomplete block " + entry
+								+ " from cache " + getName());
+							stripe.remove(entry);
+							evictedBuffers.addAll(entry.getBuffers());
+						}
+						entry = next;
+					}
+				}
+			} finally {
+				stripe.lock.writeLock().unlock();
+			}
+		}
+
+		return evictedBuffers;
+	}
+
+	/**
+	 * Removes the given block from the cache unless it is in use.
+	 *
+	 * @return the buffers of the evicted block, an empty list if the block is not cached or <code>null</code> if it is
+	 *         in use
+	 */
 	public List<Buffer> evict(final Path path, final int blockIndex) {
 
-		final BlockKey bk = new BlockKey(path, blockIndex);
+		final int hash = hash(path, blockIndex);
+		final Stripe stripe = stripeFor(hash);
 
-		final CacheEntry ce;
-		synchronized (this) {
+		stripe.lock.writeLock().lock();
+		try {
 
-			ce = this.cache.get(bk);
+			final CacheEntry ce = stripe.find(path, blockIndex, hash);
 			if (ce == null) {
-				return null;
+				return Collections.emptyList();
 			}
 
-			if (ce.lockCounter > 0) {
+			if (ce.lockCounter.get() > 0) {
 				return null;
 			}
 
-			this.cache.remove(bk);
+			stripe.remove(ce);
+
+			return ce.getBuffers();
 
-			return ce.cachedBuffers;
+		} finally {
+			stripe.lock.writeLock().unlock();
 		}
 	}
 }
@@ -1,21 +1,38 @@
 package edu.berkeley.icsi.cdfs.cache;
 
+import java.nio.ByteBuffer;
+
 public final class Buffer {
 
-	private final byte[] data;
+	private final ByteBuffer data;
 
 	private final int length;
 
-	public Buffer(final byte[] data, final int length) {
+	public Buffer(final ByteBuffer data, final int length) {
 		this.data = data;
 		this.length = length;
 	}
 
-	public byte[] getData() {
+	public ByteBuffer getData() {
 		return this.data;
 	}
 
 	public int getLength() {
 		return this.length;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Returns a view of the valid data of this buffer. The view has its own position and limit, so cached buffers
+	 * can be read by several threads at the same time.
+	 *
+	 * @return a view of the valid data of this buffer
+	 */
+	public ByteBuffer duplicate() {
+
+		final ByteBuffer view = this.data.duplicate();
+		view.clear();
+		view.limit(this.length);
+
+		return view;
+	}
+}
@@ -1,21 +1,27 @@
 package edu.berkeley.icsi.cdfs.cache;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.MemoryType;
 import java.lang.management.MemoryUsage;
-import java.util.Iterator;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.conf.Configuration;
 
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.protocols.DataNodeNameNodeProtocol;
-import edu.berkeley.icsi.cdfs.utils.PathWrapper;
 
 public final class BufferPool {
 
@@ -24,50 +30,210 @@ public final class BufferPool {
 	/**
 	 * The names of the tenured memory pool
 	 */
-	private static final String[] TENURED_POOL_NAMES = { "Tenured Gen", "PS Old Gen", "CMS Old Gen" };
+	private static final String[] TENURED_POOL_NAMES = { "Tenured Gen", "PS Old Gen", "CMS Old Gen", "G1 Old Gen" };
 
 	/**
 	 * The memory threshold to be used when tenured pool can be determined
 	 */
 	private static float TENURED_POOL_THRESHOLD = 0.95f;
 
+	/**
+	 * The maximum size of a single slab, i.e. the largest multiple of the buffer size addressable by a byte buffer
+	 */
+	private static final int MAXIMUM_SLAB_SIZE = (Integer.MAX_VALUE / ConfigConstants.BUFFER_SIZE)
+		* ConfigConstants.BUFFER_SIZE;
+
 	/**
 	 * The singleton instance of the buffer pool
 	 */
 	private static BufferPool INSTANCE = null;
 
-	private final DataNodeNameNodeProtocol nameNode;
+	/**
+	 * The different kinds of memory the buffer pool can be backed by.
+	 */
+	private static enum Mode {
+
+		HEAP,
+		DIRECT,
+		MMAP;
+
+		private static Mode fromString(final String str) {
+
+			if ("heap".equalsIgnoreCase(str)) {
+				return HEAP;
+			}
+
+			if ("direct".equalsIgnoreCase(str)) {
+				return DIRECT;
+			}
+
+			if ("mmap".equalsIgnoreCase(str)) {
+				return MMAP;
+			}
+
+			throw new IllegalArgumentException("Unknown buffer pool mode " + str);
+		}
+	}
 
-	private final String host;
+	private final ArrayBlockingQueue<ByteBuffer> buffers;
 
-	private final ArrayBlockingQueue<byte[]> buffers;
+	/**
+	 * The thread evicting files ahead of demand or <code>null</code> if auto eviction is disabled
+	 */
+	private final CacheReclaimer reclaimer;
 
-	private final boolean autoEvict;
+	/**
+	 * The time in milliseconds to wait for a free buffer if auto eviction is enabled
+	 */
+	private final long reclaimTimeout;
 
-	private BufferPool(final DataNodeNameNodeProtocol nameNode, final String host, final boolean autoEvict) {
+	/**
+	 * The absolute name of the file backing the buffers or <code>null</code> if the pool is not memory mapped
+	 */
+	private String mappedFile = null;
 
-		this.nameNode = nameNode;
-		this.host = host;
-		this.autoEvict = autoEvict;
+	/**
+	 * The offsets of the memory mapped buffers inside the mapped file, only modified during initialization
+	 */
+	private final Map<ByteBuffer, Long> fileOffsets = new IdentityHashMap<ByteBuffer, Long>();
 
-		final long availableMemoryForBuffers = getSizeOfFreeMemory();
-		final int numberOfBuffers = (int) (availableMemoryForBuffers / ConfigConstants.BUFFER_SIZE);
+	private BufferPool(final DataNodeNameNodeProtocol nameNode, final String host, final boolean autoEvict,
+			final Configuration conf) throws IOException {
 
-		LOG.info("Initialized buffer pool with " + availableMemoryForBuffers + " bytes of memory, creating "
+		final Mode mode = Mode.fromString(conf.get(ConfigConstants.BUFFER_POOL_MODE_KEY,
+			ConfigConstants.DEFAULT_BUFFER_POOL_MODE));
+
+		long capacity = conf.getLong(ConfigConstants.BUFFER_POOL_CAPACITY_KEY,
+			ConfigConstants.DEFAULT_BUFFER_POOL_CAPACITY);
+		if (capacity < 0L) {
+			if (mode != Mode.HEAP) {
+				throw new IllegalStateException("Buffer pool mode " + mode + " requires "
+					+ ConfigConstants.BUFFER_POOL_CAPACITY_KEY + " to be set");
+			}
+			capacity = getSizeOfFreeMemory();
+		}
+
+		final int numberOfBuffers = (int) (capacity / ConfigConstants.BUFFER_SIZE);
+
+		LOG.info("Initialized " + mode + " buffer pool with " + capacity + " bytes of memory, creating "
 			+ numberOfBuffers + " buffers (auto evict " + (autoEvict ? "enabled" : "disabled") + ")");
 
-		this.buffers = new ArrayBlockingQueue<byte[]>(numberOfBuffers);
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, numberOfBuffers));
+
+		switch (mode) {
+		case HEAP:
+			for (int i = 0; i < numberOfBuffers; ++i) {
+				this.buffers.add(ByteBuffer.allocate(ConfigConstants.BUFFER_SIZE));
+			}
+			break;
+		case DIRECT:
+			allocateDirectSlabs(numberOfBuffers);
+			break;
+		case MMAP:
+			allocateMappedSlabs(numberOfBuffers, conf.get(ConfigConstants.BUFFER_POOL_MMAP_FILE_KEY,
+				ConfigConstants.DEFAULT_BUFFER_POOL_MMAP_FILE));
+			break;
+		}
+
+		if (autoEvict) {
+
+			final float lowWatermark = conf.getFloat(ConfigConstants.CACHE_RECLAIM_LOW_WATERMARK_KEY,
+				ConfigConstants.DEFAULT_CACHE_RECLAIM_LOW_WATERMARK);
+			final float highWatermark = conf.getFloat(ConfigConstants.CACHE_RECLAIM_HIGH_WATERMARK_KEY,
+				ConfigConstants.DEFAULT_CACHE_RECLAIM_HIGH_WATERMARK);
+			if (lowWatermark < 0.0f || highWatermark < lowWatermark || highWatermark > 1.0f) {
+				throw new IllegalStateException(ConfigConstants.CACHE_RECLAIM_LOW_WATERMARK_KEY + " and "
+					+ ConfigConstants.CACHE_RECLAIM_HIGH_WATERMARK_KEY + " must satisfy 0 <= low <= high <= 1");
+			}
+
+			this.reclaimTimeout = conf.getLong(ConfigConstants.CACHE_RECLAIM_TIMEOUT_KEY,
+				ConfigConstants.DEFAULT_CACHE_RECLAIM_TIMEOUT);
+			if (this.reclaimTimeout < 0L) {
+				throw new IllegalStateException(ConfigConstants.CACHE_RECLAIM_TIMEOUT_KEY + " must not be negative");
+			}
+
+			// Reclaim at the latest when the pool runs empty
+			final int lowBuffers = Math.max(1, (int) Math.ceil(numberOfBuffers * lowWatermark));
+			final int highBuffers = Math.max(lowBuffers, (int) Math.ceil(numberOfBuffers * highWatermark));
+			this.reclaimer = new CacheReclaimer(this, nameNode, host, lowBuffers, highBuffers);
+			this.reclaimer.start();
+
+		} else {
+			this.reclaimer = null;
+			this.reclaimTimeout = 0L;
+		}
+	}
+
+	private void allocateDirectSlabs(final int numberOfBuffers) {
+
+		int remaining = numberOfBuffers;
+		while (remaining > 0) {
+
+			final int slabSize = (int) Math.min((long) remaining * ConfigConstants.BUFFER_SIZE, MAXIMUM_SLAB_SIZE);
+			remaining -= addSlab(ByteBuffer.allocateDirect(slabSize), -1L);
+		}
+	}
+
+	private void allocateMappedSlabs(final int numberOfBuffers, final String filename) throws IOException {
 
+		final File file = new File(filename);
+		file.deleteOnExit();
+
+		final long fileSize = (long) numberOfBuffers * (long) ConfigConstants.BUFFER_SIZE;
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			raf.setLength(fileSize);
+			final FileChannel fc = raf.getChannel();
+
+			long offset = 0L;
+			while (offset < fileSize) {
+
+				final int slabSize = (int) Math.min(fileSize - offset, MAXIMUM_SLAB_SIZE);
+				addSlab(fc.map(MapMode.READ_WRITE, offset, slabSize), offset);
+				offset += slabSize;
+			}
+
+		} finally {
+			// The mappings remain valid after the file has been closed
+			raf.close();
+		}
+
+		this.mappedFile = file.getAbsolutePath();
+
+		LOG.info("Mapped " + fileSize + " bytes of buffer pool memory from " + file);
+	}
+
+	/**
+	 * Slices the given slab into buffers of {@link ConfigConstants#BUFFER_SIZE} bytes and adds them to the pool.
+	 *
+	 * @param slab
+	 *        the slab to slice
+	 * @param fileOffset
+	 *        the offset of the slab inside the mapped file or <code>-1</code> if the slab is not memory mapped
+	 * @return the number of buffers added to the pool
+	 */
+	private int addSlab(final ByteBuffer slab, final long fileOffset) {
+
+		final int numberOfBuffers = slab.capacity() / ConfigConstants.BUFFER_SIZE;
 		for (int i = 0; i < numberOfBuffers; ++i) {
-			this.buffers.add(new byte[ConfigConstants.BUFFER_SIZE]);
+			slab.limit((i + 1) * ConfigConstants.BUFFER_SIZE);
+			slab.position(i * ConfigConstants.BUFFER_SIZE);
+			final ByteBuffer buffer = slab.slice();
+			if (fileOffset >= 0L) {
+				this.fileOffsets.put(buffer, Long.valueOf(fileOffset + (long) i * ConfigConstants.BUFFER_SIZE));
+			}
+			this.buffers.add(buffer);
 		}
+
+		return numberOfBuffers;
 	}
 
 	/**
 	 * Returns the size of free memory in bytes available to the JVM.
-	 * 
-	 * @return the size of the free memory in bytes available to the JVM or <code>-1</code> if the size cannot be
-	 *         determined
+	 *
+	 * @return the size of the free memory in bytes available to the JVM
 	 */
 	private static long getSizeOfFreeMemory() {
 
@@ -85,12 +251,17 @@ public final class BufferPool {
 			return (long) (tenuredSize * TENURED_POOL_THRESHOLD);
 		}
 
-		throw new IllegalStateException("Could not find tenured gen pool");
+		// Collectors like ZGC do not expose a tenured pool, so fall back to the overall heap
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		LOG.info("Could not find tenured gen pool, using free heap memory (" + freeHeap + ")");
+
+		return (long) (freeHeap * TENURED_POOL_THRESHOLD);
 	}
 
 	/**
 	 * Returns the tenured gen pool.
-	 * 
+	 *
 	 * @return the tenured gen pool or <code>null</code> if so such pool can be
 	 *         found
 	 */
@@ -121,68 +292,87 @@ public final class BufferPool {
 	}
 
 	public static synchronized void initialize(final DataNodeNameNodeProtocol nameNode, final String host,
-			final boolean autoEvict) {
+			final boolean autoEvict, final Configuration conf) throws IOException {
 
 		if (INSTANCE != null) {
 			throw new IllegalStateException("Buffer pool has already been initialized");
 		}
 
-		INSTANCE = new BufferPool(nameNode, host, autoEvict);
+		INSTANCE = new BufferPool(nameNode, host, autoEvict, conf);
 	}
 
-	public byte[] lockBuffer() throws IOException {
+	/**
+	 * Takes a free buffer from the pool. If auto eviction is enabled and the pool is empty, the caller waits until the
+	 * cache reclaimer has freed a buffer or the reclaim timeout has passed.
+	 *
+	 * @return the buffer or <code>null</code> if no buffer is available
+	 * @throws IOException
+	 *         thrown if the calling thread is interrupted while waiting for a buffer
+	 */
+	public ByteBuffer lockBuffer() throws IOException {
 
-		byte[] buffer = this.buffers.poll();
+		ByteBuffer buffer = this.buffers.poll();
 
-		while (buffer == null && this.autoEvict) {
+		if (this.reclaimer != null) {
 
-			// Do cache eviction
-			final EvictionEntry ee;
-			synchronized (this.nameNode) {
-				ee = this.nameNode.getFileToEvict(this.host);
-			}
+			this.reclaimer.checkWatermark(this.buffers.size());
 
-			if (ee == null) {
-				continue;
+			if (buffer == null) {
+				try {
+					buffer = this.buffers.poll(this.reclaimTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+				}
+				if (buffer == null && LOG.isDebugEnabled()) {
+					LOG.debug("No buffer became available within " + this.reclaimTimeout + " ms");
+				}
 			}
+		}
 
-			final PathWrapper pw = ee.getPathWrapper();
-			final Path path = pw.getPath();
+		if (buffer != null) {
+			buffer.clear();
+		}
 
-			if (LOG.isInfoEnabled()) {
-				LOG.info("Evicting " + path + " (" + (ee.isCompressed() ? "compressed" : "uncompressed") + ")");
-			}
+		return buffer;
+	}
 
-			final AbstractCache cache;
-			if (ee.isCompressed()) {
-				cache = CompressedBufferCache.get();
-			} else {
-				cache = UncompressedBufferCache.get();
-			}
+	public void releaseBuffer(final ByteBuffer buffer) {
 
-			final int numberOfBlocks = ee.getNumberOfBlocks();
-			for (int i = 0; i < numberOfBlocks; ++i) {
-				final List<Buffer> evictedBuffers = cache.evict(path, i);
-				if (evictedBuffers != null) {
-					final Iterator<Buffer> it = evictedBuffers.iterator();
-					while (it.hasNext()) {
-						this.buffers.add(it.next().getData());
-					}
-					synchronized (this.nameNode) {
-						this.nameNode.confirmEviction(pw, i, ee.isCompressed(), this.host);
-					}
-				}
-			}
+		this.buffers.add(buffer);
+	}
 
-			buffer = this.buffers.poll();
+	/**
+	 * Returns the absolute name of the file backing the buffers of this pool.
+	 *
+	 * @return the absolute name of the file backing the buffers or <code>null</code> if the pool is not memory mapped
+	 */
+	public String getMappedFile() {
+
+		return this.mappedFile;
+	}
+
+	/**
+	 * Returns the offset of the given buffer inside the file backing this pool.
+	 *
+	 * @param buffer
+	 *        a buffer obtained from this pool
+	 * @return the offset of the buffer inside the mapped file or <code>-1</code> if the buffer is not memory mapped
+	 */
+	public long getFileOffset(final ByteBuffer buffer) {
+
+		final Long offset = this.fileOffsets.get(buffer);
+		if (offset == null) {
+			return -1L;
 		}
 
-		return buffer;
+		return offset.longValue();
 	}
 
-	public void releaseBuffer(final byte[] buffer) {
+	public void shutDown() {
 
-		this.buffers.add(buffer);
+		if (this.reclaimer != null) {
+			this.reclaimer.shutDown();
+		}
 	}
 
 	public int getNumberOfAvailableBuffers() {
@@ -0,0 +1,179 @@
+package edu.berkeley.icsi.cdfs.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Multi-threaded microbenchmark for the block cache index. Each thread repeatedly picks a random block and performs
+ * the same lock/unlock/contains sequence a {@link edu.berkeley.icsi.cdfs.datanode.Connection} performs on a cache
+ * hit. The benchmark is run with 1, 2, 4, ... threads up to the given maximum and reports the throughput for each
+ * thread count.
+ * <p>
+ * Usage: <code>CacheBenchmark [seconds per run] [maximum number of threads]</code>
+ */
+public final class CacheBenchmark {
+
+	private static final int NUMBER_OF_FILES = 256;
+
+	private static final int BLOCKS_PER_FILE = 16;
+
+	private static final class BenchmarkCache extends AbstractCache {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected String getName() {
+
+			return "BenchmarkCache";
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected boolean isCompressed() {
+
+			return false;
+		}
+	}
+
+	private static final class Worker extends Thread {
+
+		private final AbstractCache cache;
+
+		private final Path[] paths;
+
+		private final CountDownLatch startLatch;
+
+		private final AtomicBoolean stop;
+
+		private long numberOfOperations = 0L;
+
+		private int seed;
+
+		private Worker(final AbstractCache cache, final Path[] paths, final CountDownLatch startLatch,
+				final AtomicBoolean stop, final int seed) {
+			this.cache = cache;
+			this.paths = paths;
+			this.startLatch = startLatch;
+			this.stop = stop;
+			this.seed = seed;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+
+			try {
+				this.startLatch.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long ops = 0L;
+			while (!this.stop.get()) {
+
+				final int r = nextRandom();
+				final Path path = this.paths[(r >>> 8) % this.paths.length];
+				final int blockIndex = r & (BLOCKS_PER_FILE - 1);
+
+				if (this.cache.contains(path, blockIndex)) {
+					if (this.cache.lock(path, blockIndex) == null) {
+						throw new IllegalStateException("Block " + blockIndex + " of " + path + " vanished");
+					}
+					this.cache.unlock(path, blockIndex);
+				}
+				ops += 3;
+			}
+
+			this.numberOfOperations = ops;
+		}
+
+		private int nextRandom() {
+
+			// Xorshift, so the random number generator itself does not become a point of contention
+			int x = this.seed;
+			x ^= x << 13;
+			x ^= x >>> 17;
+			x ^= x << 5;
+			this.seed = x;
+
+			return x & Integer.MAX_VALUE;
+		}
+	}
+
+	private CacheBenchmark() {
+	}
+
+	public static void main(final String[] args) throws Exception {
+
+		int seconds = 5;
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+
+		if (args.length > 0) {
+			seconds = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			maxThreads = Integer.parseInt(args[1]);
+		}
+
+		final AbstractCache cache = new BenchmarkCache();
+		final Path[] paths = new Path[NUMBER_OF_FILES];
+		for (int i = 0; i < NUMBER_OF_FILES; ++i) {
+			paths[i] = new Path("/benchmark/file_" + i);
+			for (int j = 0; j < BLOCKS_PER_FILE; ++j) {
+				cache.addCachedBlock(paths[i], j, new ArrayList<Buffer>(0));
+			}
+		}
+
+		// Warm up
+		run(cache, paths, maxThreads, 1);
+
+		double baseline = 0.0;
+		for (int numberOfThreads = 1; numberOfThreads <= maxThreads; numberOfThreads <<= 1) {
+
+			final double throughput = run(cache, paths, numberOfThreads, seconds);
+			if (numberOfThreads == 1) {
+				baseline = throughput;
+			}
+
+			System.out.println(String.format("%3d threads: %12.0f ops/s (speedup %.2f)", numberOfThreads,
+				throughput, throughput / baseline));
+		}
+	}
+
+	private static double run(final AbstractCache cache, final Path[] paths, final int numberOfThreads,
+			final int seconds) throws InterruptedException {
+
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final List<Worker> workers = new ArrayList<Worker>(numberOfThreads);
+
+		for (int i = 0; i < numberOfThreads; ++i) {
+			final Worker worker = new Worker(cache, paths, startLatch, stop, 0x9E3779B9 * (i + 1));
+			workers.add(worker);
+			worker.start();
+		}
+
+		final long start = System.nanoTime();
+		startLatch.countDown();
+		Thread.sleep(seconds * 1000L);
+		stop.set(true);
+
+		long numberOfOperations = 0L;
+		for (final Worker worker : workers) {
+			worker.join();
+			numberOfOperations += worker.numberOfOperations;
+		}
+		final long duration = System.nanoTime() - start;
+
+		return numberOfOperations * 1000000000.0 / duration;
+	}
+}
@@ -0,0 +1,199 @@
+package edu.berkeley.icsi.cdfs.cache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.icsi.cdfs.protocols.DataNodeNameNodeProtocol;
+import edu.berkeley.icsi.cdfs.utils.PathWrapper;
+import edu.berkeley.icsi.cdfs.utils.WritableArrayList;
+
+/**
+ * Evicts blocks from the caches ahead of demand. Once the number of free buffers drops below the low watermark, the
+ * reclaimer asks the name node for blocks to evict until the number of free buffers reaches the high watermark again.
+ * Readers and writers therefore usually find a free buffer without waiting for the name node.
+ */
+final class CacheReclaimer extends Thread {
+
+	private static final Log LOG = LogFactory.getLog(CacheReclaimer.class);
+
+	/**
+	 * The time in milliseconds to wait before trying again after an eviction made no progress
+	 */
+	private static final int RETRY_INTERVAL = 1000;
+
+	private final BufferPool bufferPool;
+
+	private final DataNodeNameNodeProtocol nameNode;
+
+	private final String host;
+
+	private final int lowWatermark;
+
+	private final int highWatermark;
+
+	private boolean reclaimRequested = false;
+
+	/**
+	 * The blocks which could not be evicted in the current round, so the name node chooses others instead
+	 */
+	private final WritableArrayList<CachedBlocks> blocksInUse = new WritableArrayList<CachedBlocks>();
+
+	private volatile boolean shutDownRequested = false;
+
+	CacheReclaimer(final BufferPool bufferPool, final DataNodeNameNodeProtocol nameNode, final String host,
+			final int lowWatermark, final int highWatermark) {
+		super("Cache reclaimer thread");
+
+		this.bufferPool = bufferPool;
+		this.nameNode = nameNode;
+		this.host = host;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+
+		setDaemon(true);
+	}
+
+	/**
+	 * Wakes up the reclaimer if the given number of free buffers is below the low watermark.
+	 */
+	void checkWatermark(final int numberOfAvailableBuffers) {
+
+		if (numberOfAvailableBuffers >= this.lowWatermark) {
+			return;
+		}
+
+		synchronized (this) {
+			if (!this.reclaimRequested) {
+				this.reclaimRequested = true;
+				notify();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+
+		LOG.info("Starting cache reclaimer (low watermark " + this.lowWatermark + ", high watermark "
+			+ this.highWatermark + " buffers)");
+
+		while (!this.shutDownRequested) {
+
+			synchronized (this) {
+				while (!this.reclaimRequested) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				this.reclaimRequested = false;
+			}
+
+			// Blocks in use may have been released in the meantime
+			this.blocksInUse.clear();
+
+			boolean progress = true;
+			while (progress && this.bufferPool.getNumberOfAvailableBuffers() < this.highWatermark) {
+
+				try {
+					progress = evictBlocks();
+				} catch (IOException ioe) {
+					LOG.warn("Cannot reclaim cache memory: " + ioe.getMessage());
+					progress = false;
+				}
+			}
+
+			if (!progress) {
+				// Do not ask the name node again right away, but do not miss a request in the meantime either
+				try {
+					sleep(RETRY_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+				checkWatermark(this.bufferPool.getNumberOfAvailableBuffers());
+			}
+		}
+	}
+
+	/**
+	 * Evicts the blocks chosen by the name node. Blocks which are not cached anymore are confirmed as evicted, blocks
+	 * in use are remembered, so the name node does not choose them again in the current round.
+	 *
+	 * @return <code>true</code> if the name node has chosen blocks, each of which has either been evicted or turned
+	 *         out to be in use, <code>false</code> if there is nothing left to evict
+	 * @throws IOException
+	 *         thrown if an error occurs while communicating with the name node
+	 */
+	private boolean evictBlocks() throws IOException {
+
+		// Only evict as much as is missing up to the high watermark
+		final int numberOfBuffers = Math.max(1, this.highWatermark - this.bufferPool.getNumberOfAvailableBuffers());
+
+		// Incomplete blocks are unknown to the name node and go first, just like incompletely cached files
+		final List<Buffer> incompleteBuffers = UncompressedBufferCache.get().evictIncompleteBlocks(numberOfBuffers);
+		if (!incompleteBuffers.isEmpty()) {
+			final Iterator<Buffer> it = incompleteBuffers.iterator();
+			while (it.hasNext()) {
+				this.bufferPool.releaseBuffer(it.next().getData());
+			}
+			return true;
+		}
+
+		final EvictionEntry ee = this.nameNode.getBlocksToEvict(this.host, numberOfBuffers, this.blocksInUse);
+		if (ee == null) {
+			return false;
+		}
+
+		final PathWrapper pw = ee.getPathWrapper();
+		final Path path = pw.getPath();
+
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Evicting " + ee.getBlockIndices().length + " blocks of " + path + " ("
+				+ (ee.isCompressed() ? "compressed" : "uncompressed") + ")");
+		}
+
+		final AbstractCache cache;
+		if (ee.isCompressed()) {
+			cache = CompressedBufferCache.get();
+		} else {
+			cache = UncompressedBufferCache.get();
+		}
+
+		CachedBlocks inUse = null;
+		final int[] blockIndices = ee.getBlockIndices();
+		for (int i = 0; i < blockIndices.length; ++i) {
+			final List<Buffer> evictedBuffers = cache.evict(path, blockIndices[i]);
+			if (evictedBuffers == null) {
+				if (inUse == null) {
+					inUse = new CachedBlocks(path, ee.isCompressed());
+					this.blocksInUse.add(inUse);
+				}
+				inUse.set(blockIndices[i]);
+				continue;
+			}
+
+			final Iterator<Buffer> it = evictedBuffers.iterator();
+			while (it.hasNext()) {
+				this.bufferPool.releaseBuffer(it.next().getData());
+			}
+			// Also confirms blocks the name node believes to be cached although they are not
+			this.nameNode.confirmEviction(pw, blockIndices[i], ee.isCompressed(), this.host);
+		}
+
+		return true;
+	}
+
+	void shutDown() {
+
+		this.shutDownRequested = true;
+		interrupt();
+	}
+}
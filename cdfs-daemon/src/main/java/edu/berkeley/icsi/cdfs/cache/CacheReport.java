@@ -0,0 +1,78 @@
+package edu.berkeley.icsi.cdfs.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+
+import edu.berkeley.icsi.cdfs.utils.PathWrapper;
+
+/**
+ * Tells the name node that a data node has added a block to or evicted a block from one of its caches.
+ */
+public class CacheReport implements Writable {
+
+	private final PathWrapper pathWrapper;
+
+	private int blockIndex;
+
+	private boolean compressed;
+
+	/**
+	 * <code>true</code> if the block has been cached, <code>false</code> if it has been evicted
+	 */
+	private boolean cached;
+
+	public CacheReport(final Path path, final int blockIndex, final boolean compressed, final boolean cached) {
+		this.pathWrapper = new PathWrapper(path);
+		this.blockIndex = blockIndex;
+		this.compressed = compressed;
+		this.cached = cached;
+	}
+
+	public CacheReport() {
+		this.pathWrapper = new PathWrapper();
+	}
+
+	public PathWrapper getPathWrapper() {
+		return this.pathWrapper;
+	}
+
+	public int getBlockIndex() {
+		return this.blockIndex;
+	}
+
+	public boolean isCompressed() {
+		return this.compressed;
+	}
+
+	public boolean isCached() {
+		return this.cached;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void readFields(final DataInput arg0) throws IOException {
+
+		this.pathWrapper.readFields(arg0);
+		this.blockIndex = arg0.readInt();
+		this.compressed = arg0.readBoolean();
+		this.cached = arg0.readBoolean();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(final DataOutput arg0) throws IOException {
+
+		this.pathWrapper.write(arg0);
+		arg0.writeInt(this.blockIndex);
+		arg0.writeBoolean(this.compressed);
+		arg0.writeBoolean(this.cached);
+	}
+}
@@ -0,0 +1,122 @@
+package edu.berkeley.icsi.cdfs.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+
+import edu.berkeley.icsi.cdfs.utils.PathWrapper;
+
+/**
+ * The blocks of a file a data node holds in one of its caches, encoded as a bitmap over the block indices.
+ */
+public class CachedBlocks implements Writable {
+
+	private final PathWrapper pathWrapper;
+
+	private boolean compressed;
+
+	private long[] words;
+
+	public CachedBlocks(final Path path, final boolean compressed) {
+		this.pathWrapper = new PathWrapper(path);
+		this.compressed = compressed;
+		this.words = new long[1];
+	}
+
+	public CachedBlocks() {
+		this.pathWrapper = new PathWrapper();
+	}
+
+	public PathWrapper getPathWrapper() {
+		return this.pathWrapper;
+	}
+
+	public boolean isCompressed() {
+		return this.compressed;
+	}
+
+	public void set(final int blockIndex) {
+
+		final int word = blockIndex >>> 6;
+		if (word >= this.words.length) {
+			final long[] newWords = new long[Math.max(word + 1, this.words.length << 1)];
+			System.arraycopy(this.words, 0, newWords, 0, this.words.length);
+			this.words = newWords;
+		}
+
+		this.words[word] |= 1L << blockIndex;
+	}
+
+	public boolean get(final int blockIndex) {
+
+		final int word = blockIndex >>> 6;
+		if (word >= this.words.length) {
+			return false;
+		}
+
+		return (this.words[word] & (1L << blockIndex)) != 0L;
+	}
+
+	/**
+	 * Returns the index of the first cached block at or after the given index.
+	 *
+	 * @param fromIndex
+	 *        the block index to start from
+	 * @return the index of the next cached block or <code>-1</code> if there is none
+	 */
+	public int nextSetBit(final int fromIndex) {
+
+		int word = fromIndex >>> 6;
+		if (word >= this.words.length) {
+			return -1;
+		}
+
+		long bits = this.words[word] & (-1L << fromIndex);
+		while (true) {
+			if (bits != 0L) {
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			}
+			if (++word == this.words.length) {
+				return -1;
+			}
+			bits = this.words[word];
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void readFields(final DataInput arg0) throws IOException {
+
+		this.pathWrapper.readFields(arg0);
+		this.compressed = arg0.readBoolean();
+		this.words = new long[arg0.readInt()];
+		for (int i = 0; i < this.words.length; ++i) {
+			this.words[i] = arg0.readLong();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(final DataOutput arg0) throws IOException {
+
+		// Trailing empty words are not transmitted
+		int numberOfWords = this.words.length;
+		while (numberOfWords > 0 && this.words[numberOfWords - 1] == 0L) {
+			--numberOfWords;
+		}
+
+		this.pathWrapper.write(arg0);
+		arg0.writeBoolean(this.compressed);
+		arg0.writeInt(numberOfWords);
+		for (int i = 0; i < numberOfWords; ++i) {
+			arg0.writeLong(this.words[i]);
+		}
+	}
+}
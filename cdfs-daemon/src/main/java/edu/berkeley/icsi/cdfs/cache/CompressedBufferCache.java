@@ -20,4 +20,13 @@ public final class CompressedBufferCache extends AbstractCache {
 
 		return "CompressedCache";
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean isCompressed() {
+
+		return true;
+	}
 }
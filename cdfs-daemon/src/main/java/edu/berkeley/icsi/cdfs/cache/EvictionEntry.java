@@ -9,17 +9,20 @@ import org.apache.hadoop.io.Writable;
 
 import edu.berkeley.icsi.cdfs.utils.PathWrapper;
 
+/**
+ * Names the blocks of a file a data node shall evict from one of its caches.
+ */
 public class EvictionEntry implements Writable {
 
 	private final PathWrapper pathWrapper;
 
-	private int numberOfBlocks;
+	private int[] blockIndices;
 
 	private boolean compressed;
 
-	public EvictionEntry(final Path path, final int numberOfBlocks, final boolean compressed) {
+	public EvictionEntry(final Path path, final int[] blockIndices, final boolean compressed) {
 		this.pathWrapper = new PathWrapper(path);
-		this.numberOfBlocks = numberOfBlocks;
+		this.blockIndices = blockIndices;
 		this.compressed = compressed;
 	}
 
@@ -31,8 +34,8 @@ public class EvictionEntry implements Writable {
 		return this.pathWrapper;
 	}
 
-	public int getNumberOfBlocks() {
-		return this.numberOfBlocks;
+	public int[] getBlockIndices() {
+		return this.blockIndices;
 	}
 
 	public boolean isCompressed() {
@@ -46,7 +49,10 @@ public class EvictionEntry implements Writable {
 	public void readFields(final DataInput arg0) throws IOException {
 
 		this.pathWrapper.readFields(arg0);
-		this.numberOfBlocks = arg0.readInt();
+		this.blockIndices = new int[arg0.readInt()];
+		for (int i = 0; i < this.blockIndices.length; ++i) {
+			this.blockIndices[i] = arg0.readInt();
+		}
 		this.compressed = arg0.readBoolean();
 	}
 
@@ -57,7 +63,10 @@ public class EvictionEntry implements Writable {
 	public void write(final DataOutput arg0) throws IOException {
 
 		this.pathWrapper.write(arg0);
-		arg0.writeInt(this.numberOfBlocks);
+		arg0.writeInt(this.blockIndices.length);
+		for (int i = 0; i < this.blockIndices.length; ++i) {
+			arg0.writeInt(this.blockIndices[i]);
+		}
 		arg0.writeBoolean(this.compressed);
 	}
 }
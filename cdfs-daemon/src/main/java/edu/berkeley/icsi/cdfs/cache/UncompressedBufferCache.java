@@ -20,4 +20,13 @@ public final class UncompressedBufferCache extends AbstractCache {
 
 		return "UncompressedCache";
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean isCompressed() {
+
+		return false;
+	}
 }
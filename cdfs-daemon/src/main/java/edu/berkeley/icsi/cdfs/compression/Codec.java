@@ -0,0 +1,60 @@
+package edu.berkeley.icsi.cdfs.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compression algorithm chunks of a block can be encoded with. The codec's ID is recorded with every chunk, so it
+ * must never change once data has been written with it. Implementations must be thread-safe.
+ */
+public interface Codec {
+
+	/**
+	 * Returns the ID which identifies this codec in the on-disk format.
+	 *
+	 * @return the ID of this codec
+	 */
+	byte getId();
+
+	/**
+	 * Returns the name this codec is configured by.
+	 *
+	 * @return the name of this codec
+	 */
+	String getName();
+
+	/**
+	 * Returns the maximum number of bytes the compression of the given number of bytes can result in.
+	 *
+	 * @param inputLength
+	 *        the number of bytes to compress
+	 * @return the maximum length of the compressed data
+	 */
+	int maxCompressedLength(int inputLength);
+
+	/**
+	 * Checks whether this codec can work on off-heap buffers directly.
+	 *
+	 * @return <code>true</code> if the buffer-based methods may be called with direct buffers, <code>false</code>
+	 *         otherwise
+	 */
+	boolean supportsDirectBuffers();
+
+	int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+			throws IOException;
+
+	int decompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset,
+			int maxOutputLength) throws IOException;
+
+	/**
+	 * Compresses between two direct buffers. Positions and limits of both buffers are left untouched.
+	 */
+	int compress(ByteBuffer input, int inputOffset, int inputLength, ByteBuffer output, int outputOffset)
+			throws IOException;
+
+	/**
+	 * Decompresses between two direct buffers. Positions and limits of both buffers are left untouched.
+	 */
+	int decompress(ByteBuffer input, int inputOffset, int inputLength, ByteBuffer output, int outputOffset,
+			int maxOutputLength) throws IOException;
+}
@@ -0,0 +1,126 @@
+package edu.berkeley.icsi.cdfs.compression;
+
+import java.io.IOException;
+
+/**
+ * Looks up codecs by name or ID and encodes the chunk headers of the on-disk format. A chunk header is a single
+ * integer carrying the ID of the chunk's codec in its most significant byte and the length of the compressed chunk in
+ * the remaining ones. Since Snappy has the ID <code>0</code>, data written before codecs became pluggable remains
+ * readable.
+ */
+public final class Codecs {
+
+	private static final int LENGTH_MASK = 0x00FFFFFF;
+
+	private static final Codec SNAPPY = new SnappyCodec();
+
+	private static final Codec STORED = new StoredCodec();
+
+	private static final Codec LZ4 = new Lz4Codec();
+
+	private static final Codec ZSTD = new ZstdCodec(ZstdCodec.DEFAULT_LEVEL);
+
+	private Codecs() {
+	}
+
+	public static Codec getDefault() {
+
+		return SNAPPY;
+	}
+
+	public static Codec getStored() {
+
+		return STORED;
+	}
+
+	/**
+	 * Returns the codec with the given ID.
+	 *
+	 * @param id
+	 *        the ID of the codec as recorded in the on-disk format
+	 * @return the codec with the given ID
+	 * @throws IOException
+	 *         thrown if no codec with the given ID exists or the codec cannot be used on this node
+	 */
+	public static Codec forId(final byte id) throws IOException {
+
+		switch (id) {
+		case SnappyCodec.ID:
+			return SNAPPY;
+		case StoredCodec.ID:
+			return STORED;
+		case Lz4Codec.ID:
+			return LZ4;
+		case ZstdCodec.ID:
+			// Data written elsewhere may use zstd even though the node was not configured for it
+			try {
+				ZstdCodec.checkAvailable();
+			} catch (IllegalStateException e) {
+				throw new IOException("Codec zstd not available: " + e.getMessage());
+			}
+			return ZSTD;
+		default:
+			throw new IOException("Unknown codec ID " + id);
+		}
+	}
+
+	/**
+	 * Returns the codec with the given name, which is one of <code>snappy</code>, <code>lz4</code>,
+	 * <code>zstd</code>, <code>zstd:&lt;level&gt;</code> or <code>stored</code>. An empty name or <code>null</code>
+	 * selects the default codec.
+	 *
+	 * @param name
+	 *        the name of the codec
+	 * @return the codec with the given name
+	 */
+	public static Codec forName(final String name) {
+
+		if (name == null || name.isEmpty()) {
+			return getDefault();
+		}
+
+		final String n = name.trim().toLowerCase();
+		if ("snappy".equals(n)) {
+			return SNAPPY;
+		}
+		if ("stored".equals(n)) {
+			return STORED;
+		}
+		if ("lz4".equals(n)) {
+			return LZ4;
+		}
+		if ("zstd".equals(n)) {
+			ZstdCodec.checkAvailable();
+			return ZSTD;
+		}
+		if (n.startsWith("zstd:")) {
+			ZstdCodec.checkAvailable();
+			try {
+				return new ZstdCodec(Integer.parseInt(n.substring(5)));
+			} catch (NumberFormatException e) {
+				throw new IllegalStateException("Invalid zstd level in codec name " + name);
+			}
+		}
+
+		throw new IllegalStateException("Unknown codec " + name);
+	}
+
+	public static int encodeChunkHeader(final Codec codec, final int compressedLength) {
+
+		if ((compressedLength & ~LENGTH_MASK) != 0) {
+			throw new IllegalStateException("Chunk of " + compressedLength + " bytes is too large to be encoded");
+		}
+
+		return (codec.getId() << 24) | compressedLength;
+	}
+
+	public static byte getCodecId(final int chunkHeader) {
+
+		return (byte) (chunkHeader >>> 24);
+	}
+
+	public static int getChunkLength(final int chunkHeader) {
+
+		return chunkHeader & LENGTH_MASK;
+	}
+}
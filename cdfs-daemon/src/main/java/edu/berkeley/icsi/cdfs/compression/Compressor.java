@@ -1,25 +1,92 @@
 package edu.berkeley.icsi.cdfs.compression;
 
 import java.io.IOException;
-
-import org.xerial.snappy.Snappy;
+import java.nio.ByteBuffer;
 
 public final class Compressor {
 
-	private final byte[] compressedBuffer;
+	private final int bufferSize;
+
+	private byte[] stagingBuffer = null;
+
+	private byte[] inputStagingBuffer = null;
+
+	private ByteBuffer directStagingBuffer = null;
 
 	public Compressor(final int bufferSize) {
 
-		this.compressedBuffer = new byte[Snappy.maxCompressedLength(bufferSize)];
+		this.bufferSize = bufferSize;
 	}
 
-	public int compress(final byte[] input, final int inputLength) throws IOException {
+	/**
+	 * Compresses the first <code>inputLength</code> bytes of the input buffer with the given codec and writes the
+	 * result to the output buffer starting at index <code>0</code>. Positions and limits of both buffers are left
+	 * untouched. Heap and off-heap buffers can be mixed, in which case the compressed data is staged in a buffer of
+	 * the input's kind.
+	 *
+	 * @param codec
+	 *        the codec to compress with
+	 * @param input
+	 *        the buffer to compress
+	 * @param inputLength
+	 *        the number of bytes to compress, starting at index <code>0</code>
+	 * @param output
+	 *        the buffer to write the compressed data to, must be able to hold
+	 *        {@link Codec#maxCompressedLength(int)} bytes
+	 * @return the number of compressed bytes
+	 * @throws IOException
+	 *         thrown if an error occurs during compression
+	 */
+	public int compress(final Codec codec, final ByteBuffer input, final int inputLength, final ByteBuffer output)
+			throws IOException {
 
-		return Snappy.compress(input, 0, inputLength, this.compressedBuffer, 0);
+		if (input.hasArray() && output.hasArray()) {
+			return codec.compress(input.array(), input.arrayOffset(), inputLength, output.array(),
+				output.arrayOffset());
+		}
+
+		if (input.isDirect() && output.isDirect() && codec.supportsDirectBuffers()) {
+			return codec.compress(input, 0, inputLength, output, 0);
+		}
+
+		final int numberOfCompressedBytes;
+		if (input.isDirect() && codec.supportsDirectBuffers()) {
+			// Compress off-heap and copy the result to the heap output
+			final int maxLength = codec.maxCompressedLength(this.bufferSize);
+			if (this.directStagingBuffer == null || this.directStagingBuffer.capacity() < maxLength) {
+				this.directStagingBuffer = ByteBuffer.allocateDirect(maxLength);
+			}
+			numberOfCompressedBytes = codec.compress(input, 0, inputLength, this.directStagingBuffer, 0);
+			this.directStagingBuffer.position(0);
+			this.directStagingBuffer.limit(numberOfCompressedBytes);
+			this.directStagingBuffer.get(output.array(), output.arrayOffset(), numberOfCompressedBytes);
+			this.directStagingBuffer.clear();
+		} else if (input.hasArray()) {
+			// Compress on the heap and copy the result to the off-heap output
+			this.stagingBuffer = getStagingBuffer(this.stagingBuffer, codec.maxCompressedLength(this.bufferSize));
+			numberOfCompressedBytes = codec.compress(input.array(), input.arrayOffset(), inputLength,
+				this.stagingBuffer, 0);
+			final ByteBuffer out = output.duplicate();
+			out.clear();
+			out.put(this.stagingBuffer, 0, numberOfCompressedBytes);
+		} else {
+			// The codec only works on the heap, so stage the off-heap input there
+			this.inputStagingBuffer = getStagingBuffer(this.inputStagingBuffer, this.bufferSize);
+			final ByteBuffer in = input.duplicate();
+			in.clear();
+			in.get(this.inputStagingBuffer, 0, inputLength);
+			return compress(codec, ByteBuffer.wrap(this.inputStagingBuffer), inputLength, output);
+		}
+
+		return numberOfCompressedBytes;
 	}
 
-	public byte[] getCompressedBuffer() {
+	private static byte[] getStagingBuffer(final byte[] stagingBuffer, final int minimumSize) {
+
+		if (stagingBuffer == null || stagingBuffer.length < minimumSize) {
+			return new byte[minimumSize];
+		}
 
-		return this.compressedBuffer;
+		return stagingBuffer;
 	}
 }
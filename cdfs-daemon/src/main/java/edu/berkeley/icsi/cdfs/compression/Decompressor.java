@@ -1,15 +1,74 @@
 package edu.berkeley.icsi.cdfs.compression;
 
 import java.io.IOException;
-
-import org.xerial.snappy.Snappy;
+import java.nio.ByteBuffer;
 
 public final class Decompressor {
 
-	public int decompress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output)
-			throws IOException {
+	private byte[] stagingBuffer = null;
+
+	private byte[] outputStagingBuffer = null;
+
+	/**
+	 * Decompresses <code>inputLength</code> bytes of the input buffer starting at <code>inputOffset</code> with the
+	 * given codec and writes the result to the output buffer starting at index <code>0</code>. Positions and limits of
+	 * both buffers are left untouched. Heap and off-heap buffers can be mixed, in which case one side is staged
+	 * through a heap array.
+	 *
+	 * @return the number of decompressed bytes
+	 */
+	public int decompress(final Codec codec, final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output) throws IOException {
+
+		final int maxOutputLength = output.capacity();
+
+		if (input.hasArray() && output.hasArray()) {
+			return codec.decompress(input.array(), input.arrayOffset() + inputOffset, inputLength, output.array(),
+				output.arrayOffset(), maxOutputLength);
+		}
+
+		if (input.isDirect() && output.isDirect() && codec.supportsDirectBuffers()) {
+			return codec.decompress(input, inputOffset, inputLength, output, 0, maxOutputLength);
+		}
 
-		return Snappy.uncompress(input, inputOffset, inputLength, output, 0);
+		// Stage the off-heap input on the heap
+		final byte[] in;
+		final int inOffset;
+		if (input.hasArray()) {
+			in = input.array();
+			inOffset = input.arrayOffset() + inputOffset;
+		} else {
+			this.stagingBuffer = getStagingBuffer(this.stagingBuffer, inputLength);
+			final ByteBuffer src = input.duplicate();
+			src.limit(inputOffset + inputLength);
+			src.position(inputOffset);
+			src.get(this.stagingBuffer, 0, inputLength);
+			in = this.stagingBuffer;
+			inOffset = 0;
+		}
+
+		if (output.hasArray()) {
+			return codec.decompress(in, inOffset, inputLength, output.array(), output.arrayOffset(),
+				maxOutputLength);
+		}
+
+		// Decompress to the heap and copy the result to the off-heap output
+		this.outputStagingBuffer = getStagingBuffer(this.outputStagingBuffer, maxOutputLength);
+		final int numberOfUncompressedBytes = codec.decompress(in, inOffset, inputLength, this.outputStagingBuffer,
+			0, maxOutputLength);
+		final ByteBuffer out = output.duplicate();
+		out.clear();
+		out.put(this.outputStagingBuffer, 0, numberOfUncompressedBytes);
+
+		return numberOfUncompressedBytes;
 	}
 
+	private static byte[] getStagingBuffer(final byte[] stagingBuffer, final int minimumSize) {
+
+		if (stagingBuffer == null || stagingBuffer.length < minimumSize) {
+			return new byte[minimumSize];
+		}
+
+		return stagingBuffer;
+	}
 }
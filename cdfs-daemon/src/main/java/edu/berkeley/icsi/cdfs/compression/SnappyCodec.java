@@ -0,0 +1,110 @@
+package edu.berkeley.icsi.cdfs.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * The codec all data has been written with before codecs became pluggable, so it must keep the ID <code>0</code>.
+ */
+final class SnappyCodec implements Codec {
+
+	static final byte ID = 0;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte getId() {
+
+		return ID;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "snappy";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int maxCompressedLength(final int inputLength) {
+
+		return Snappy.maxCompressedLength(inputLength);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean supportsDirectBuffers() {
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+			final int outputOffset) throws IOException {
+
+		return Snappy.compress(input, inputOffset, inputLength, output, outputOffset);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int decompress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+			final int outputOffset, final int maxOutputLength) throws IOException {
+
+		if (Snappy.uncompressedLength(input, inputOffset, inputLength) > maxOutputLength) {
+			throw new IOException("Decompressed chunk exceeds " + maxOutputLength + " bytes");
+		}
+
+		return Snappy.uncompress(input, inputOffset, inputLength, output, outputOffset);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compress(final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output, final int outputOffset) throws IOException {
+
+		// Snappy works on the region between position and limit
+		final ByteBuffer in = input.duplicate();
+		in.limit(inputOffset + inputLength);
+		in.position(inputOffset);
+		final ByteBuffer out = output.duplicate();
+		out.clear();
+		out.position(outputOffset);
+
+		return Snappy.compress(in, out);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int decompress(final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output, final int outputOffset, final int maxOutputLength) throws IOException {
+
+		final ByteBuffer in = input.duplicate();
+		in.limit(inputOffset + inputLength);
+		in.position(inputOffset);
+		final ByteBuffer out = output.duplicate();
+		out.clear();
+		out.limit(outputOffset + maxOutputLength);
+		out.position(outputOffset);
+
+		return Snappy.uncompress(in, out);
+	}
+}
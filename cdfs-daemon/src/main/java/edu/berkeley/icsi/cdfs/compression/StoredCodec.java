@@ -0,0 +1,116 @@
+package edu.berkeley.icsi.cdfs.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stores chunks as they are. Meant for data which does not compress, so reading it costs no more than a copy.
+ */
+final class StoredCodec implements Codec {
+
+	static final byte ID = 1;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte getId() {
+
+		return ID;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "stored";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int maxCompressedLength(final int inputLength) {
+
+		return inputLength;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean supportsDirectBuffers() {
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+			final int outputOffset) {
+
+		System.arraycopy(input, inputOffset, output, outputOffset, inputLength);
+
+		return inputLength;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int decompress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+			final int outputOffset, final int maxOutputLength) throws IOException {
+
+		if (inputLength > maxOutputLength) {
+			throw new IOException("Stored chunk exceeds " + maxOutputLength + " bytes");
+		}
+
+		System.arraycopy(input, inputOffset, output, outputOffset, inputLength);
+
+		return inputLength;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compress(final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output, final int outputOffset) {
+
+		copy(input, inputOffset, inputLength, output, outputOffset);
+
+		return inputLength;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int decompress(final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output, final int outputOffset, final int maxOutputLength) throws IOException {
+
+		if (inputLength > maxOutputLength) {
+			throw new IOException("Stored chunk exceeds " + maxOutputLength + " bytes");
+		}
+
+		copy(input, inputOffset, inputLength, output, outputOffset);
+
+		return inputLength;
+	}
+
+	private static void copy(final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output, final int outputOffset) {
+
+		final ByteBuffer in = input.duplicate();
+		in.limit(inputOffset + inputLength);
+		in.position(inputOffset);
+		final ByteBuffer out = output.duplicate();
+		out.clear();
+		out.position(outputOffset);
+		out.put(in);
+	}
+}
@@ -0,0 +1,128 @@
+package edu.berkeley.icsi.cdfs.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.github.luben.zstd.Zstd;
+
+/**
+ * Zstandard trades compression speed for ratio depending on its level, which makes it the choice for cold data. The
+ * level is not needed to decompress, so all levels share one ID.
+ */
+final class ZstdCodec implements Codec {
+
+	static final byte ID = 3;
+
+	static final int DEFAULT_LEVEL = 3;
+
+	private final int level;
+
+	ZstdCodec(final int level) {
+
+		this.level = level;
+	}
+
+	/**
+	 * Makes sure zstd-jni can be used in this JVM. Its classes are built for Java 7 and load a native library when
+	 * they are initialized.
+	 */
+	static void checkAvailable() {
+
+		try {
+			Class.forName("com.github.luben.zstd.Zstd");
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Zstd is not available: " + e.getMessage());
+		} catch (LinkageError e) {
+			throw new IllegalStateException("Zstd is not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte getId() {
+
+		return ID;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "zstd:" + this.level;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int maxCompressedLength(final int inputLength) {
+
+		return (int) Zstd.compressBound(inputLength);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean supportsDirectBuffers() {
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+			final int outputOffset) throws IOException {
+
+		return checkResult(Zstd.compressByteArray(output, outputOffset, output.length - outputOffset, input,
+			inputOffset, inputLength, this.level));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int decompress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+			final int outputOffset, final int maxOutputLength) throws IOException {
+
+		return checkResult(Zstd.decompressByteArray(output, outputOffset, maxOutputLength, input, inputOffset,
+			inputLength));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compress(final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output, final int outputOffset) throws IOException {
+
+		return checkResult(Zstd.compressDirectByteBuffer(output, outputOffset, output.capacity() - outputOffset,
+			input, inputOffset, inputLength, this.level));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int decompress(final ByteBuffer input, final int inputOffset, final int inputLength,
+			final ByteBuffer output, final int outputOffset, final int maxOutputLength) throws IOException {
+
+		return checkResult(Zstd.decompressDirectByteBuffer(output, outputOffset, maxOutputLength, input,
+			inputOffset, inputLength));
+	}
+
+	private static int checkResult(final long result) throws IOException {
+
+		if (Zstd.isError(result)) {
+			throw new IOException("Zstd failed: " + Zstd.getErrorName(result));
+		}
+
+		return (int) result;
+	}
+}
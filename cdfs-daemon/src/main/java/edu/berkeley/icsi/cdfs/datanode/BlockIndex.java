@@ -0,0 +1,191 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import edu.berkeley.icsi.cdfs.utils.NumberUtils;
+
+/**
+ * The index footer of a block file in HDFS. For every chunk of the block, it records the offset of the chunk's
+ * uncompressed data within the block, the offset of the chunk's header within the file and a CRC32 checksum of the
+ * chunk's data. The codec of each chunk is part of the chunk header the file offset points to.
+ * <p>
+ * The footer follows the last chunk and starts with a chunk header carrying the reserved ID {@link #MARKER}, so
+ * sequential readers know where the chunks end. Its last sixteen bytes are the uncompressed length of the block, the
+ * number of chunks and a magic number, so random readers can locate it from the end of the file. Block files written
+ * before the index was introduced have no footer.
+ */
+final class BlockIndex {
+
+	/**
+	 * The codec ID which marks the chunk header of the footer
+	 */
+	static final byte MARKER = (byte) 0xFF;
+
+	private static final long MAGIC = 0x4344465349445831L;
+
+	private static final int ENTRY_SIZE = 12;
+
+	private static final int TRAILER_SIZE = 16;
+
+	private int numberOfChunks = 0;
+
+	private int[] uncompressedOffsets;
+
+	private int[] fileOffsets;
+
+	private int[] checksums;
+
+	private int uncompressedLength = 0;
+
+	BlockIndex() {
+		this(64);
+	}
+
+	private BlockIndex(final int initialCapacity) {
+
+		this.uncompressedOffsets = new int[initialCapacity];
+		this.fileOffsets = new int[initialCapacity];
+		this.checksums = new int[initialCapacity];
+	}
+
+	/**
+	 * Records the next chunk of the block.
+	 */
+	void addChunk(final int fileOffset, final int uncompressedLength, final int checksum) {
+
+		if (this.numberOfChunks == this.fileOffsets.length) {
+			final int newCapacity = 2 * this.fileOffsets.length;
+			this.uncompressedOffsets = Arrays.copyOf(this.uncompressedOffsets, newCapacity);
+			this.fileOffsets = Arrays.copyOf(this.fileOffsets, newCapacity);
+			this.checksums = Arrays.copyOf(this.checksums, newCapacity);
+		}
+
+		this.uncompressedOffsets[this.numberOfChunks] = this.uncompressedLength;
+		this.fileOffsets[this.numberOfChunks] = fileOffset;
+		this.checksums[this.numberOfChunks] = checksum;
+		++this.numberOfChunks;
+
+		this.uncompressedLength += uncompressedLength;
+	}
+
+	int getNumberOfChunks() {
+
+		return this.numberOfChunks;
+	}
+
+	int getUncompressedOffset(final int chunk) {
+
+		return this.uncompressedOffsets[chunk];
+	}
+
+	int getFileOffset(final int chunk) {
+
+		return this.fileOffsets[chunk];
+	}
+
+	int getChecksum(final int chunk) {
+
+		return this.checksums[chunk];
+	}
+
+	int getUncompressedLength() {
+
+		return this.uncompressedLength;
+	}
+
+	/**
+	 * Returns the chunk which contains the given offset of the uncompressed block.
+	 *
+	 * @return the index of the chunk or <code>-1</code> if the offset lies beyond the end of the block
+	 */
+	int findChunk(final long uncompressedOffset) {
+
+		if (uncompressedOffset < 0L || uncompressedOffset >= this.uncompressedLength) {
+			return -1;
+		}
+
+		int low = 0;
+		int high = this.numberOfChunks - 1;
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (this.uncompressedOffsets[mid] <= uncompressedOffset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		return low;
+	}
+
+	void write(final OutputStream outputStream) throws IOException {
+
+		final int bodyLength = this.numberOfChunks * ENTRY_SIZE + TRAILER_SIZE;
+		final byte[] footer = new byte[4 + bodyLength];
+
+		NumberUtils.integerToByteArray(((MARKER & 0xFF) << 24) | bodyLength, footer, 0);
+		int pos = 4;
+		for (int i = 0; i < this.numberOfChunks; ++i) {
+			NumberUtils.integerToByteArray(this.uncompressedOffsets[i], footer, pos);
+			NumberUtils.integerToByteArray(this.fileOffsets[i], footer, pos + 4);
+			NumberUtils.integerToByteArray(this.checksums[i], footer, pos + 8);
+			pos += ENTRY_SIZE;
+		}
+		NumberUtils.integerToByteArray(this.uncompressedLength, footer, pos);
+		NumberUtils.integerToByteArray(this.numberOfChunks, footer, pos + 4);
+		NumberUtils.longToByteArray(MAGIC, footer, pos + 8);
+
+		outputStream.write(footer);
+	}
+
+	/**
+	 * Reads the index footer of the given block file.
+	 *
+	 * @param inputStream
+	 *        the stream to read the block file from, its position is not changed
+	 * @param fileLength
+	 *        the length of the block file
+	 * @return the index of the block or <code>null</code> if the block file has no footer
+	 * @throws IOException
+	 *         thrown if an error occurs while reading the footer
+	 */
+	static BlockIndex read(final FSDataInputStream inputStream, final long fileLength) throws IOException {
+
+		if (fileLength < 4 + TRAILER_SIZE) {
+			return null;
+		}
+
+		final byte[] trailer = new byte[TRAILER_SIZE];
+		inputStream.readFully(fileLength - TRAILER_SIZE, trailer, 0, TRAILER_SIZE);
+		if (NumberUtils.byteArrayToLong(trailer, 8) != MAGIC) {
+			return null;
+		}
+
+		final int uncompressedLength = NumberUtils.byteArrayToInteger(trailer, 0);
+		final int numberOfChunks = NumberUtils.byteArrayToInteger(trailer, 4);
+		final long bodyLength = (long) numberOfChunks * ENTRY_SIZE;
+		if (numberOfChunks < 0 || bodyLength + TRAILER_SIZE + 4 > fileLength) {
+			throw new IOException("Corrupt index footer with " + numberOfChunks + " chunks");
+		}
+
+		final byte[] body = new byte[(int) bodyLength];
+		inputStream.readFully(fileLength - TRAILER_SIZE - bodyLength, body, 0, body.length);
+
+		final BlockIndex index = new BlockIndex(Math.max(numberOfChunks, 1));
+		int pos = 0;
+		for (int i = 0; i < numberOfChunks; ++i) {
+			index.uncompressedOffsets[i] = NumberUtils.byteArrayToInteger(body, pos);
+			index.fileOffsets[i] = NumberUtils.byteArrayToInteger(body, pos + 4);
+			index.checksums[i] = NumberUtils.byteArrayToInteger(body, pos + 8);
+			pos += ENTRY_SIZE;
+		}
+		index.numberOfChunks = numberOfChunks;
+		index.uncompressedLength = uncompressedLength;
+
+		return index;
+	}
+}
@@ -40,10 +40,13 @@ final class BlockPrefetcher extends Thread {
 
 	private final FileSystem hdfs;
 
+	private final PipelineExecutor pipelineExecutor;
+
 	private volatile boolean shutDownRequested = false;
 
 	BlockPrefetcher(final ConnectionDispatcher connectionDispatcher, final DataNodeNameNodeProtocol nameNode,
-			final PathConverter pathConverter, final String host, final FileSystem hdfs) {
+			final PathConverter pathConverter, final String host, final FileSystem hdfs,
+			final PipelineExecutor pipelineExecutor) {
 		super("Prefetcher thread");
 
 		this.connectionDispatcher = connectionDispatcher;
@@ -51,6 +54,7 @@ final class BlockPrefetcher extends Thread {
 		this.pathConverter = pathConverter;
 		this.host = host;
 		this.hdfs = hdfs;
+		this.pipelineExecutor = pipelineExecutor;
 
 		start();
 	}
@@ -85,9 +89,7 @@ final class BlockPrefetcher extends Thread {
 			// Retrieve list of most popular files
 			final PopularFile popularFiles[];
 			try {
-				synchronized (this.nameNode) {
-					popularFiles = this.nameNode.getPopularFiles(MAXIMUM_NUMBER_OF_FILES);
-				}
+				popularFiles = this.nameNode.getPopularFiles(MAXIMUM_NUMBER_OF_FILES);
 			} catch (IOException ioe) {
 				LOG.error(StringUtils.stringifyException(ioe));
 				continue;
@@ -150,25 +152,32 @@ final class BlockPrefetcher extends Thread {
 				ReadOp readOp = null;
 
 				try {
-					readOp = new ReadOp(null);
-					readOp.readFromHDFSCompressed(this.hdfs, hdfsPath, cacheUncompressed, true);
+					readOp = new ReadOp(null, this.pipelineExecutor);
+					readOp.readFromHDFSCompressed(this.hdfs, hdfsPath, null, null, cacheUncompressed, true, 0L,
+						Long.MAX_VALUE);
 				} catch (EOFException e) {
 				} catch (IOException ioe) {
 					LOG.error(StringUtils.stringifyException(ioe));
 				}
 
+				if (readOp != null && readOp.cacheUncompressedChunks(path, index)) {
+					try {
+						this.nameNode.reportCachedBlock(new PathWrapper(path), index, false, this.host);
+					} catch (IOException e) {
+						LOG.error(StringUtils.stringifyException(e));
+					}
+				}
+
 				if (readOp != null && readOp.isBlockFullyRead(popularBlock.getUncompressedLength())) {
 
 					// See if we had enough buffers to cache the written data
 					final List<Buffer> uncompressedBuffers = readOp.getUncompressedBuffers();
 					if (!uncompressedBuffers.isEmpty()) {
 						if (UncompressedBufferCache.get().addCachedBlock(path, index, uncompressedBuffers)) {
-							synchronized (this.nameNode) {
-								try {
-									this.nameNode.reportCachedBlock(new PathWrapper(path), index, false, this.host);
-								} catch (IOException e) {
-									LOG.error(StringUtils.stringifyException(e));
-								}
+							try {
+								this.nameNode.reportCachedBlock(new PathWrapper(path), index, false, this.host);
+							} catch (IOException e) {
+								LOG.error(StringUtils.stringifyException(e));
 							}
 						}
 					}
@@ -176,12 +185,10 @@ final class BlockPrefetcher extends Thread {
 					final List<Buffer> compressedBuffers = readOp.getCompressedBuffers();
 					if (!compressedBuffers.isEmpty()) {
 						if (CompressedBufferCache.get().addCachedBlock(path, index, compressedBuffers)) {
-							synchronized (this.nameNode) {
-								try {
-									this.nameNode.reportCachedBlock(new PathWrapper(path), index, true, this.host);
-								} catch (IOException e) {
-									LOG.error(StringUtils.stringifyException(e));
-								}
+							try {
+								this.nameNode.reportCachedBlock(new PathWrapper(path), index, true, this.host);
+							} catch (IOException e) {
+								LOG.error(StringUtils.stringifyException(e));
 							}
 						}
 					}
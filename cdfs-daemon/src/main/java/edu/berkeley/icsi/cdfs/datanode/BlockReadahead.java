@@ -0,0 +1,117 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+
+import edu.berkeley.icsi.cdfs.cache.Buffer;
+import edu.berkeley.icsi.cdfs.cache.UncompressedBufferCache;
+import edu.berkeley.icsi.cdfs.protocols.DataNodeNameNodeProtocol;
+import edu.berkeley.icsi.cdfs.utils.PathWrapper;
+
+/**
+ * Reads a block from HDFS into the uncompressed cache while the connection which has started it still streams an
+ * earlier block to its client. The readahead leads the read of the block, so the connection attaches to it once it
+ * gets to the block.
+ */
+final class BlockReadahead implements Callable<Void> {
+
+	private static final Log LOG = LogFactory.getLog(BlockReadahead.class);
+
+	private final InFlightReads inFlightReads;
+
+	private final InFlightReads.Fetch fetch;
+
+	private final PipelineExecutor pipelineExecutor;
+
+	private final DataNodeNameNodeProtocol nameNode;
+
+	private final String host;
+
+	private final FileSystem hdfs;
+
+	private final Path hdfsPath;
+
+	private final long length;
+
+	/**
+	 * Whether the requested range ends before the block, the block is then only cached chunk by chunk
+	 */
+	private final boolean partialBlock;
+
+	/**
+	 * Must be created while holding a block read of the pipeline executor, which the readahead ends when it is done.
+	 */
+	BlockReadahead(final InFlightReads inFlightReads, final InFlightReads.Fetch fetch,
+			final PipelineExecutor pipelineExecutor, final DataNodeNameNodeProtocol nameNode, final String host,
+			final FileSystem hdfs, final Path hdfsPath, final long length, final boolean partialBlock) {
+
+		this.inFlightReads = inFlightReads;
+		this.fetch = fetch;
+		this.pipelineExecutor = pipelineExecutor;
+		this.nameNode = nameNode;
+		this.host = host;
+		this.hdfs = hdfs;
+		this.hdfsPath = hdfsPath;
+		this.length = length;
+		this.partialBlock = partialBlock;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Void call() {
+
+		final Path path = this.fetch.getPath();
+		final int blockIndex = this.fetch.getBlockIndex();
+		final UncompressedBufferCache cache = UncompressedBufferCache.get();
+
+		final Buffer[] cachedChunks = cache.lockChunks(path, blockIndex);
+		final ReadOp readOp = new ReadOp(null, this.pipelineExecutor);
+
+		try {
+			LOG.info("Reading ahead block " + blockIndex + " of " + path);
+			readOp.readFromHDFSCompressed(this.hdfs, this.hdfsPath, cachedChunks, this.fetch, true, false, 0L,
+				this.length);
+		} catch (IOException ioe) {
+			LOG.error(StringUtils.stringifyException(ioe));
+			readOp.releaseBlockBuffers();
+			return null;
+		} finally {
+			this.inFlightReads.end(this.fetch);
+			if (cachedChunks != null) {
+				cache.unlock(path, blockIndex);
+			}
+			this.pipelineExecutor.endBlockRead();
+		}
+
+		boolean blockCached = readOp.cacheUncompressedChunks(path, blockIndex);
+
+		// Block files without an index can only be cached as a whole
+		if (this.partialBlock) {
+			readOp.releaseBlockBuffers();
+		} else if (readOp.isBlockFullyRead(this.length)) {
+			final List<Buffer> uncompressedBuffers = readOp.getUncompressedBuffers();
+			if (!uncompressedBuffers.isEmpty()) {
+				blockCached |= cache.addCachedBlock(path, blockIndex, uncompressedBuffers);
+			}
+		}
+
+		if (blockCached) {
+			try {
+				this.nameNode.reportCachedBlock(new PathWrapper(path), blockIndex, false, this.host);
+			} catch (IOException ioe) {
+				LOG.error(StringUtils.stringifyException(ioe));
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,65 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+/**
+ * Decides which chunks of a write operation are worth compressing. A chunk whose compression saves less than the
+ * configured fraction is stored as it is. After such a chunk, the following chunks are stored without trying to
+ * compress them. The number of skipped chunks doubles with every further miss up to a limit, so incompressible data
+ * costs almost no CPU while a change in the data is still noticed.
+ */
+final class CompressionBypass {
+
+	/**
+	 * The maximum number of chunks stored without trying to compress them
+	 */
+	private static final int MAXIMUM_BACKOFF = 16;
+
+	private final float minimumSavings;
+
+	private int backoff = 0;
+
+	private int chunksToSkip = 0;
+
+	CompressionBypass(final float minimumSavings) {
+
+		if (minimumSavings < 0.0f || minimumSavings >= 1.0f) {
+			throw new IllegalStateException("Minimum savings must be between 0 and 1, but is " + minimumSavings);
+		}
+
+		this.minimumSavings = minimumSavings;
+	}
+
+	/**
+	 * Checks whether the next chunk shall be compressed or stored right away.
+	 *
+	 * @return <code>true</code> if the next chunk shall be compressed, <code>false</code> otherwise
+	 */
+	synchronized boolean tryCompress() {
+
+		if (this.chunksToSkip > 0) {
+			--this.chunksToSkip;
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks whether the result of a compression saves enough to be kept and adjusts the backoff accordingly. Called
+	 * by the pipeline workers, possibly out of order.
+	 *
+	 * @return <code>true</code> if the compressed chunk shall be kept, <code>false</code> if the chunk shall be
+	 *         stored as it is
+	 */
+	synchronized boolean reportCompression(final int length, final int compressedLength) {
+
+		if (compressedLength <= length - (long) (length * this.minimumSavings)) {
+			this.backoff = 0;
+			return true;
+		}
+
+		this.backoff = (this.backoff == 0) ? 1 : Math.min(2 * this.backoff, MAXIMUM_BACKOFF);
+		this.chunksToSkip = this.backoff;
+
+		return false;
+	}
+}
@@ -1,10 +1,8 @@
 package edu.berkeley.icsi.cdfs.datanode;
 
-import java.io.Closeable;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -18,20 +16,29 @@ import edu.berkeley.icsi.cdfs.BlockReadInformation;
 import edu.berkeley.icsi.cdfs.ConnectionMode;
 import edu.berkeley.icsi.cdfs.Header;
 import edu.berkeley.icsi.cdfs.cache.Buffer;
+import edu.berkeley.icsi.cdfs.cache.BufferPool;
 import edu.berkeley.icsi.cdfs.cache.CompressedBufferCache;
 import edu.berkeley.icsi.cdfs.cache.UncompressedBufferCache;
+import edu.berkeley.icsi.cdfs.compression.Codecs;
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.protocols.DataNodeNameNodeProtocol;
+import edu.berkeley.icsi.cdfs.sharedmem.AbstractSharedMemoryComponent;
+import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryConsumer;
+import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryProducer;
 import edu.berkeley.icsi.cdfs.statistics.ReadStatistics;
 import edu.berkeley.icsi.cdfs.utils.PathConverter;
 import edu.berkeley.icsi.cdfs.utils.PathWrapper;
 import edu.berkeley.icsi.cdfs.utils.WritableArrayList;
 
-final class Connection extends Thread {
+/**
+ * Serves a single stream of a client session once its header has been received. Connections run on the data node's
+ * bounded pool of connection workers.
+ */
+final class Connection implements Runnable {
 
 	private static final Log LOG = LogFactory.getLog(Connection.class);
 
-	private final Socket socket;
+	private final Session session;
 
 	private final DataNodeNameNodeProtocol nameNode;
 
@@ -45,19 +52,92 @@ final class Connection extends Thread {
 
 	private final ConnectionDispatcher connectionDispatcher;
 
-	Connection(final Socket socket, final DataNodeNameNodeProtocol nameNode,
-			final Configuration conf, final String host, final FileSystem hdfs, final PathConverter pathConverter,
-			final ConnectionDispatcher connectionDispatcher) {
-		super("DataNodeConnection from " + socket.getRemoteSocketAddress());
+	private final PipelineExecutor pipelineExecutor;
 
-		this.socket = socket;
+	private final InFlightReads inFlightReads;
+
+	Connection(final Session session, final DataNodeNameNodeProtocol nameNode, final Configuration conf,
+			final String host, final FileSystem hdfs, final PathConverter pathConverter,
+			final ConnectionDispatcher connectionDispatcher, final PipelineExecutor pipelineExecutor,
+			final InFlightReads inFlightReads) {
+
+		this.session = session;
 		this.nameNode = nameNode;
 		this.conf = conf;
 		this.host = host;
 		this.hdfs = hdfs;
 		this.pathConverter = pathConverter;
 		this.connectionDispatcher = connectionDispatcher;
-		start();
+		this.pipelineExecutor = pipelineExecutor;
+		this.inFlightReads = inFlightReads;
+	}
+
+	/**
+	 * Starts reading the blocks following the current one from HDFS in the background, as far as the readahead depth,
+	 * the number of concurrent block reads and the free space in the buffer pool allow.
+	 *
+	 * @param path
+	 *        the path of the file
+	 * @param blockReadInformation
+	 *        the blocks of the requested range
+	 * @param next
+	 *        the index of the block after the current one in the given array
+	 * @param bytesRemaining
+	 *        the number of bytes requested after the current block
+	 * @param nextReadahead
+	 *        the index of the first block in the given array which has not been considered for readahead yet
+	 * @return the index of the first block which has not been considered for readahead after this call
+	 */
+	private int startReadahead(final Path path, final BlockReadInformation[] blockReadInformation, final int next,
+			final long bytesRemaining, final int nextReadahead) {
+
+		final int end = Math.min(next + this.pipelineExecutor.getReadaheadDepth(), blockReadInformation.length);
+		final BufferPool bufferPool = BufferPool.get();
+
+		int j = Math.max(next, nextReadahead);
+		long remaining = bytesRemaining;
+		for (int k = next; k < j; ++k) {
+			remaining -= Math.min(blockReadInformation[k].getLength(), remaining);
+		}
+
+		while (j < end && remaining > 0L) {
+
+			final BlockReadInformation bri = blockReadInformation[j];
+			final int blockIndex = bri.getIndex();
+			final long length = Math.min(bri.getLength(), remaining);
+
+			// Read ahead blocks only go to the uncompressed cache
+			if (!bri.cacheUncompressed() || UncompressedBufferCache.get().contains(path, blockIndex)
+				|| CompressedBufferCache.get().contains(path, blockIndex)) {
+				remaining -= length;
+				++j;
+				continue;
+			}
+
+			// Do not take the buffers the streaming blocks need, try again with the next block
+			if (BufferPool.sizeInCache(length) > bufferPool.getAvaiableBufferSpace()) {
+				break;
+			}
+
+			if (!this.pipelineExecutor.tryBeginBlockRead()) {
+				break;
+			}
+
+			final InFlightReads.Fetch fetch = this.inFlightReads.begin(path, blockIndex);
+			if (fetch == null) {
+				// Another connection is reading the block already
+				this.pipelineExecutor.endBlockRead();
+			} else {
+				final Path hdfsPath = this.pathConverter.convert(path, "_" + blockIndex);
+				this.pipelineExecutor.submitIO(new BlockReadahead(this.inFlightReads, fetch, this.pipelineExecutor,
+					this.nameNode, this.host, this.hdfs, hdfsPath, length, length < bri.getLength()));
+			}
+
+			remaining -= length;
+			++j;
+		}
+
+		return j;
 	}
 
 	/**
@@ -66,16 +146,16 @@ final class Connection extends Thread {
 	@Override
 	public void run() {
 
-		// The operation this connection handles
-		Closeable operation = null;
+		// The side of the session's shared memory which has to complete the stream if it has ended cleanly
+		AbstractSharedMemoryComponent endedStream = null;
 
 		// List to hold the statistics
 		final WritableArrayList<ReadStatistics> readStatistics = new WritableArrayList<ReadStatistics>();
 
-		// Read header first
-		try {
+		// The header has already been received by the data node
+		final Header header = this.session.getHeader();
 
-			final Header header = Header.fromInputStream(this.socket.getInputStream());
+		try {
 
 			LOG.info("Starting connection for " + header);
 
@@ -85,8 +165,15 @@ final class Connection extends Thread {
 				int blockIndex = 0;
 				boolean readEOF = false;
 				final PathWrapper cdfsPath = new PathWrapper(header.getPath());
-				final WriteOp writeOp = new WriteOp(this.socket, this.hdfs, this.conf);
-				operation = writeOp;
+				// The client may choose the codec per file, otherwise the data node's default applies
+				String codecName = header.getCodec();
+				if (codecName.isEmpty()) {
+					codecName = this.conf.get(ConfigConstants.COMPRESSION_CODEC_KEY,
+						ConfigConstants.DEFAULT_COMPRESSION_CODEC);
+				}
+				final SharedMemoryConsumer consumer = this.session.getConsumer();
+				final WriteOp writeOp = new WriteOp(consumer, this.hdfs, this.conf, this.pipelineExecutor,
+					Codecs.forName(codecName));
 				while (!readEOF) {
 					final Path hdfsPath = this.pathConverter.convert(header.getPath(), "_" + blockIndex);
 
@@ -94,114 +181,228 @@ final class Connection extends Thread {
 					readEOF = writeOp.write(hdfsPath, ConfigConstants.BLOCK_SIZE);
 
 					// Report block information to name node
-					synchronized (this.nameNode) {
-						this.nameNode.createNewBlock(cdfsPath, new PathWrapper(hdfsPath), blockIndex,
-							writeOp.getUncompressedBytesWrittenInBlock(), writeOp.getCompressedBytesWrittenInBlock());
-					}
+					this.nameNode.createNewBlock(cdfsPath, new PathWrapper(hdfsPath), blockIndex,
+						writeOp.getUncompressedBytesWrittenInBlock(), writeOp.getCompressedBytesWrittenInBlock(),
+						writeOp.getCodec().getId());
 
 					// See if we had enough buffers to cache the written data
 					final List<Buffer> uncompressedBuffers = writeOp.getUncompressedBuffers();
 					if (!uncompressedBuffers.isEmpty()) {
 						if (UncompressedBufferCache.get().addCachedBlock(header.getPath(), blockIndex,
 							uncompressedBuffers)) {
-							synchronized (this.nameNode) {
-								this.nameNode.reportCachedBlock(cdfsPath, blockIndex, false, this.host);
-							}
+							this.nameNode.reportCachedBlock(cdfsPath, blockIndex, false, this.host);
 						}
 					}
 
 					final List<Buffer> compressedBuffers = writeOp.getCompressedBuffers();
 					if (!compressedBuffers.isEmpty()) {
 						if (CompressedBufferCache.get().addCachedBlock(header.getPath(), blockIndex, compressedBuffers)) {
-							synchronized (this.nameNode) {
-								this.nameNode.reportCachedBlock(cdfsPath, blockIndex, true, this.host);
-							}
+							this.nameNode.reportCachedBlock(cdfsPath, blockIndex, true, this.host);
 						}
 					}
 
 					++blockIndex;
 				}
 
+				// Unless the client has ended the stream explicitly, it has closed the connection
+				if (consumer.isEndOfStream()) {
+					endedStream = consumer;
+				}
+
 			} else {
 
 				final PathWrapper cdfsPath = new PathWrapper(header.getPath());
 
-				BlockReadInformation[] blockReadInformation;
-				synchronized (this.nameNode) {
-					blockReadInformation = this.nameNode.getBlockReadInformation(new PathWrapper(header.getPath()),
-						header.getPos(), 0L);
-				}
+				// Without a length the client reads until the end of the file
+				final long requestedLength = (header.getLength() < 0L) ? Long.MAX_VALUE - header.getPos() : header
+					.getLength();
 
-				if (blockReadInformation == null) {
-					throw new IllegalStateException("blockLocations is null");
-				}
+				final BlockReadInformation[] blockReadInformation = this.nameNode.getBlockReadInformation(
+					new PathWrapper(header.getPath()), header.getPos(), requestedLength);
 
-				if (blockReadInformation.length != 1) {
-					throw new IllegalStateException("Length of blockLocations is " + blockReadInformation.length);
-				}
+				// The block index lets the read start at any offset within the first block
+				final boolean noBlocks = (blockReadInformation == null || blockReadInformation.length == 0);
+				final long firstOffsetInBlock = noBlocks ? 0L : header.getPos() - blockReadInformation[0].getOffset();
+				final boolean endOfFile = noBlocks || firstOffsetInBlock < 0L
+					|| firstOffsetInBlock >= blockReadInformation[0].getLength();
 
-				if (header.getPos() != blockReadInformation[0].getOffset()) {
-					throw new IllegalStateException("Unable to seek to position other than block offset");
+				// The client learns about a range outside of the file from a stream without data
+				if (endOfFile) {
+					LOG.info("Position " + header.getPos() + " lies outside of " + header.getPath());
 				}
 
-				final int totalNumberOfBlocks = blockReadInformation[0].getTotalNumberOfBlocks();
-				int blockIndex = blockReadInformation[0].getIndex();
+				long bytesRemaining = endOfFile ? 0L : requestedLength;
+				int i = 0;
 
-				final ReadOp readOp = new ReadOp(this.socket);
-				operation = readOp;
+				final SharedMemoryProducer producer = this.session.getProducer();
+				final ReadOp readOp = new ReadOp(producer, this.pipelineExecutor);
 				boolean runLoop = true;
 
-				final boolean cacheUncompressed = blockReadInformation[0].cacheUncompressed();
-				final boolean cacheCompressed = blockReadInformation[0].cacheCompressed();
+				// The index of the next block to consider for readahead
+				int nextReadahead = 1;
 
-				while ((blockIndex < totalNumberOfBlocks) && runLoop) {
+				while ((bytesRemaining > 0L) && (i < blockReadInformation.length) && runLoop) {
 
-					// Determine the expected length of the block
-					final long blockLength = (blockIndex == blockReadInformation[0].getIndex()) ? blockReadInformation[0]
-						.getLength()
-						: -1L;
-					LOG.info("Determined length of block " + blockIndex + " to be " + blockLength + " bytes");
+					// Limit the number of blocks the data node reads at the same time
+					this.pipelineExecutor.beginBlockRead();
+					try {
+						// Determine the range of the block to read, a partial block is only cached chunk by chunk
+						final int blockIndex = blockReadInformation[i].getIndex();
+						final long offsetInBlock = (i == 0) ? firstOffsetInBlock : 0L;
+						final long blockLength = Math.min(blockReadInformation[i].getLength() - offsetInBlock,
+							bytesRemaining);
+						final boolean partialBlock = (offsetInBlock > 0L)
+							|| (blockLength < blockReadInformation[i].getLength());
+						final boolean cacheUncompressedChunks = blockReadInformation[i].cacheUncompressed();
+						final boolean cacheUncompressed = cacheUncompressedChunks && !partialBlock;
+						final boolean cacheCompressed = blockReadInformation[i].cacheCompressed() && !partialBlock;
+						LOG.info("Determined length of block " + blockIndex + " to be " + blockLength + " bytes");
+						bytesRemaining -= blockLength;
+						++i;
+
+						nextReadahead = startReadahead(header.getPath(), blockReadInformation, i, bytesRemaining,
+							nextReadahead);
+
+						// See if we have the uncompressed version cached
+						List<Buffer> uncompressedBuffers = UncompressedBufferCache.get().lock(header.getPath(),
+							blockIndex);
+
+						if (uncompressedBuffers != null) {
+							try {
+								readStatistics.add(ReadStatistics.createCacheUncompressed(header.getPath(),
+									blockIndex));
+								LOG.info("Reading block " + blockIndex + " of " + header.getPath()
+									+ " from cache (uncompressed), " + uncompressedBuffers.size() + " buffers");
+								readOp.readFromCacheUncompressed(uncompressedBuffers, offsetInBlock, blockLength);
+							} catch (EOFException e) {
+								if (LOG.isDebugEnabled()) {
+									LOG.debug("Caught EOFException from readFromCacheUncompressed after " +
+										+readOp.getNumberOfBytesRead() + " bytes");
+								}
+								runLoop = false;
+							} finally {
+								UncompressedBufferCache.get().unlock(header.getPath(), blockIndex);
+							}
 
-					// See if we have the uncompressed version cached
-					List<Buffer> uncompressedBuffers = UncompressedBufferCache.get().lock(header.getPath(), blockIndex);
+							continue;
+						}
 
-					if (uncompressedBuffers != null) {
-						try {
-							readStatistics.add(ReadStatistics.createCacheUncompressed(header.getPath(), blockIndex));
-							LOG.info("Reading block " + blockIndex + " of " + header.getPath()
-								+ " from cache (uncompressed), " + uncompressedBuffers.size() + " buffers");
-							readOp.readFromCacheUncompressed(uncompressedBuffers);
-						} catch (EOFException e) {
-							if (LOG.isDebugEnabled()) {
-								LOG.debug("Caught EOFException from readFromCacheUncompressed after " +
-									+readOp.getNumberOfBytesRead() + " bytes");
+						// See if we have the compressed version cached
+						List<Buffer> compressedBuffers = CompressedBufferCache.get().lock(header.getPath(),
+							blockIndex);
+						if (compressedBuffers != null) {
+							try {
+								readStatistics.add(ReadStatistics.createCacheCompressed(header.getPath(), blockIndex));
+								LOG.info("Reading block " + blockIndex + " of " + header.getPath()
+									+ " from cache (compressed), " + compressedBuffers.size() + " buffers");
+								readOp.readFromCacheCompressed(compressedBuffers, cacheUncompressed, offsetInBlock,
+									blockLength);
+							} catch (EOFException e) {
+								if (LOG.isDebugEnabled()) {
+									LOG.debug("Caught EOFException from readFromCacheCompressed after "
+										+ readOp.getNumberOfBytesRead() + " bytes");
+								}
+								runLoop = false;
+							} finally {
+								CompressedBufferCache.get().unlock(header.getPath(), blockIndex);
 							}
-							runLoop = false;
-						} finally {
-							UncompressedBufferCache.get().unlock(header.getPath(), blockIndex);
+
+							if (!readOp.isBlockFullyRead(blockLength)) {
+								if (runLoop) {
+									throw new IllegalStateException("No EOFException but incomplete block read");
+								}
+
+								LOG.info("Aborted read of block " + blockIndex + " after "
+									+ readOp.getNumberOfBytesRead() + " bytes");
+								break;
+							}
+
+							// See if we had enough buffers to cache the uncompressed data
+							uncompressedBuffers = readOp.getUncompressedBuffers();
+							if (!uncompressedBuffers.isEmpty()) {
+								if (UncompressedBufferCache.get().addCachedBlock(header.getPath(), blockIndex,
+									uncompressedBuffers)) {
+									this.nameNode.reportCachedBlock(cdfsPath, blockIndex, false, this.host);
+								}
+							}
+
+							continue;
 						}
 
-						++blockIndex;
-						continue;
-					}
+						// We don't have the block cached, need to get it from HDFS, except for the chunks cached so far
+						final Path hdfsPath = this.pathConverter.convert(header.getPath(), "_" + blockIndex);
+
+						// If another connection is reading the block from the start, stream its chunks instead
+						if (offsetInBlock == 0L) {
+							final InFlightReads.Fetch ongoing = this.inFlightReads.find(header.getPath(), blockIndex);
+							if (ongoing != null) {
+								try {
+									readStatistics.add(ReadStatistics.createCacheUncompressed(header.getPath(),
+										blockIndex));
+									LOG.info("Reading block " + blockIndex + " of " + header.getPath()
+										+ " from ongoing read");
+									readOp.readFromFetch(ongoing, this.hdfs, hdfsPath, cacheUncompressedChunks,
+										blockLength);
+								} catch (EOFException e) {
+									if (LOG.isDebugEnabled()) {
+										LOG.debug("Caught EOFException from readFromFetch after "
+											+ readOp.getNumberOfBytesRead() + " bytes");
+									}
+									runLoop = false;
+								}
+
+								if (readOp.cacheUncompressedChunks(header.getPath(), blockIndex)) {
+									this.nameNode.reportCachedBlock(cdfsPath, blockIndex, false, this.host);
+								}
+								readOp.releaseBlockBuffers();
+
+								if (!runLoop) {
+									LOG.info("Aborted read of block " + blockIndex + " after "
+										+ readOp.getNumberOfBytesRead() + " bytes");
+									break;
+								}
+
+								continue;
+							}
+						}
+
+						final Buffer[] cachedChunks = UncompressedBufferCache.get().lockChunks(header.getPath(),
+							blockIndex);
+
+						// Let other connections missing the same block attach to this read
+						InFlightReads.Fetch fetch = null;
+						if (cacheUncompressedChunks && offsetInBlock == 0L) {
+							fetch = this.inFlightReads.begin(header.getPath(), blockIndex);
+						}
 
-					// See if we have the compressed version cached
-					List<Buffer> compressedBuffers = CompressedBufferCache.get().lock(header.getPath(),
-						blockIndex);
-					if (compressedBuffers != null) {
 						try {
-							readStatistics.add(ReadStatistics.createCacheCompressed(header.getPath(), blockIndex));
-							LOG.info("Reading block " + blockIndex + " of " + header.getPath()
-								+ " from cache (compressed), " + compressedBuffers.size() + " buffers");
-							readOp.readFromCacheCompressed(compressedBuffers, cacheUncompressed);
+							readStatistics.add(ReadStatistics.createDisk(header.getPath(), blockIndex));
+							LOG.info("Reading block " + blockIndex + " of " + header.getPath() + " from disk"
+								+ (cachedChunks != null ? " and partially cached chunks" : ""));
+							readOp.readFromHDFSCompressed(this.hdfs, hdfsPath, cachedChunks, fetch,
+								cacheUncompressedChunks, cacheCompressed, offsetInBlock, blockLength);
 						} catch (EOFException e) {
 							if (LOG.isDebugEnabled()) {
-								LOG.debug("Caught EOFException from readFromCacheCompressed after "
+								LOG.debug("Caught EOFException from readFromHDFSCompressed after "
 									+ readOp.getNumberOfBytesRead() + " bytes");
 							}
 							runLoop = false;
+						} catch (FileNotFoundException fnfe) {
+							LOG.error(StringUtils.stringifyException(fnfe));
+							runLoop = false;
+							break;
 						} finally {
-							CompressedBufferCache.get().unlock(header.getPath(), blockIndex);
+							if (fetch != null) {
+								this.inFlightReads.end(fetch);
+							}
+							if (cachedChunks != null) {
+								UncompressedBufferCache.get().unlock(header.getPath(), blockIndex);
+							}
+						}
+
+						// Keep the chunks read so far, even if the client has not read the whole block
+						if (readOp.cacheUncompressedChunks(header.getPath(), blockIndex)) {
+							this.nameNode.reportCachedBlock(cdfsPath, blockIndex, false, this.host);
 						}
 
 						if (!readOp.isBlockFullyRead(blockLength)) {
@@ -214,70 +415,34 @@ final class Connection extends Thread {
 							break;
 						}
 
-						// See if we had enough buffers to cache the uncompressed data
+						// Block files without an index can only be cached as a whole
 						uncompressedBuffers = readOp.getUncompressedBuffers();
-						if (!uncompressedBuffers.isEmpty()) {
+						if (partialBlock) {
+							readOp.releaseBlockBuffers();
+						} else if (!uncompressedBuffers.isEmpty()) {
 							if (UncompressedBufferCache.get().addCachedBlock(header.getPath(), blockIndex,
 								uncompressedBuffers)) {
-								synchronized (this.nameNode) {
-									this.nameNode.reportCachedBlock(cdfsPath, blockIndex, false, this.host);
-								}
-							}
-						}
-
-						++blockIndex;
-						continue;
-					}
-
-					// We don't have the block cached, need to get it from HDFS
-					final Path hdfsPath = this.pathConverter.convert(header.getPath(), "_" + blockIndex);
-
-					try {
-						readStatistics.add(ReadStatistics.createDisk(header.getPath(), blockIndex));
-						LOG.info("Reading block " + blockIndex + " of " + header.getPath() + " from disk");
-						readOp.readFromHDFSCompressed(this.hdfs, hdfsPath, cacheUncompressed, cacheCompressed);
-					} catch (EOFException e) {
-						if (LOG.isDebugEnabled()) {
-							LOG.debug("Caught EOFException from readFromHDFSCompressed after "
-								+ readOp.getNumberOfBytesRead() + " bytes");
-						}
-						runLoop = false;
-					} catch (FileNotFoundException fnfe) {
-						LOG.error(StringUtils.stringifyException(fnfe));
-						break;
-					}
-
-					if (!readOp.isBlockFullyRead(blockLength)) {
-						if (runLoop) {
-							throw new IllegalStateException("No EOFException but incomplete block read");
-						}
-
-						LOG.info("Aborted read of block " + blockIndex + " after " + readOp.getNumberOfBytesRead()
-							+ " bytes");
-						break;
-					}
-
-					// See if we had enough buffers to cache the written data
-					uncompressedBuffers = readOp.getUncompressedBuffers();
-					if (!uncompressedBuffers.isEmpty()) {
-						if (UncompressedBufferCache.get().addCachedBlock(header.getPath(), blockIndex,
-							uncompressedBuffers)) {
-							synchronized (this.nameNode) {
 								this.nameNode.reportCachedBlock(cdfsPath, blockIndex, false, this.host);
 							}
 						}
-					}
 
-					compressedBuffers = readOp.getCompressedBuffers();
-					if (!compressedBuffers.isEmpty()) {
-						if (CompressedBufferCache.get().addCachedBlock(header.getPath(), blockIndex, compressedBuffers)) {
-							synchronized (this.nameNode) {
+						compressedBuffers = readOp.getCompressedBuffers();
+						if (!compressedBuffers.isEmpty()) {
+							if (CompressedBufferCache.get().addCachedBlock(header.getPath(), blockIndex,
+								compressedBuffers)) {
 								this.nameNode.reportCachedBlock(cdfsPath, blockIndex, true, this.host);
 							}
 						}
+					} finally {
+						this.pipelineExecutor.endBlockRead();
 					}
+				}
 
-					++blockIndex;
+				// Tell the client that the requested range is complete
+				if (runLoop) {
+					producer.endStream();
+					producer.waitForACKs();
+					endedStream = producer;
 				}
 			}
 
@@ -287,27 +452,31 @@ final class Connection extends Thread {
 			ioe.printStackTrace();
 		} finally {
 
-			try {
-				// Close the operation
-				if (operation != null) {
-					operation.close();
-				}
-
-				// Close the socket
-				if (this.socket != null) {
-					this.socket.close();
+			// Keep the session for the client's next stream if the current one has ended cleanly
+			boolean keepSession = false;
+			if (endedStream != null) {
+				try {
+					endedStream.finishStream();
+					keepSession = true;
+				} catch (IOException ioe) {
 				}
+			}
 
+			try {
 				// Transmit statistics
-				synchronized (this.nameNode) {
-					this.nameNode.reportReadStatistics(readStatistics, this.host);
-				}
+				this.nameNode.reportReadStatistics(readStatistics, this.host);
 
 			} catch (IOException ioe) {
 			}
 
 			// Remove connection object
 			this.connectionDispatcher.removeConnection(this);
+
+			if (keepSession) {
+				this.connectionDispatcher.resumeSession(this.session);
+			} else {
+				this.session.close();
+			}
 		}
 	}
 }
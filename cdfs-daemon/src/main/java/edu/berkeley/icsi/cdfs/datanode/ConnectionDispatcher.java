@@ -4,5 +4,10 @@ interface ConnectionDispatcher {
 
 	void removeConnection(Connection connection);
 
+	/**
+	 * Waits for the next stream on the given session, whose previous stream has ended cleanly.
+	 */
+	void resumeSession(Session session);
+
 	boolean hasActiveConnections();
 }
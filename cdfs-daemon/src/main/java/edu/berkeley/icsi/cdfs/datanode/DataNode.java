@@ -1,14 +1,28 @@
 package edu.berkeley.icsi.cdfs.datanode;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.logging.Log;
@@ -17,6 +31,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.util.StringUtils;
 
 import edu.berkeley.icsi.cdfs.CDFS;
 import edu.berkeley.icsi.cdfs.cache.BufferPool;
@@ -26,17 +41,51 @@ import edu.berkeley.icsi.cdfs.protocols.DataNodeNameNodeProtocol;
 import edu.berkeley.icsi.cdfs.utils.HostUtils;
 import edu.berkeley.icsi.cdfs.utils.PathConverter;
 
+/**
+ * The data node accepts connections and receives the headers of their streams on a single selector thread. Each
+ * stream is served by one of a bounded pool of workers, afterwards the connection returns to the selector and waits
+ * for the client's next stream. If all workers are busy and too many streams wait for one, the data node stops
+ * accepting connections until a worker becomes available again.
+ */
 public class DataNode implements ConnectionDispatcher {
 
 	private static final Log LOG = LogFactory.getLog(DataNode.class);
 
 	private final Set<Connection> activeConnectons;
 
-	private final ServerSocket serverSocket;
+	private final ServerSocketChannel serverSocketChannel;
+
+	private final Selector selector;
+
+	private final SelectionKey acceptKey;
+
+	private final ThreadPoolExecutor connectionWorkers;
+
+	/**
+	 * The number of streams handed to the workers which have not finished yet
+	 */
+	private final AtomicInteger numberOfBusyConnections = new AtomicInteger(0);
+
+	private final int maximumNumberOfBusyConnections;
+
+	/**
+	 * Sessions whose header is complete, they may block again once their keys are deregistered
+	 */
+	private final List<Session> completedHeaders = new ArrayList<Session>();
+
+	/**
+	 * Sessions waiting for a worker, only accessed by the selector thread
+	 */
+	private final LinkedList<Session> waitingSessions = new LinkedList<Session>();
+
+	/**
+	 * Sessions whose stream has ended, to be registered with the selector again
+	 */
+	private final Queue<Session> resumedSessions = new ConcurrentLinkedQueue<Session>();
 
 	private final PathConverter pathConverter;
 
-	private final DataNodeNameNodeProtocol nameNode;
+	private final NameNodeClient nameNode;
 
 	private final Configuration conf;
 
@@ -46,15 +95,44 @@ public class DataNode implements ConnectionDispatcher {
 
 	private final BlockPrefetcher blockPrefetcher;
 
+	private final PipelineExecutor pipelineExecutor;
+
+	private final InFlightReads inFlightReads = new InFlightReads();
+
 	public DataNode(final Configuration conf) throws IOException {
 
 		LOG.info("Starting CDFS datanode on port " + CDFS.DATANODE_DATA_PORT);
 
 		this.activeConnectons = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
 
-		this.serverSocket = new ServerSocket(CDFS.DATANODE_DATA_PORT);
 		this.conf = conf;
 
+		final int numberOfWorkers = conf.getInt(ConfigConstants.DATANODE_WORKERS_KEY,
+			ConfigConstants.DEFAULT_DATANODE_WORKERS);
+		if (numberOfWorkers < 1) {
+			throw new IllegalStateException(ConfigConstants.DATANODE_WORKERS_KEY + " must be at least 1");
+		}
+		final int numberOfPendingConnections = conf.getInt(ConfigConstants.DATANODE_PENDING_CONNECTIONS_KEY,
+			ConfigConstants.DEFAULT_DATANODE_PENDING_CONNECTIONS);
+		if (numberOfPendingConnections < 0) {
+			throw new IllegalStateException(ConfigConstants.DATANODE_PENDING_CONNECTIONS_KEY
+				+ " must not be negative");
+		}
+
+		// Streams are only handed to the workers while there is room in the queue
+		this.maximumNumberOfBusyConnections = numberOfWorkers + numberOfPendingConnections;
+		this.connectionWorkers = new ThreadPoolExecutor(numberOfWorkers, numberOfWorkers, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(Math.max(numberOfPendingConnections, 1)), new NamedThreadFactory(
+				"DataNode connection worker"));
+		this.connectionWorkers.allowCoreThreadTimeOut(true);
+
+		this.selector = Selector.open();
+		this.serverSocketChannel = ServerSocketChannel.open();
+		this.serverSocketChannel.socket().setReuseAddress(true);
+		this.serverSocketChannel.socket().bind(new InetSocketAddress(CDFS.DATANODE_DATA_PORT));
+		this.serverSocketChannel.configureBlocking(false);
+		this.acceptKey = this.serverSocketChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
 		// Read HDFS default path from configuration
 		final String hdfsString = conf.get(ConfigConstants.HDFS_DEFAULT_NAME_KEY,
 			ConfigConstants.DEFEAULT_HDFS_DEFAULT_NAME);
@@ -77,20 +155,20 @@ public class DataNode implements ConnectionDispatcher {
 
 		this.pathConverter = new PathConverter(hdfsURI);
 
-		this.nameNode = (DataNodeNameNodeProtocol) RPC.getProxy(DataNodeNameNodeProtocol.class, 1,
-			new InetSocketAddress(cdfsURI.getHost(), cdfsURI.getPort()), this.conf);
-
 		this.host = HostUtils.determineHostname();
 		if (this.host == null) {
 			throw new IllegalStateException("Cannot determine hostname");
 		}
 		LOG.info("Determined hostname of datanode: " + this.host);
 
+		this.nameNode = new NameNodeClient((DataNodeNameNodeProtocol) RPC.getProxy(DataNodeNameNodeProtocol.class,
+			1, new InetSocketAddress(cdfsURI.getHost(), cdfsURI.getPort()), this.conf), this.host, conf);
+
 		final boolean autoEvict = conf.getBoolean(ConfigConstants.ENABLE_AUTO_EVICT_KEY,
 			ConfigConstants.DEFAULT_ENABLE_AUTO_EVICT);
 
 		// Initialization of buffer pool at the beginning
-		BufferPool.initialize(this.nameNode, this.host, autoEvict);
+		BufferPool.initialize(this.nameNode, this.host, autoEvict, conf);
 
 		// Register with name node
 		this.nameNode.registerDataNode(this.host, CDFS.DATANODE_DATA_PORT);
@@ -98,20 +176,171 @@ public class DataNode implements ConnectionDispatcher {
 		// Create and store reference to HDFS file system
 		this.hdfs = new Path(hdfsURI).getFileSystem(conf);
 
+		// Create the executor for the read and write pipelines
+		this.pipelineExecutor = new PipelineExecutor(conf);
+
 		// Start the prefetcher thread if enabled
 		this.blockPrefetcher = conf.getBoolean(ConfigConstants.ENABLE_BLOCK_PREFETCHING_KEY,
 			ConfigConstants.DEFAULT_ENABLE_BLOCK_PREFETCHING) ? new BlockPrefetcher(this, this.nameNode,
-			this.pathConverter, this.host, this.hdfs) : null;
+			this.pathConverter, this.host, this.hdfs, this.pipelineExecutor) : null;
 	}
 
 	void run() throws IOException {
 
 		while (true) {
 
-			final Socket socket = this.serverSocket.accept();
+			this.selector.select();
+
+			registerResumedSessions();
+
+			processSelectedKeys();
+
+			while (!this.completedHeaders.isEmpty()) {
+
+				// Canceled keys are deregistered by the next selection, only then the channels may block again
+				this.selector.selectNow();
+
+				final Iterator<Session> it = this.completedHeaders.iterator();
+				while (it.hasNext()) {
+					final Session session = it.next();
+					try {
+						// The operations work on the socket's streams, which require blocking mode
+						session.getChannel().configureBlocking(true);
+						this.waitingSessions.add(session);
+					} catch (IOException ioe) {
+						LOG.error(StringUtils.stringifyException(ioe));
+						session.close();
+					}
+				}
+				this.completedHeaders.clear();
+
+				processSelectedKeys();
+			}
+
+			dispatchWaitingSessions();
+
+			// While streams wait for a worker, further clients are left in the listen backlog
+			final int interestOps = this.waitingSessions.isEmpty() ? SelectionKey.OP_ACCEPT : 0;
+			if (this.acceptKey.interestOps() != interestOps) {
+				LOG.info((interestOps == 0) ? "All workers busy, pausing accept" : "Resuming accept");
+				this.acceptKey.interestOps(interestOps);
+			}
+		}
+	}
+
+	private void processSelectedKeys() throws IOException {
+
+		final Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+
+			final SelectionKey key = it.next();
+			it.remove();
+
+			if (!key.isValid()) {
+				continue;
+			}
 
-			this.activeConnectons.add(new Connection(socket, this.nameNode, this.conf, this.host, this.hdfs,
-				this.pathConverter, this));
+			if (key.isAcceptable()) {
+				accept();
+			} else if (key.isReadable()) {
+				decodeHeader(key);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+
+		while (true) {
+
+			final SocketChannel channel = this.serverSocketChannel.accept();
+			if (channel == null) {
+				return;
+			}
+
+			final Session session = new Session(channel);
+			try {
+				channel.configureBlocking(false);
+				channel.register(this.selector, SelectionKey.OP_READ, session);
+			} catch (IOException ioe) {
+				LOG.error(StringUtils.stringifyException(ioe));
+				session.close();
+			}
+		}
+	}
+
+	private void registerResumedSessions() {
+
+		while (true) {
+
+			final Session session = this.resumedSessions.poll();
+			if (session == null) {
+				return;
+			}
+
+			session.nextStream();
+			try {
+				session.getChannel().configureBlocking(false);
+				session.getChannel().register(this.selector, SelectionKey.OP_READ, session);
+			} catch (IOException ioe) {
+				LOG.error(StringUtils.stringifyException(ioe));
+				session.close();
+			}
+		}
+	}
+
+	private void decodeHeader(final SelectionKey key) {
+
+		final Session session = (Session) key.attachment();
+
+		final boolean complete;
+		try {
+			complete = session.decodeHeader();
+		} catch (EOFException eof) {
+			// The client has closed the connection between two streams
+			key.cancel();
+			session.close();
+			return;
+		} catch (IOException ioe) {
+			LOG.error("Cannot read header from " + session.getChannel().socket().getRemoteSocketAddress() + ": "
+				+ ioe.getMessage());
+			key.cancel();
+			session.close();
+			return;
+		}
+
+		if (complete) {
+			key.cancel();
+			this.completedHeaders.add(session);
+		}
+	}
+
+	private void dispatchWaitingSessions() {
+
+		while (!this.waitingSessions.isEmpty()
+			&& this.numberOfBusyConnections.get() < this.maximumNumberOfBusyConnections) {
+
+			final Session session = this.waitingSessions.removeFirst();
+			final Connection connection = new Connection(session, this.nameNode, this.conf, this.host, this.hdfs,
+				this.pathConverter, this, this.pipelineExecutor, this.inFlightReads);
+			this.numberOfBusyConnections.incrementAndGet();
+			this.activeConnectons.add(connection);
+
+			try {
+				this.connectionWorkers.execute(connection);
+			} catch (RejectedExecutionException ree) {
+				LOG.error("Rejected connection for " + session.getHeader());
+				this.activeConnectons.remove(connection);
+				session.close();
+				connectionFinished();
+			}
+		}
+	}
+
+	private void connectionFinished() {
+
+		// Wake up the selector if streams may wait for a worker
+		if (this.numberOfBusyConnections.getAndDecrement() == this.maximumNumberOfBusyConnections) {
+			this.selector.wakeup();
 		}
 	}
 
@@ -148,6 +377,11 @@ public class DataNode implements ConnectionDispatcher {
 			this.blockPrefetcher.shutDown();
 		}
 
+		this.connectionWorkers.shutdownNow();
+		this.pipelineExecutor.shutDown();
+		BufferPool.get().shutDown();
+		this.nameNode.shutDown();
+
 		if (this.hdfs != null) {
 			try {
 				this.hdfs.close();
@@ -157,7 +391,8 @@ public class DataNode implements ConnectionDispatcher {
 		}
 
 		try {
-			this.serverSocket.close();
+			this.selector.close();
+			this.serverSocketChannel.close();
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
 		}
@@ -170,6 +405,17 @@ public class DataNode implements ConnectionDispatcher {
 	public void removeConnection(final Connection connection) {
 
 		this.activeConnectons.remove(connection);
+		connectionFinished();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void resumeSession(final Session session) {
+
+		this.resumedSessions.add(session);
+		this.selector.wakeup();
 	}
 
 	/**
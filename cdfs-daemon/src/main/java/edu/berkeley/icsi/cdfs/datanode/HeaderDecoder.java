@@ -0,0 +1,103 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.icsi.cdfs.ConnectionMode;
+import edu.berkeley.icsi.cdfs.Header;
+
+/**
+ * Assembles the header of a connection from a non-blocking channel. The decoder never reads beyond the end of the
+ * header, so the remaining data can be consumed from the channel's streams afterwards.
+ */
+final class HeaderDecoder {
+
+	/**
+	 * The maximum length of the path and the codec name in bytes
+	 */
+	private static final int MAXIMUM_FIELD_LENGTH = 4096;
+
+	/**
+	 * Mode and path length
+	 */
+	private static final int PREFIX_LENGTH = 1 + 4;
+
+	/**
+	 * Position, length and codec name length following the path
+	 */
+	private static final int FIXED_FIELDS_LENGTH = 8 + 8 + 4;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(PREFIX_LENGTH);
+
+	private int pathLength = -1;
+
+	private int codecLength = -1;
+
+	/**
+	 * Reads the available bytes of the header from the given channel.
+	 *
+	 * @param channel
+	 *        the channel to read from
+	 * @return the header or <code>null</code> if it is not complete yet
+	 * @throws IOException
+	 *         thrown if the channel is closed before the header is complete or the header is malformed
+	 */
+	Header decode(final ReadableByteChannel channel) throws IOException {
+
+		while (true) {
+
+			if (this.buffer.hasRemaining()) {
+				if (channel.read(this.buffer) < 0) {
+					throw new EOFException("Connection closed before header was complete");
+				}
+				if (this.buffer.hasRemaining()) {
+					return null;
+				}
+			}
+
+			if (this.pathLength < 0) {
+				this.pathLength = checkFieldLength(this.buffer.getInt(1));
+				grow(this.pathLength + FIXED_FIELDS_LENGTH);
+			} else if (this.codecLength < 0) {
+				this.codecLength = checkFieldLength(this.buffer.getInt(this.buffer.position() - 4));
+				grow(this.codecLength);
+			} else {
+				return toHeader();
+			}
+		}
+	}
+
+	private void grow(final int numberOfBytes) {
+
+		final ByteBuffer grown = ByteBuffer.allocate(this.buffer.capacity() + numberOfBytes);
+		this.buffer.flip();
+		grown.put(this.buffer);
+		this.buffer = grown;
+	}
+
+	private Header toHeader() {
+
+		final byte[] data = this.buffer.array();
+		final ConnectionMode mode = ConnectionMode.toConnectionMode(data[0]);
+		final Path path = new Path(new String(data, PREFIX_LENGTH, this.pathLength));
+		final int offset = PREFIX_LENGTH + this.pathLength;
+		final long pos = this.buffer.getLong(offset);
+		final long length = this.buffer.getLong(offset + 8);
+		final String codec = new String(data, offset + FIXED_FIELDS_LENGTH, this.codecLength);
+
+		return new Header(mode, path, pos, length, codec);
+	}
+
+	private static int checkFieldLength(final int length) throws IOException {
+
+		if (length < 0 || length > MAXIMUM_FIELD_LENGTH) {
+			throw new IOException("Invalid field length " + length + " in header");
+		}
+
+		return length;
+	}
+}
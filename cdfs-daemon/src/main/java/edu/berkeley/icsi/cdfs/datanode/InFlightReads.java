@@ -0,0 +1,203 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.icsi.cdfs.cache.Buffer;
+import edu.berkeley.icsi.cdfs.cache.UncompressedBufferCache;
+
+/**
+ * Tracks the blocks which are read from HDFS and cached uncompressed at the moment. A connection which misses a block
+ * another one is already reading attaches to that read and streams the chunks from the cache as they arrive, instead
+ * of reading and decompressing the block a second time.
+ */
+final class InFlightReads {
+
+	/**
+	 * A block being read from HDFS by a single connection, the leader.
+	 */
+	static final class Fetch {
+
+		private final Path path;
+
+		private final int blockIndex;
+
+		/**
+		 * Incremented whenever the leader has added a chunk to the cache
+		 */
+		private long version = 0L;
+
+		private boolean done = false;
+
+		private Fetch(final Path path, final int blockIndex) {
+			this.path = path;
+			this.blockIndex = blockIndex;
+		}
+
+		Path getPath() {
+
+			return this.path;
+		}
+
+		int getBlockIndex() {
+
+			return this.blockIndex;
+		}
+
+		/**
+		 * Adds a chunk read by the leader to the cache and wakes up the connections waiting for it.
+		 *
+		 * @return <code>true</code> if the chunk has completed the block in the cache, <code>false</code> otherwise
+		 */
+		boolean publish(final int chunk, final Buffer buffer, final int numberOfChunks) {
+
+			final Buffer[] chunks = new Buffer[numberOfChunks];
+			chunks[chunk] = buffer;
+			final boolean completed = UncompressedBufferCache.get().addCachedChunks(this.path, this.blockIndex, chunks);
+
+			synchronized (this) {
+				++this.version;
+				notifyAll();
+			}
+
+			return completed;
+		}
+
+		/**
+		 * Tells the waiting connections that the leader does not add any more chunks to the cache.
+		 */
+		synchronized void abandon() {
+
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized boolean isDone() {
+
+			return this.done;
+		}
+
+		synchronized long getVersion() {
+
+			return this.version;
+		}
+
+		/**
+		 * Waits until the leader has added a chunk to the cache after the given version.
+		 *
+		 * @param seenVersion
+		 *        the version the caller has seen last
+		 * @param timeout
+		 *        the maximum time to wait in milliseconds
+		 * @return <code>true</code> if a chunk has been added, <code>false</code> if the leader is done or the timeout
+		 *         has passed
+		 */
+		synchronized boolean awaitProgress(final long seenVersion, final long timeout) throws InterruptedIOException {
+
+			final long deadline = System.currentTimeMillis() + timeout;
+			while (this.version == seenVersion && !this.done) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0L) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for " + this.path + " ("
+						+ this.blockIndex + ")");
+				}
+			}
+
+			return (this.version != seenVersion);
+		}
+	}
+
+	private static final class Key {
+
+		private final Path path;
+
+		private final int blockIndex;
+
+		private Key(final Path path, final int blockIndex) {
+			this.path = path;
+			this.blockIndex = blockIndex;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean equals(final Object obj) {
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			final Key key = (Key) obj;
+
+			return this.blockIndex == key.blockIndex && this.path.equals(key.path);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int hashCode() {
+
+			return this.path.hashCode() * 31 + this.blockIndex;
+		}
+	}
+
+	private final Map<Key, Fetch> fetches = new HashMap<Key, Fetch>();
+
+	/**
+	 * Returns the ongoing read of the given block.
+	 *
+	 * @return the ongoing read or <code>null</code> if the block is not read at the moment or its reader does not
+	 *         cache it anymore
+	 */
+	synchronized Fetch find(final Path path, final int blockIndex) {
+
+		final Fetch fetch = this.fetches.get(new Key(path, blockIndex));
+		if (fetch == null || fetch.isDone()) {
+			return null;
+		}
+
+		return fetch;
+	}
+
+	/**
+	 * Registers the calling connection as the leader for the given block.
+	 *
+	 * @return the new fetch or <code>null</code> if another connection has become the leader in the meantime
+	 */
+	synchronized Fetch begin(final Path path, final int blockIndex) {
+
+		final Key key = new Key(path, blockIndex);
+		final Fetch existing = this.fetches.get(key);
+		if (existing != null && !existing.isDone()) {
+			return null;
+		}
+
+		final Fetch fetch = new Fetch(path, blockIndex);
+		this.fetches.put(key, fetch);
+
+		return fetch;
+	}
+
+	/**
+	 * Must be called by the leader once it has finished reading the block.
+	 */
+	synchronized void end(final Fetch fetch) {
+
+		fetch.abandon();
+
+		final Key key = new Key(fetch.getPath(), fetch.getBlockIndex());
+		if (this.fetches.get(key) == fetch) {
+			this.fetches.remove(key);
+		}
+	}
+}
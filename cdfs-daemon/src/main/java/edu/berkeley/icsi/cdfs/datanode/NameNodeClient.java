@@ -0,0 +1,317 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.StringUtils;
+
+import edu.berkeley.icsi.cdfs.BlockReadInformation;
+import edu.berkeley.icsi.cdfs.PopularFile;
+import edu.berkeley.icsi.cdfs.cache.CacheReport;
+import edu.berkeley.icsi.cdfs.cache.CachedBlocks;
+import edu.berkeley.icsi.cdfs.cache.CompressedBufferCache;
+import edu.berkeley.icsi.cdfs.cache.EvictionEntry;
+import edu.berkeley.icsi.cdfs.cache.UncompressedBufferCache;
+import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
+import edu.berkeley.icsi.cdfs.protocols.DataNodeNameNodeProtocol;
+import edu.berkeley.icsi.cdfs.statistics.ReadStatistics;
+import edu.berkeley.icsi.cdfs.utils.PathWrapper;
+import edu.berkeley.icsi.cdfs.utils.WritableArrayList;
+
+/**
+ * The data node's view of the name node. Calls which only report to the name node are queued and sent in batches by
+ * a background thread, all other calls go to the name node directly. The RPC proxy is thread-safe, so concurrent
+ * calls do not have to be serialized. In addition, the thread reports the full content of the caches at registration
+ * and in regular intervals.
+ */
+final class NameNodeClient extends Thread implements DataNodeNameNodeProtocol {
+
+	private static final Log LOG = LogFactory.getLog(NameNodeClient.class);
+
+	/**
+	 * The number of queued cache reports which triggers a batch before the report interval has passed
+	 */
+	private static final int MAXIMUM_BATCH_SIZE = 512;
+
+	private final DataNodeNameNodeProtocol nameNode;
+
+	private final String host;
+
+	private final long reportInterval;
+
+	private final long fullReportInterval;
+
+	private final Object flushLock = new Object();
+
+	/**
+	 * Guarded by the flush lock
+	 */
+	private boolean fullReportRequested = false;
+
+	private long lastFullReport = System.currentTimeMillis();
+
+	private WritableArrayList<CacheReport> pendingCacheReports = new WritableArrayList<CacheReport>();
+
+	private WritableArrayList<ReadStatistics> pendingReadStatistics = new WritableArrayList<ReadStatistics>();
+
+	private volatile boolean shutDownRequested = false;
+
+	NameNodeClient(final DataNodeNameNodeProtocol nameNode, final String host, final Configuration conf) {
+		super("Name node reporter thread");
+
+		this.nameNode = nameNode;
+		this.host = host;
+		this.reportInterval = conf.getLong(ConfigConstants.DATANODE_REPORT_INTERVAL_KEY,
+			ConfigConstants.DEFAULT_DATANODE_REPORT_INTERVAL);
+		if (this.reportInterval < 1L) {
+			throw new IllegalStateException(ConfigConstants.DATANODE_REPORT_INTERVAL_KEY + " must be at least 1");
+		}
+		this.fullReportInterval = conf.getLong(ConfigConstants.DATANODE_FULL_REPORT_INTERVAL_KEY,
+			ConfigConstants.DEFAULT_DATANODE_FULL_REPORT_INTERVAL);
+		if (this.fullReportInterval < 1L) {
+			throw new IllegalStateException(ConfigConstants.DATANODE_FULL_REPORT_INTERVAL_KEY + " must be at least 1");
+		}
+
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+
+		while (!this.shutDownRequested) {
+
+			synchronized (this) {
+				if (this.pendingCacheReports.size() < MAXIMUM_BATCH_SIZE) {
+					try {
+						wait(this.reportInterval);
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+			}
+
+			flush();
+		}
+	}
+
+	/**
+	 * Sends all queued reports to the name node. Cache reports which cannot be delivered are kept for the next attempt
+	 * in their original order, read statistics are dropped. A full cache report is sent first if it is due.
+	 */
+	void flush() {
+
+		synchronized (this.flushLock) {
+
+			if (this.fullReportRequested
+				|| System.currentTimeMillis() - this.lastFullReport >= this.fullReportInterval) {
+				sendFullReport();
+			}
+
+			final WritableArrayList<CacheReport> cacheReports;
+			final WritableArrayList<ReadStatistics> readStatistics;
+			synchronized (this) {
+				cacheReports = this.pendingCacheReports;
+				readStatistics = this.pendingReadStatistics;
+				this.pendingCacheReports = new WritableArrayList<CacheReport>();
+				this.pendingReadStatistics = new WritableArrayList<ReadStatistics>();
+			}
+
+			if (!cacheReports.isEmpty()) {
+				try {
+					this.nameNode.reportCacheUpdates(cacheReports, this.host);
+				} catch (IOException ioe) {
+					LOG.error(StringUtils.stringifyException(ioe));
+					synchronized (this) {
+						cacheReports.addAll(this.pendingCacheReports);
+						this.pendingCacheReports = cacheReports;
+					}
+				}
+			}
+
+			if (!readStatistics.isEmpty()) {
+				try {
+					this.nameNode.reportReadStatistics(readStatistics, this.host);
+				} catch (IOException ioe) {
+					LOG.error(StringUtils.stringifyException(ioe));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Must be called while holding the flush lock.
+	 */
+	private void sendFullReport() {
+
+		// Queued reports describe changes which happened before the snapshot, so the snapshot includes them
+		synchronized (this) {
+			this.pendingCacheReports.clear();
+		}
+
+		final WritableArrayList<CachedBlocks> cachedBlocks = new WritableArrayList<CachedBlocks>();
+		UncompressedBufferCache.get().collectCachedBlocks(cachedBlocks);
+		CompressedBufferCache.get().collectCachedBlocks(cachedBlocks);
+
+		try {
+			this.nameNode.reportFullCache(cachedBlocks, this.host);
+			this.fullReportRequested = false;
+		} catch (IOException ioe) {
+			LOG.error(StringUtils.stringifyException(ioe));
+			this.fullReportRequested = true;
+		}
+
+		this.lastFullReport = System.currentTimeMillis();
+	}
+
+	private synchronized void enqueue(final CacheReport cacheReport) {
+
+		this.pendingCacheReports.add(cacheReport);
+		if (this.pendingCacheReports.size() == MAXIMUM_BATCH_SIZE) {
+			notify();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getProtocolVersion(final String protocol, final long clientVersion) throws IOException {
+
+		return this.nameNode.getProtocolVersion(protocol, clientVersion);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createNewBlock(final PathWrapper cdfsPath, final PathWrapper hdfsPath, final int blockIndex,
+			final int uncompressedLength, final int compressedLength, final byte codec) throws IOException {
+
+		this.nameNode.createNewBlock(cdfsPath, hdfsPath, blockIndex, uncompressedLength, compressedLength, codec);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reportCachedBlock(final PathWrapper cdfsPath, final int blockIndex, final boolean compressed,
+			final String host) throws IOException {
+
+		enqueue(new CacheReport(cdfsPath.getPath(), blockIndex, compressed, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reportCacheUpdates(final WritableArrayList<CacheReport> cacheReports, final String host)
+			throws IOException {
+
+		synchronized (this) {
+			this.pendingCacheReports.addAll(cacheReports);
+			if (this.pendingCacheReports.size() >= MAXIMUM_BATCH_SIZE) {
+				notify();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reportFullCache(final WritableArrayList<CachedBlocks> cachedBlocks, final String host)
+			throws IOException {
+
+		this.nameNode.reportFullCache(cachedBlocks, host);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public EvictionEntry getBlocksToEvict(final String host, final int numberOfBuffers,
+			final WritableArrayList<CachedBlocks> blocksInUse) throws IOException {
+
+		// The name node must know about all evictions so far, otherwise it may suggest the same blocks again
+		flush();
+
+		return this.nameNode.getBlocksToEvict(host, numberOfBuffers, blocksInUse);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void confirmEviction(final PathWrapper cdfsPath, final int blockIndex, final boolean compressed,
+			final String host) throws IOException {
+
+		enqueue(new CacheReport(cdfsPath.getPath(), blockIndex, compressed, false));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void registerDataNode(final String hostname, final int port) throws IOException {
+
+		this.nameNode.registerDataNode(hostname, port);
+
+		// The name node may still know about blocks cached before a restart
+		synchronized (this.flushLock) {
+			this.fullReportRequested = true;
+		}
+		flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void reportReadStatistics(final WritableArrayList<ReadStatistics> readStatistics,
+			final String host) throws IOException {
+
+		this.pendingReadStatistics.addAll(readStatistics);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BlockReadInformation[] getBlockReadInformation(final PathWrapper path, final long start, final long len)
+			throws IOException {
+
+		return this.nameNode.getBlockReadInformation(path, start, len);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public PopularFile[] getPopularFiles(final int maximumNumberOfFiles) throws IOException {
+
+		return this.nameNode.getPopularFiles(maximumNumberOfFiles);
+	}
+
+	/**
+	 * Stops the background thread and sends the reports which are still queued.
+	 */
+	void shutDown() {
+
+		this.shutDownRequested = true;
+		interrupt();
+
+		try {
+			join();
+		} catch (InterruptedException e) {
+			LOG.warn(StringUtils.stringifyException(e));
+		}
+
+		flush();
+	}
+}
@@ -0,0 +1,27 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class NamedThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+
+	private final AtomicInteger counter = new AtomicInteger(0);
+
+	NamedThreadFactory(final String prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Thread newThread(final Runnable r) {
+
+		final Thread thread = new Thread(r, this.prefix + " " + this.counter.incrementAndGet());
+		thread.setDaemon(true);
+
+		return thread;
+	}
+}
@@ -0,0 +1,181 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
+
+/**
+ * Runs the stages of the data node's read and write pipelines. CPU-bound work like compression and decompression is
+ * executed by a fixed pool of workers shared by all connections, the I/O stages of each operation get a thread of
+ * their own. The depth limits the number of chunks a single operation may have in flight, the number of blocks read
+ * at the same time is limited as well.
+ */
+final class PipelineExecutor {
+
+	private static final Log LOG = LogFactory.getLog(PipelineExecutor.class);
+
+	private final ExecutorService workers;
+
+	private final ExecutorService ioThreads;
+
+	private final int depth;
+
+	private final Semaphore blockReads;
+
+	private final int readaheadDepth;
+
+	PipelineExecutor(final Configuration conf) {
+
+		int numberOfWorkers = conf.getInt(ConfigConstants.PIPELINE_WORKERS_KEY,
+			ConfigConstants.DEFAULT_PIPELINE_WORKERS);
+		if (numberOfWorkers <= 0) {
+			numberOfWorkers = Runtime.getRuntime().availableProcessors();
+		}
+
+		this.depth = conf.getInt(ConfigConstants.PIPELINE_DEPTH_KEY, ConfigConstants.DEFAULT_PIPELINE_DEPTH);
+		if (this.depth < 1) {
+			throw new IllegalStateException(ConfigConstants.PIPELINE_DEPTH_KEY + " must be at least 1");
+		}
+
+		final int maximumNumberOfBlockReads = conf.getInt(ConfigConstants.DATANODE_MAXIMUM_BLOCK_READS_KEY,
+			ConfigConstants.DEFAULT_DATANODE_MAXIMUM_BLOCK_READS);
+		if (maximumNumberOfBlockReads < 1) {
+			throw new IllegalStateException(ConfigConstants.DATANODE_MAXIMUM_BLOCK_READS_KEY + " must be at least 1");
+		}
+		this.blockReads = new Semaphore(maximumNumberOfBlockReads, true);
+
+		this.readaheadDepth = conf.getInt(ConfigConstants.DATANODE_READAHEAD_DEPTH_KEY,
+			ConfigConstants.DEFAULT_DATANODE_READAHEAD_DEPTH);
+		if (this.readaheadDepth < 0) {
+			throw new IllegalStateException(ConfigConstants.DATANODE_READAHEAD_DEPTH_KEY + " must not be negative");
+		}
+
+		LOG.info("Starting pipeline executor with " + numberOfWorkers + " workers and a depth of " + this.depth);
+
+		this.workers = Executors.newFixedThreadPool(numberOfWorkers, new NamedThreadFactory("Pipeline worker"));
+		this.ioThreads = Executors.newCachedThreadPool(new NamedThreadFactory("Pipeline I/O thread"));
+	}
+
+	int getDepth() {
+
+		return this.depth;
+	}
+
+	/**
+	 * Returns the number of blocks a connection reads ahead of the block it streams to its client.
+	 */
+	int getReadaheadDepth() {
+
+		return this.readaheadDepth;
+	}
+
+	/**
+	 * Waits until the number of blocks read at the same time allows another one.
+	 */
+	void beginBlockRead() {
+
+		this.blockReads.acquireUninterruptibly();
+	}
+
+	/**
+	 * Starts another block read only if the number of blocks read at the same time allows it right away.
+	 */
+	boolean tryBeginBlockRead() {
+
+		return this.blockReads.tryAcquire();
+	}
+
+	void endBlockRead() {
+
+		this.blockReads.release();
+	}
+
+	<T> Future<T> submitWork(final Callable<T> task) {
+
+		return this.workers.submit(task);
+	}
+
+	<T> Future<T> submitIO(final Callable<T> task) {
+
+		return this.ioThreads.submit(task);
+	}
+
+	void shutDown() {
+
+		this.workers.shutdownNow();
+		this.ioThreads.shutdownNow();
+	}
+
+	/**
+	 * Waits for the given future and unwraps the exception the task may have thrown.
+	 */
+	static <T> T getResult(final Future<T> future) throws IOException {
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for pipeline stage");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Puts the given element into the queue, retrying if the calling thread is interrupted in the meantime.
+	 */
+	static <T> void putUninterruptibly(final BlockingQueue<T> queue, final T element) {
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(element);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static <T> T takeUninterruptibly(final BlockingQueue<T> queue) {
+
+		boolean interrupted = false;
+		T element;
+		while (true) {
+			try {
+				element = queue.take();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		return element;
+	}
+}
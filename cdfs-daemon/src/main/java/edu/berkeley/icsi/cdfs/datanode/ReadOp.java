@@ -1,13 +1,19 @@
 package edu.berkeley.icsi.cdfs.datanode;
 
-import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
@@ -15,30 +21,115 @@ import org.apache.hadoop.fs.Path;
 
 import edu.berkeley.icsi.cdfs.cache.Buffer;
 import edu.berkeley.icsi.cdfs.cache.BufferPool;
+import edu.berkeley.icsi.cdfs.cache.UncompressedBufferCache;
+import edu.berkeley.icsi.cdfs.compression.Codec;
+import edu.berkeley.icsi.cdfs.compression.Codecs;
 import edu.berkeley.icsi.cdfs.compression.Decompressor;
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryProducer;
+import edu.berkeley.icsi.cdfs.utils.ByteBufferUtils;
 import edu.berkeley.icsi.cdfs.utils.NumberUtils;
 
-final class ReadOp implements Closeable {
+final class ReadOp {
+
+	/**
+	 * Marks the end of the chunks of a block in the read pipeline
+	 */
+	private static final Future<Chunk> END_OF_BLOCK = new FutureTask<Chunk>(new Runnable() {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+		}
+	}, null);
+
+	/**
+	 * The time in milliseconds a connection waits for the next chunk of a block another connection reads before it
+	 * reads the rest of the block itself
+	 */
+	private static final long FETCH_PROGRESS_TIMEOUT = 1000L;
+
+	private static final ThreadLocal<byte[]> STAGING_BUFFERS = new ThreadLocal<byte[]>() {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected byte[] initialValue() {
+
+			return new byte[ByteBufferUtils.STAGING_BUFFER_SIZE];
+		}
+	};
+
+	private static final ThreadLocal<Decompressor> DECOMPRESSORS = new ThreadLocal<Decompressor>() {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Decompressor initialValue() {
+
+			return new Decompressor();
+		}
+	};
 
 	private final SharedMemoryProducer sharedMemoryProducer;
 
+	private final PipelineExecutor pipelineExecutor;
+
+	/**
+	 * Heap buffers for chunks which are not cached, reused across the blocks of this operation
+	 */
+	private final Queue<ByteBuffer> compressedScratchBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final Queue<ByteBuffer> uncompressedScratchBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
 	private List<Buffer> uncompressedBuffers = null;
 
 	private List<Buffer> compressedBuffers = null;
 
+	/**
+	 * The pooled buffer of each chunk read from HDFS if the block file has an index, so the chunks can be cached even
+	 * if the block is not read completely
+	 */
+	private Buffer[] uncompressedChunks = null;
+
+	/**
+	 * The read other connections wait for if this operation leads it, <code>null</code> otherwise
+	 */
+	private InFlightReads.Fetch fetch = null;
+
+	/**
+	 * Whether publishing a chunk to waiting connections has completed the block in the cache
+	 */
+	private boolean blockCompleted = false;
+
 	private long numberOfBytesRead = 0L;
 
-	ReadOp(final Socket socket) throws IOException {
-		if (socket != null) {
-			this.sharedMemoryProducer = new SharedMemoryProducer(socket);
-		} else {
-			this.sharedMemoryProducer = null;
-		}
+	/**
+	 * The number of bytes still to drop before the requested offset in the block is reached
+	 */
+	private long bytesToSkip = 0L;
+
+	/**
+	 * The number of bytes still to hand to the client before the requested range of the block is complete
+	 */
+	private long bytesToTransfer = 0L;
+
+	/**
+	 * Creates a read operation which hands the data to the given producer, which is <code>null</code> if the data is
+	 * only read for caching.
+	 */
+	ReadOp(final SharedMemoryProducer sharedMemoryProducer, final PipelineExecutor pipelineExecutor) {
+
+		this.pipelineExecutor = pipelineExecutor;
+		this.sharedMemoryProducer = sharedMemoryProducer;
 	}
 
-	public void readFromCacheUncompressed(final List<Buffer> uncompressedBuffers) throws IOException {
+	public void readFromCacheUncompressed(final List<Buffer> uncompressedBuffers, final long offsetInBlock,
+			final long length) throws IOException {
 
 		if (this.sharedMemoryProducer == null) {
 			throw new IllegalStateException("Shared memory producer is null");
@@ -46,61 +137,94 @@ final class ReadOp implements Closeable {
 
 		this.numberOfBytesRead = 0L;
 
+		final BufferPool bufferPool = BufferPool.get();
+		final String mappedFile = bufferPool.getMappedFile();
+
+		long bytesToSkip = offsetInBlock;
+
 		final Iterator<Buffer> it = uncompressedBuffers.iterator();
-		while (it.hasNext()) {
+		while (it.hasNext() && this.numberOfBytesRead < length) {
 			final Buffer buffer = it.next();
 
-			final ByteBuffer byteBuffer = this.sharedMemoryProducer.lockSharedMemory();
-			byteBuffer.put(buffer.getData(), 0, buffer.getLength());
-			this.sharedMemoryProducer.unlockSharedMemory();
-			this.numberOfBytesRead += buffer.getLength();
+			// Skip the data in front of the requested offset
+			if (bytesToSkip >= buffer.getLength()) {
+				bytesToSkip -= buffer.getLength();
+				continue;
+			}
+			final int skip = (int) bytesToSkip;
+			final int bytesToShare = (int) Math.min(buffer.getLength() - skip, length - this.numberOfBytesRead);
+			bytesToSkip = 0L;
+
+			// If the buffer lives in the memory mapped pool file, let the client map it instead of copying it
+			final long fileOffset = (mappedFile != null) ? bufferPool.getFileOffset(buffer.getData()) : -1L;
+			if (fileOffset >= 0L) {
+				this.sharedMemoryProducer.shareSegment(mappedFile, fileOffset + skip, bytesToShare);
+			} else {
+				final ByteBuffer src = buffer.duplicate();
+				src.position(skip);
+				src.limit(skip + bytesToShare);
+				final ByteBuffer byteBuffer = this.sharedMemoryProducer.lockSharedMemory();
+				byteBuffer.put(src);
+				this.sharedMemoryProducer.unlockSharedMemory();
+			}
+			this.numberOfBytesRead += bytesToShare;
 		}
+
+		// The cached buffers must not be unlocked before the client is done reading them
+		this.sharedMemoryProducer.waitForACKs();
 	}
 
-	public void readFromCacheCompressed(final List<Buffer> compressedBuffers, boolean cacheUncompressed)
-			throws IOException {
+	public void readFromCacheCompressed(final List<Buffer> compressedBuffers, boolean cacheUncompressed,
+			final long offsetInBlock, final long length) throws IOException {
 
 		this.numberOfBytesRead = 0L;
+		this.bytesToSkip = offsetInBlock;
+		this.bytesToTransfer = length;
 		this.uncompressedBuffers = new ArrayList<Buffer>();
 
 		final Decompressor decompressor = new Decompressor();
 		final BufferPool bufferPool = BufferPool.get();
 
-		byte[] uncompressedBuffer = null;
+		ByteBuffer uncompressedBuffer = null;
 
 		if (!cacheUncompressed) {
-			uncompressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
+			uncompressedBuffer = ByteBuffer.allocate(ConfigConstants.BUFFER_SIZE);
 		}
 
 		final Iterator<Buffer> it = compressedBuffers.iterator();
-		while (it.hasNext()) {
+		while (it.hasNext() && this.bytesToTransfer > 0L) {
 
 			final Buffer buffer = it.next();
+			final ByteBuffer data = buffer.getData();
 			int offset = 0;
 
-			while (offset < buffer.getLength()) {
-				final int numberOfCompressedBytes = NumberUtils.byteArrayToInteger(buffer.getData(), offset);
+			while (offset < buffer.getLength() && this.bytesToTransfer > 0L) {
+				final int chunkHeader = data.getInt(offset);
+				final Codec codec = Codecs.forId(Codecs.getCodecId(chunkHeader));
+				final int numberOfCompressedBytes = Codecs.getChunkLength(chunkHeader);
 				offset += 4;
 
+				if (!cacheUncompressed && codec == Codecs.getStored()) {
+					// Stored chunks are handed to the client straight from the cached buffer
+					transfer(data, offset, numberOfCompressedBytes);
+					offset += numberOfCompressedBytes;
+					continue;
+				}
+
 				if (cacheUncompressed) {
 					uncompressedBuffer = bufferPool.lockBuffer();
 					if (uncompressedBuffer == null) {
-						uncompressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
+						uncompressedBuffer = ByteBuffer.allocate(ConfigConstants.BUFFER_SIZE);
 						cacheUncompressed = false;
 						clearUncompressedBuffers();
 					}
 				}
 
-				final int numberOfUncompressedBytes = decompressor.decompress(buffer.getData(), offset,
+				final int numberOfUncompressedBytes = decompressor.decompress(codec, data, offset,
 					numberOfCompressedBytes, uncompressedBuffer);
 				offset += numberOfCompressedBytes;
 
-				if (this.sharedMemoryProducer != null) {
-					final ByteBuffer byteBuffer = this.sharedMemoryProducer.lockSharedMemory();
-					byteBuffer.put(uncompressedBuffer, 0, numberOfUncompressedBytes);
-					this.sharedMemoryProducer.unlockSharedMemory();
-				}
-				this.numberOfBytesRead += numberOfUncompressedBytes;
+				transfer(uncompressedBuffer, 0, numberOfUncompressedBytes);
 
 				if (cacheUncompressed) {
 					final Buffer ub = new Buffer(uncompressedBuffer, numberOfUncompressedBytes);
@@ -110,130 +234,615 @@ final class ReadOp implements Closeable {
 		}
 	}
 
-	public void readFromHDFSCompressed(final FileSystem hdfs, final Path hdfsPath, boolean cacheUncompressed,
-			boolean cacheCompressed) throws IOException {
+	/**
+	 * Streams a block from the start while another connection reads it from HDFS, taking each chunk from the
+	 * uncompressed cache as soon as the other connection has added it. If the other connection stops adding chunks
+	 * before the requested range is complete, the rest is read from HDFS.
+	 */
+	public void readFromFetch(final InFlightReads.Fetch fetch, final FileSystem hdfs, final Path hdfsPath,
+			final boolean cacheUncompressed, final long length) throws IOException {
+
+		this.numberOfBytesRead = 0L;
+		this.bytesToSkip = 0L;
+		this.bytesToTransfer = length;
+
+		final UncompressedBufferCache cache = UncompressedBufferCache.get();
+		int nextChunk = 0;
+
+		while (this.bytesToTransfer > 0L) {
+
+			// Take the version first, so a chunk added in the meantime is not missed
+			final long version = fetch.getVersion();
+
+			final Buffer[] chunks = cache.lockChunks(fetch.getPath(), fetch.getBlockIndex());
+			if (chunks != null) {
+				try {
+					while (nextChunk < chunks.length && chunks[nextChunk] != null && this.bytesToTransfer > 0L) {
+						transfer(chunks[nextChunk].getData(), 0, chunks[nextChunk].getLength());
+						++nextChunk;
+					}
+				} finally {
+					cache.unlock(fetch.getPath(), fetch.getBlockIndex());
+				}
+			}
+
+			if (this.bytesToTransfer == 0L || !fetch.awaitProgress(version, FETCH_PROGRESS_TIMEOUT)) {
+				break;
+			}
+		}
+
+		if (this.bytesToTransfer == 0L) {
+			return;
+		}
+
+		// Read what the other connection has not provided, including the chunks it may have added by now
+		final long numberOfBytesStreamed = this.numberOfBytesRead;
+		final Buffer[] cachedChunks = cache.lockChunks(fetch.getPath(), fetch.getBlockIndex());
+		try {
+			readFromHDFSCompressed(hdfs, hdfsPath, cachedChunks, null, cacheUncompressed, false,
+				numberOfBytesStreamed, this.bytesToTransfer);
+		} finally {
+			this.numberOfBytesRead += numberOfBytesStreamed;
+			if (cachedChunks != null) {
+				cache.unlock(fetch.getPath(), fetch.getBlockIndex());
+			}
+		}
+	}
+
+	/**
+	 * Reads the given range of a block from HDFS. If the block file has an index, the chunks found in the given array
+	 * are taken from there instead.
+	 *
+	 * @param cachedChunks
+	 *        the cached uncompressed chunks of the block with <code>null</code> for each missing chunk or
+	 *        <code>null</code> if no chunk is cached
+	 * @param fetch
+	 *        the read to add each chunk to the cache for right away, so other connections can stream it, or
+	 *        <code>null</code> if no other connection waits for the block
+	 */
+	public void readFromHDFSCompressed(final FileSystem hdfs, final Path hdfsPath, final Buffer[] cachedChunks,
+			final InFlightReads.Fetch fetch, final boolean cacheUncompressed, final boolean cacheCompressed,
+			final long offsetInBlock, final long length) throws IOException {
 
 		this.uncompressedBuffers = new ArrayList<Buffer>();
 		this.compressedBuffers = new ArrayList<Buffer>();
+		this.uncompressedChunks = null;
+		this.fetch = fetch;
+		this.blockCompleted = false;
 		this.numberOfBytesRead = 0L;
+		this.bytesToSkip = offsetInBlock;
+		this.bytesToTransfer = length;
 
-		byte[] compressedBuffer = null;
-		byte[] uncompressedBuffer = null;
+		final long fileLength = hdfs.getFileStatus(hdfsPath).getLen();
+		final FSDataInputStream hdfsInputStream = hdfs.open(hdfsPath);
 
-		if (!cacheCompressed) {
-			compressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
+		BlockIndex index = null;
+		int firstChunk = 0;
+		int lastChunk = Integer.MAX_VALUE;
+		try {
+			index = BlockIndex.read(hdfsInputStream, fileLength);
+
+			// Only touch the chunks in the requested range, without an index the chunks in front of it are dropped
+			if (index != null) {
+				if (offsetInBlock > 0L) {
+					firstChunk = index.findChunk(offsetInBlock);
+					if (firstChunk < 0) {
+						throw new IOException("Offset " + offsetInBlock + " lies beyond the end of " + hdfsPath);
+					}
+					hdfsInputStream.seek(index.getFileOffset(firstChunk));
+					this.bytesToSkip -= index.getUncompressedOffset(firstChunk);
+				}
+				if (length < index.getUncompressedLength() - offsetInBlock) {
+					lastChunk = index.findChunk(offsetInBlock + length - 1L);
+				}
+				if (cacheUncompressed) {
+					this.uncompressedChunks = new Buffer[index.getNumberOfChunks()];
+				}
+			}
+		} catch (IOException ioe) {
+			hdfsInputStream.close();
+			throw ioe;
 		}
-		if (!cacheUncompressed) {
-			uncompressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
+
+		// Without chunks to cache, waiting connections better read the block themselves
+		if (this.fetch != null && this.uncompressedChunks == null) {
+			this.fetch.abandon();
+			this.fetch = null;
 		}
 
-		final BufferPool bufferPool = BufferPool.get();
+		// The reader prefetches and submits chunks for decompression, this thread writes them out in order
+		final BlockingQueue<Future<Chunk>> chunks = new ArrayBlockingQueue<Future<Chunk>>(
+			this.pipelineExecutor.getDepth());
+		// Cached chunks can only be skipped in the block file with the help of the index
+		Buffer[] skippableChunks = null;
+		if (index != null && cachedChunks != null && cachedChunks.length == index.getNumberOfChunks()) {
+			skippableChunks = cachedChunks;
+		}
+		// The compressed buffers would lack the skipped chunks, so the block cannot be cached compressed then
+		final ChunkReader chunkReader = new ChunkReader(hdfsInputStream, index, skippableChunks, firstChunk,
+			lastChunk, chunks, cacheUncompressed, cacheCompressed && skippableChunks == null);
+		final Future<Void> readerResult = this.pipelineExecutor.submitIO(chunkReader);
 
-		final Decompressor decompressor = new Decompressor();
+		IOException failure = null;
+		try {
+			while (true) {
+				final Future<Chunk> future = PipelineExecutor.takeUninterruptibly(chunks);
+				if (future == END_OF_BLOCK) {
+					break;
+				}
+				writeChunk(PipelineExecutor.getResult(future));
+				if (this.bytesToTransfer == 0L) {
+					// The requested range is complete, the chunks read beyond it are not needed
+					chunkReader.abort();
+					drainChunks(chunks);
+					break;
+				}
+			}
+		} catch (IOException ioe) {
+			failure = ioe;
+			chunkReader.abort();
+			drainChunks(chunks);
+		}
 
-		final FSDataInputStream hdfsInputStream = hdfs.open(hdfsPath);
+		try {
+			PipelineExecutor.getResult(readerResult);
+		} catch (IOException ioe) {
+			if (failure == null) {
+				failure = ioe;
+			}
+		} finally {
+			// Clean up
+			hdfsInputStream.close();
+			chunkReader.releaseDeferredBuffers();
+		}
 
-		final byte[] lenBuf = new byte[4];
+		if (failure != null && !(failure instanceof EOFException)) {
+			// The caller gives up the read, so nobody else would return the chunks and buffers to the pool
+			releaseUncompressedChunks();
+			releaseBlockBuffers();
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void writeChunk(final Chunk chunk) throws IOException {
+
+		if (chunk.cached) {
+			transfer(chunk.uncompressed, 0, chunk.uncompressedLength);
+			return;
+		}
+
+		// The chunk has been decompressed, so its compressed data is no longer needed
+		if (chunk.compressedScratchBuffer) {
+			this.compressedScratchBuffers.offer(chunk.compressed);
+		}
+
+		// Once published, the buffer belongs to the cache and may be evicted and reused at any time
+		try {
+			transfer(chunk.uncompressed, 0, chunk.uncompressedLength);
+		} finally {
+			keepChunk(chunk);
+		}
+	}
 
-		int numberOfBytesInCompressedBuffer = 0;
+	/**
+	 * Keeps the buffer of a chunk read from HDFS for the cache or hands it back if the block cannot be cached.
+	 */
+	private void keepChunk(final Chunk chunk) {
+
+		if (chunk.uncompressedPooled && this.uncompressedChunks != null) {
+			final Buffer buffer = new Buffer(chunk.uncompressed, chunk.uncompressedLength);
+			if (this.fetch != null) {
+				this.blockCompleted |= this.fetch.publish(chunk.index, buffer, this.uncompressedChunks.length);
+			} else {
+				this.uncompressedChunks[chunk.index] = buffer;
+			}
+			return;
+		}
+
+		if (!chunk.uncompressedPooled) {
+			this.uncompressedScratchBuffers.offer(chunk.uncompressed);
+		}
+
+		if (this.fetch != null) {
+			// The reader ran out of buffers, so the waiting connections would not get the remaining chunks
+			this.fetch.abandon();
+			this.fetch = null;
+		} else if (chunk.uncompressedPooled) {
+			this.uncompressedBuffers.add(new Buffer(chunk.uncompressed, chunk.uncompressedLength));
+		} else if (!this.uncompressedBuffers.isEmpty()) {
+			// The reader ran out of buffers, so the block cannot be cached uncompressed
+			clearUncompressedBuffers();
+		}
+	}
+
+	/**
+	 * Waits for all chunks still in flight after the read of the block has been aborted and hands their buffers
+	 * back.
+	 */
+	private void drainChunks(final BlockingQueue<Future<Chunk>> chunks) {
 
 		while (true) {
 
-			int r = hdfsInputStream.read(lenBuf, 0, lenBuf.length);
-			if (r < 0) {
+			final Future<Chunk> future = PipelineExecutor.takeUninterruptibly(chunks);
+			if (future == END_OF_BLOCK) {
 				break;
 			}
 
-			if (r != 4) {
-				throw new IllegalArgumentException("Short read on lenBuf");
+			final Chunk chunk;
+			try {
+				chunk = PipelineExecutor.getResult(future);
+			} catch (IOException ioe) {
+				continue;
 			}
 
-			final int bytesToReadFromHDFS = NumberUtils.byteArrayToInteger(lenBuf, 0);
+			if (chunk.cached) {
+				continue;
+			}
 
-			// Make sure we have a buffer to copy the compressed data to
-			while (true) {
-				// We still have an compressed buffer
-				if (compressedBuffer != null) {
-					if (numberOfBytesInCompressedBuffer + bytesToReadFromHDFS + 4 <= compressedBuffer.length) {
-						// There is enough memory left in the buffer, we can write to it
+			if (chunk.compressedScratchBuffer) {
+				this.compressedScratchBuffers.offer(chunk.compressed);
+			}
+			if (chunk.uncompressedPooled) {
+				BufferPool.get().releaseBuffer(chunk.uncompressed);
+			} else {
+				this.uncompressedScratchBuffers.offer(chunk.uncompressed);
+			}
+		}
+	}
+
+	private static ByteBuffer takeScratchBuffer(final Queue<ByteBuffer> scratchBuffers) {
+
+		final ByteBuffer buffer = scratchBuffers.poll();
+		if (buffer != null) {
+			buffer.clear();
+			return buffer;
+		}
+
+		// The number of scratch buffers is bounded by the pipeline depth
+		return ByteBuffer.allocate(ConfigConstants.BUFFER_SIZE);
+	}
+
+	/**
+	 * A length-prefixed chunk of a block on its way through the read pipeline. Calling the chunk decompresses it
+	 * unless it has no compressed data, in which case it has been stored and read to its destination already.
+	 */
+	private static final class Chunk implements Callable<Chunk> {
+
+		private final Codec codec;
+
+		private final ByteBuffer compressed;
+
+		private final int offset;
+
+		private final int length;
+
+		private final boolean compressedScratchBuffer;
+
+		private final ByteBuffer uncompressed;
+
+		private final boolean uncompressedPooled;
+
+		/**
+		 * The index of the chunk in its block or <code>-1</code> if the block file has no index
+		 */
+		private int index = -1;
+
+		/**
+		 * Whether the chunk has been taken from the uncompressed cache
+		 */
+		private boolean cached = false;
+
+		private int uncompressedLength = 0;
+
+		private boolean verifyChecksum = false;
+
+		private int checksum = 0;
+
+		private Chunk(final Codec codec, final ByteBuffer compressed, final int offset, final int length,
+				final boolean compressedScratchBuffer, final ByteBuffer uncompressed, final boolean uncompressedPooled) {
+			this.codec = codec;
+			this.compressed = compressed;
+			this.offset = offset;
+			this.length = length;
+			this.compressedScratchBuffer = compressedScratchBuffer;
+			this.uncompressed = uncompressed;
+			this.uncompressedPooled = uncompressedPooled;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Chunk call() throws IOException {
+
+			if (this.verifyChecksum) {
+				final int actual = (this.compressed == null) ? ByteBufferUtils.crc32(this.uncompressed, 0, this.length,
+					STAGING_BUFFERS.get()) : ByteBufferUtils.crc32(this.compressed, this.offset, this.length,
+					STAGING_BUFFERS.get());
+				if (actual != this.checksum) {
+					throw new IOException("Checksum mismatch in chunk of " + this.length + " bytes");
+				}
+			}
+
+			if (this.compressed == null) {
+				this.uncompressedLength = this.length;
+				return this;
+			}
+
+			this.uncompressedLength = DECOMPRESSORS.get().decompress(this.codec, this.compressed, this.offset,
+				this.length, this.uncompressed);
+
+			return this;
+		}
+
+		private static Chunk fromCache(final int index, final Buffer buffer) {
+
+			final Chunk chunk = new Chunk(null, null, 0, buffer.getLength(), false, buffer.getData(), false);
+			chunk.index = index;
+			chunk.cached = true;
+			chunk.uncompressedLength = buffer.getLength();
+
+			return chunk;
+		}
+
+		private void expectChecksum(final int checksum) {
+
+			this.verifyChecksum = true;
+			this.checksum = checksum;
+		}
+	}
+
+	/**
+	 * Reads the chunks of a block from HDFS, packs them into compressed buffers if the block shall be cached
+	 * compressed and submits them for decompression.
+	 */
+	private final class ChunkReader implements Callable<Void> {
+
+		private final FSDataInputStream hdfsInputStream;
+
+		/**
+		 * The index of the block or <code>null</code> if the block file has no footer
+		 */
+		private final BlockIndex index;
+
+		/**
+		 * The cached uncompressed chunks of the block or <code>null</code> if no chunk is cached
+		 */
+		private final Buffer[] cachedChunks;
+
+		private int nextChunk;
+
+		private final int lastChunk;
+
+		private final BlockingQueue<Future<Chunk>> chunks;
+
+		private boolean cacheUncompressed;
+
+		private boolean cacheCompressed;
+
+		private ByteBuffer compressedBuffer = null;
+
+		private int numberOfBytesInCompressedBuffer = 0;
+
+		/**
+		 * Compressed buffers which may still be read by in-flight decompressions when compressed caching had to be
+		 * given up
+		 */
+		private final List<Buffer> deferredBuffers = new ArrayList<Buffer>();
+
+		private volatile boolean aborted = false;
+
+		private ChunkReader(final FSDataInputStream hdfsInputStream, final BlockIndex index,
+				final Buffer[] cachedChunks, final int firstChunk, final int lastChunk,
+				final BlockingQueue<Future<Chunk>> chunks, final boolean cacheUncompressed,
+				final boolean cacheCompressed) {
+			this.hdfsInputStream = hdfsInputStream;
+			this.index = index;
+			this.cachedChunks = cachedChunks;
+			this.nextChunk = firstChunk;
+			this.lastChunk = lastChunk;
+			this.chunks = chunks;
+			this.cacheUncompressed = cacheUncompressed;
+			this.cacheCompressed = cacheCompressed;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Void call() throws IOException {
+
+			final BufferPool bufferPool = BufferPool.get();
+
+			final byte[] lenBuf = new byte[4];
+
+			final byte[] stagingBuffer = new byte[ByteBufferUtils.STAGING_BUFFER_SIZE];
+
+			// Whether cached chunks have been skipped since the last chunk read from HDFS
+			boolean seek = false;
+
+			try {
+
+				while (!this.aborted && this.nextChunk <= this.lastChunk) {
+
+					if (this.cachedChunks != null && this.nextChunk < this.cachedChunks.length) {
+						final Buffer cachedChunk = this.cachedChunks[this.nextChunk];
+						if (cachedChunk != null) {
+							final FutureTask<Chunk> chunk = new FutureTask<Chunk>(Chunk.fromCache(this.nextChunk,
+								cachedChunk));
+							chunk.run();
+							PipelineExecutor.putUninterruptibly(this.chunks, chunk);
+							++this.nextChunk;
+							seek = true;
+							continue;
+						}
+						if (seek) {
+							this.hdfsInputStream.seek(this.index.getFileOffset(this.nextChunk));
+							seek = false;
+						}
+					}
+
+					int r = this.hdfsInputStream.read(lenBuf, 0, lenBuf.length);
+					if (r < 0) {
 						break;
-					} else {
-						// The buffer is full, see if we need to cache it
-						if (cacheCompressed) {
-							final Buffer buffer = new Buffer(compressedBuffer, numberOfBytesInCompressedBuffer);
-							this.compressedBuffers.add(buffer);
-							compressedBuffer = null;
+					}
+
+					if (r != 4) {
+						throw new IllegalArgumentException("Short read on lenBuf");
+					}
+
+					final int chunkHeader = NumberUtils.byteArrayToInteger(lenBuf, 0);
+					if (Codecs.getCodecId(chunkHeader) == BlockIndex.MARKER) {
+						// The index footer follows the last chunk
+						break;
+					}
+					final Codec codec = Codecs.forId(Codecs.getCodecId(chunkHeader));
+					final int bytesToReadFromHDFS = Codecs.getChunkLength(chunkHeader);
+
+					// Make sure we have a buffer to copy the compressed data to
+					if (this.cacheCompressed) {
+						if (this.compressedBuffer != null
+							&& this.numberOfBytesInCompressedBuffer + bytesToReadFromHDFS + 4 > this.compressedBuffer
+								.capacity()) {
+							// The buffer is full, keep it for the cache
+							compressedBuffers.add(new Buffer(this.compressedBuffer,
+								this.numberOfBytesInCompressedBuffer));
+							this.compressedBuffer = null;
+							this.numberOfBytesInCompressedBuffer = 0;
+						}
+						if (this.compressedBuffer == null) {
+							this.compressedBuffer = bufferPool.lockBuffer();
+							if (this.compressedBuffer == null) {
+								this.deferredBuffers.addAll(compressedBuffers);
+								compressedBuffers.clear();
+								this.cacheCompressed = false;
+							}
 						}
-						numberOfBytesInCompressedBuffer = 0;
 					}
-				} else {
-					if (cacheCompressed) {
-						compressedBuffer = bufferPool.lockBuffer();
-						if (compressedBuffer == null) {
-							compressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
-							clearCompressedBuffers();
-							cacheCompressed = false;
+
+					ByteBuffer uncompressed = null;
+					if (this.cacheUncompressed) {
+						uncompressed = bufferPool.lockBuffer();
+						if (uncompressed == null) {
+							this.cacheUncompressed = false;
 						}
-						break;
+					}
+					final boolean uncompressedPooled = (uncompressed != null);
+					if (!uncompressedPooled) {
+						uncompressed = takeScratchBuffer(uncompressedScratchBuffers);
+					}
+
+					final boolean stored = (codec == Codecs.getStored());
+					final Chunk chunk;
+					if (this.cacheCompressed) {
+						// Copy chunk header
+						this.compressedBuffer.putInt(this.numberOfBytesInCompressedBuffer, chunkHeader);
+						this.numberOfBytesInCompressedBuffer += 4;
+						final int offset = this.numberOfBytesInCompressedBuffer;
+						this.numberOfBytesInCompressedBuffer += bytesToReadFromHDFS;
+						ByteBufferUtils.readFully(this.hdfsInputStream, this.compressedBuffer, offset,
+							bytesToReadFromHDFS, stagingBuffer);
+						chunk = new Chunk(codec, this.compressedBuffer, offset, bytesToReadFromHDFS, false,
+							uncompressed, uncompressedPooled);
+					} else if (stored) {
+						// Stored data can be read to its final destination right away
+						ByteBufferUtils.readFully(this.hdfsInputStream, uncompressed, 0, bytesToReadFromHDFS,
+							stagingBuffer);
+						chunk = new Chunk(codec, null, 0, bytesToReadFromHDFS, false, uncompressed,
+							uncompressedPooled);
 					} else {
-						System.out.println("Illegal state!!!!");
+						final ByteBuffer compressed = takeScratchBuffer(compressedScratchBuffers);
+						ByteBufferUtils.readFully(this.hdfsInputStream, compressed, 0, bytesToReadFromHDFS,
+							stagingBuffer);
+						chunk = new Chunk(codec, compressed, 0, bytesToReadFromHDFS, true, uncompressed,
+							uncompressedPooled);
 					}
-				}
-			}
 
-			// Copy length field
-			System.arraycopy(lenBuf, 0, compressedBuffer, numberOfBytesInCompressedBuffer, 4);
-			numberOfBytesInCompressedBuffer += 4;
-			// Copy actual data
-			hdfsInputStream.readFully(compressedBuffer, numberOfBytesInCompressedBuffer, bytesToReadFromHDFS);
-
-			if (cacheUncompressed) {
-				uncompressedBuffer = bufferPool.lockBuffer();
-				if (uncompressedBuffer == null) {
-					uncompressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
-					clearUncompressedBuffers();
-					cacheUncompressed = false;
+					if (this.index != null && this.nextChunk < this.index.getNumberOfChunks()) {
+						chunk.expectChecksum(this.index.getChecksum(this.nextChunk));
+						chunk.index = this.nextChunk;
+					}
+					++this.nextChunk;
+
+					if (stored) {
+						// At most a copy is left to do, which is not worth a pipeline worker
+						final FutureTask<Chunk> storedChunk = new FutureTask<Chunk>(chunk);
+						storedChunk.run();
+						PipelineExecutor.putUninterruptibly(this.chunks, storedChunk);
+					} else {
+						PipelineExecutor.putUninterruptibly(this.chunks, pipelineExecutor.submitWork(chunk));
+					}
 				}
-			}
 
-			// Decompress the data
-			final int numberOfUncompressedBytes = decompressor.decompress(compressedBuffer,
-				numberOfBytesInCompressedBuffer, bytesToReadFromHDFS, uncompressedBuffer);
+			} finally {
 
-			if (this.sharedMemoryProducer != null) {
-				final ByteBuffer sharedBuffer = this.sharedMemoryProducer.lockSharedMemory();
-				sharedBuffer.put(uncompressedBuffer, 0, numberOfUncompressedBytes);
-				this.sharedMemoryProducer.unlockSharedMemory();
-			}
-			this.numberOfBytesRead += numberOfUncompressedBytes;
+				// Check if we have to cache the last compressed buffer
+				if (this.compressedBuffer != null) {
+					if (this.numberOfBytesInCompressedBuffer > 0) {
+						compressedBuffers.add(new Buffer(this.compressedBuffer, this.numberOfBytesInCompressedBuffer));
+					} else {
+						bufferPool.releaseBuffer(this.compressedBuffer);
+					}
+				}
 
-			if (cacheUncompressed) {
-				final Buffer buffer = new Buffer(uncompressedBuffer, numberOfUncompressedBytes);
-				this.uncompressedBuffers.add(buffer);
+				PipelineExecutor.putUninterruptibly(this.chunks, END_OF_BLOCK);
 			}
 
-			numberOfBytesInCompressedBuffer += bytesToReadFromHDFS;
+			return null;
 		}
 
-		// Check if we have to cache the last compressed buffer
-		if (numberOfBytesInCompressedBuffer > 0 && cacheCompressed) {
-			final Buffer buffer = new Buffer(compressedBuffer, numberOfBytesInCompressedBuffer);
-			this.compressedBuffers.add(buffer);
+		private void abort() {
+
+			this.aborted = true;
 		}
 
-		// Clean up
-		hdfsInputStream.close();
+		/**
+		 * Must only be called after the reader and all decompressions have finished.
+		 */
+		private void releaseDeferredBuffers() {
+
+			final Iterator<Buffer> it = this.deferredBuffers.iterator();
+			while (it.hasNext()) {
+				BufferPool.get().releaseBuffer(it.next().getData());
+			}
+
+			this.deferredBuffers.clear();
+		}
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Hands the given data to the client, dropping what lies outside of the requested range of the block.
 	 */
-	@Override
-	public void close() throws IOException {
+	private void transfer(final ByteBuffer data, final int offset, final int length) throws IOException {
+
+		int off = offset;
+		int len = length;
+		if (this.bytesToSkip > 0L) {
+			final int skip = (int) Math.min(this.bytesToSkip, len);
+			this.bytesToSkip -= skip;
+			off += skip;
+			len -= skip;
+		}
+
+		len = (int) Math.min(len, this.bytesToTransfer);
+		if (len == 0) {
+			return;
+		}
+		this.bytesToTransfer -= len;
 
 		if (this.sharedMemoryProducer != null) {
-			this.sharedMemoryProducer.close();
+			final ByteBuffer src = data.duplicate();
+			src.clear();
+			src.position(off);
+			src.limit(off + len);
+			final ByteBuffer sharedBuffer = this.sharedMemoryProducer.lockSharedMemory();
+			sharedBuffer.put(src);
+			this.sharedMemoryProducer.unlockSharedMemory();
 		}
+		this.numberOfBytesRead += len;
 	}
 
 	private final void clearUncompressedBuffers() {
@@ -248,6 +857,19 @@ final class ReadOp implements Closeable {
 		}
 	}
 
+	private void releaseUncompressedChunks() {
+
+		if (this.uncompressedChunks != null) {
+			for (int i = 0; i < this.uncompressedChunks.length; ++i) {
+				if (this.uncompressedChunks[i] != null) {
+					BufferPool.get().releaseBuffer(this.uncompressedChunks[i].getData());
+				}
+			}
+
+			this.uncompressedChunks = null;
+		}
+	}
+
 	private final void clearCompressedBuffers() {
 
 		if (this.compressedBuffers != null) {
@@ -260,6 +882,26 @@ final class ReadOp implements Closeable {
 		}
 	}
 
+	/**
+	 * Adds the uncompressed chunks read from HDFS to the cache, even if the block has not been read completely.
+	 *
+	 * @return <code>true</code> if the block has been completed in the cache and must be reported to the name node,
+	 *         <code>false</code> otherwise
+	 */
+	boolean cacheUncompressedChunks(final Path path, final int blockIndex) {
+
+		final boolean blockCompleted = this.blockCompleted;
+		this.blockCompleted = false;
+
+		final Buffer[] chunks = this.uncompressedChunks;
+		if (chunks == null) {
+			return blockCompleted;
+		}
+		this.uncompressedChunks = null;
+
+		return UncompressedBufferCache.get().addCachedChunks(path, blockIndex, chunks) || blockCompleted;
+	}
+
 	List<Buffer> getUncompressedBuffers() {
 
 		return Collections.unmodifiableList(this.uncompressedBuffers);
@@ -276,12 +918,20 @@ final class ReadOp implements Closeable {
 			return true;
 		}
 
-		clearCompressedBuffers();
-		clearUncompressedBuffers();
+		releaseBlockBuffers();
 
 		return false;
 	}
 
+	/**
+	 * Hands the buffers gathered to cache the block as a whole back to the pool.
+	 */
+	void releaseBlockBuffers() {
+
+		clearCompressedBuffers();
+		clearUncompressedBuffers();
+	}
+
 	long getNumberOfBytesRead() {
 
 		return this.numberOfBytesRead;
@@ -0,0 +1,101 @@
+package edu.berkeley.icsi.cdfs.datanode;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import edu.berkeley.icsi.cdfs.Header;
+import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryConsumer;
+import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryProducer;
+
+/**
+ * A client connection which carries one stream after the other. The shared memory rings for both directions are set
+ * up with the first stream that needs them and kept for the following ones.
+ */
+final class Session {
+
+	private final SocketChannel channel;
+
+	private HeaderDecoder headerDecoder = new HeaderDecoder();
+
+	private Header header = null;
+
+	/**
+	 * The ring data is read through, <code>null</code> until the client reads for the first time
+	 */
+	private SharedMemoryProducer producer = null;
+
+	/**
+	 * The ring data is written through, <code>null</code> until the client writes for the first time
+	 */
+	private SharedMemoryConsumer consumer = null;
+
+	Session(final SocketChannel channel) {
+
+		this.channel = channel;
+	}
+
+	SocketChannel getChannel() {
+
+		return this.channel;
+	}
+
+	/**
+	 * Reads the available bytes of the next stream's header from the channel.
+	 *
+	 * @return <code>true</code> if the header is complete, <code>false</code> otherwise
+	 * @throws IOException
+	 *         thrown if the channel is closed or the header is malformed
+	 */
+	boolean decodeHeader() throws IOException {
+
+		this.header = this.headerDecoder.decode(this.channel);
+
+		return (this.header != null);
+	}
+
+	Header getHeader() {
+
+		return this.header;
+	}
+
+	/**
+	 * Prepares the session to receive the header of the next stream.
+	 */
+	void nextStream() {
+
+		this.headerDecoder = new HeaderDecoder();
+		this.header = null;
+	}
+
+	SharedMemoryProducer getProducer() throws IOException {
+
+		if (this.producer == null) {
+			this.producer = new SharedMemoryProducer(this.channel.socket());
+		}
+
+		return this.producer;
+	}
+
+	SharedMemoryConsumer getConsumer() throws IOException {
+
+		if (this.consumer == null) {
+			this.consumer = new SharedMemoryConsumer(this.channel.socket());
+		}
+
+		return this.consumer;
+	}
+
+	void close() {
+
+		try {
+			if (this.producer != null) {
+				this.producer.close();
+			}
+			if (this.consumer != null) {
+				this.consumer.close();
+			}
+			this.channel.close();
+		} catch (IOException ioe) {
+		}
+	}
+}
@@ -1,14 +1,19 @@
 package edu.berkeley.icsi.cdfs.datanode;
 
-import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -19,25 +24,81 @@ import org.apache.hadoop.fs.Path;
 
 import edu.berkeley.icsi.cdfs.cache.Buffer;
 import edu.berkeley.icsi.cdfs.cache.BufferPool;
+import edu.berkeley.icsi.cdfs.compression.Codec;
+import edu.berkeley.icsi.cdfs.compression.Codecs;
 import edu.berkeley.icsi.cdfs.compression.Compressor;
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.sharedmem.SharedMemoryConsumer;
-import edu.berkeley.icsi.cdfs.utils.NumberUtils;
+import edu.berkeley.icsi.cdfs.utils.ByteBufferUtils;
 
-final class WriteOp implements Closeable {
+final class WriteOp {
 
 	private static final Log LOG = LogFactory.getLog(WriteOp.class);
 
 	private static final int HDFS_BUFFER_SIZE = 4 * 1024;
 
+	/**
+	 * The largest chunk which fits into a buffer along with its header
+	 */
+	private static final int MAXIMUM_CHUNK_LENGTH = ConfigConstants.BUFFER_SIZE - 4;
+
+	/**
+	 * The minimum size of the part a stored chunk is split off to fill up the current compressed buffer
+	 */
+	private static final int MINIMUM_STORED_PART_LENGTH = 64 * 1024;
+
+	/**
+	 * Marks the end of the chunks of a block in the write pipeline
+	 */
+	private static final Future<Chunk> END_OF_BLOCK = new FutureTask<Chunk>(new Runnable() {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+		}
+	}, null);
+
+	private static final ThreadLocal<Compressor> COMPRESSORS = new ThreadLocal<Compressor>() {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Compressor initialValue() {
+
+			return new Compressor(ConfigConstants.BUFFER_SIZE);
+		}
+	};
+
 	private final FileSystem hdfs;
 
 	private final Configuration conf;
 
-	private final Compressor compressor;
-
 	private final SharedMemoryConsumer sharedMemoryConsumer;
 
+	private final PipelineExecutor pipelineExecutor;
+
+	/**
+	 * The codec all chunks written by this operation are compressed with
+	 */
+	private final Codec codec;
+
+	private final CompressionBypass compressionBypass;
+
+	/**
+	 * Only used by the writer of the pipeline
+	 */
+	private final byte[] stagingBuffer = new byte[ByteBufferUtils.STAGING_BUFFER_SIZE];
+
+	/**
+	 * Heap buffers for chunks which are not cached, reused across the blocks of this operation
+	 */
+	private final Queue<ByteBuffer> uncompressedScratchBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final Queue<ByteBuffer> compressedScratchBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
 	private List<Buffer> uncompressedBuffers = null;
 
 	private List<Buffer> compressedBuffers = null;
@@ -46,12 +107,16 @@ final class WriteOp implements Closeable {
 
 	private int compressedBytesWrittenInBlock = 0;
 
-	WriteOp(final Socket socket, final FileSystem hdfs, final Configuration conf) throws IOException {
+	WriteOp(final SharedMemoryConsumer sharedMemoryConsumer, final FileSystem hdfs, final Configuration conf,
+			final PipelineExecutor pipelineExecutor, final Codec codec) {
 
 		this.hdfs = hdfs;
 		this.conf = conf;
-		this.sharedMemoryConsumer = new SharedMemoryConsumer(socket);
-		this.compressor = new Compressor(ConfigConstants.BUFFER_SIZE);
+		this.pipelineExecutor = pipelineExecutor;
+		this.codec = codec;
+		this.compressionBypass = new CompressionBypass(conf.getFloat(
+			ConfigConstants.COMPRESSION_MINIMUM_SAVINGS_KEY, ConfigConstants.DEFAULT_COMPRESSION_MINIMUM_SAVINGS));
+		this.sharedMemoryConsumer = sharedMemoryConsumer;
 	}
 
 	boolean write(final Path hdfsPath, final int blockSize) throws IOException {
@@ -63,138 +128,386 @@ final class WriteOp implements Closeable {
 		boolean cacheUncompressed = this.conf.getBoolean(ConfigConstants.ENABLE_UNCOMPRESSED_CACHING_KEY,
 			ConfigConstants.DEFAULT_ENABLE_UNCOMPRESSED_CACHING);
 
-		boolean cacheCompressed = this.conf.getBoolean(ConfigConstants.ENABLE_COMPRESSED_CACHING_KEY,
+		final boolean cacheCompressed = this.conf.getBoolean(ConfigConstants.ENABLE_COMPRESSED_CACHING_KEY,
 			ConfigConstants.DEFAULT_ENABLE_COMPRESSED_CACHING);
 
-		byte[] uncompressedBuffer = null;
-		byte[] compressedBuffer = null;
-		int numberOfBytesInCompressedBuffer = 0;
-
-		if (!cacheUncompressed) {
-			uncompressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
-		}
-
-		if (!cacheCompressed) {
-			compressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
-		}
-
 		// Open HDFS output stream
 		final FSDataOutputStream hdfsOutputStream = this.hdfs.create(hdfsPath, true, HDFS_BUFFER_SIZE, (short) 1,
 			blockSize);
 
+		// This thread reads from the client and submits chunks for compression, the writer assembles them in order
+		final BlockingQueue<Future<Chunk>> chunks = new ArrayBlockingQueue<Future<Chunk>>(
+			this.pipelineExecutor.getDepth());
+		final ChunkWriter chunkWriter = new ChunkWriter(hdfsOutputStream, chunks, cacheCompressed);
+		final Future<Void> writerResult = this.pipelineExecutor.submitIO(chunkWriter);
+
+		// Uncompressed buffers which may still be read by in-flight compressions when caching had to be given up
+		final List<Buffer> deferredBuffers = new ArrayList<Buffer>();
+
 		boolean readEOF = false;
 
 		BufferPool bufferPool = BufferPool.get();
 
 		int readBytes = 0;
-		int compressedBytesWritten = 0;
-		while (readBytes < blockSize) {
-
-			final ByteBuffer sharedBuffer;
-			try {
-				sharedBuffer = this.sharedMemoryConsumer.lockSharedMemory();
-			} catch (EOFException e) {
-				readEOF = true;
-				break;
+		IOException failure = null;
+		try {
+
+			while (readBytes < blockSize && !chunkWriter.hasFailed()) {
+
+				final ByteBuffer sharedBuffer;
+				try {
+					sharedBuffer = this.sharedMemoryConsumer.lockSharedMemory();
+				} catch (EOFException e) {
+					readEOF = true;
+					break;
+				}
+
+				// Check out how much data we can read before we cross the block boundary
+				final int bytesToRead = Math.min(sharedBuffer.remaining(), blockSize - readBytes);
+
+				// Get buffer to cache if uncompressed caching is enabled
+				ByteBuffer uncompressedBuffer = null;
+				if (cacheUncompressed) {
+					uncompressedBuffer = bufferPool.lockBuffer();
+					if (uncompressedBuffer == null) {
+						deferredBuffers.addAll(this.uncompressedBuffers);
+						this.uncompressedBuffers.clear();
+						cacheUncompressed = false;
+					}
+				}
+				final boolean uncompressedPooled = (uncompressedBuffer != null);
+				if (!uncompressedPooled) {
+					uncompressedBuffer = takeScratchBuffer(this.uncompressedScratchBuffers,
+						ConfigConstants.BUFFER_SIZE);
+				}
+
+				// Copy data from shared buffer
+				final ByteBuffer src = sharedBuffer.duplicate();
+				src.limit(src.position() + bytesToRead);
+				uncompressedBuffer.clear();
+				uncompressedBuffer.put(src);
+				sharedBuffer.position(src.position());
+
+				if (uncompressedPooled) {
+					final Buffer buffer = new Buffer(uncompressedBuffer, bytesToRead);
+					this.uncompressedBuffers.add(buffer);
+				}
+
+				// Update number of bytes read from the stream
+				readBytes += bytesToRead;
+
+				if (!sharedBuffer.hasRemaining()) {
+					this.sharedMemoryConsumer.unlockSharedMemory();
+				}
+
+				// uncompressedBuffer now contains bytesToRead bytes ready to compress
+				if (this.codec != Codecs.getStored() && this.compressionBypass.tryCompress()) {
+					final Chunk chunk = new Chunk(this.codec, this.compressionBypass, uncompressedBuffer, bytesToRead,
+						uncompressedPooled, takeScratchBuffer(this.compressedScratchBuffers,
+							this.codec.maxCompressedLength(ConfigConstants.BUFFER_SIZE)));
+					PipelineExecutor.putUninterruptibly(chunks, this.pipelineExecutor.submitWork(chunk));
+				} else {
+					// The chunk is stored as it is, so there is no work for the pipeline workers
+					final FutureTask<Chunk> storedChunk = new FutureTask<Chunk>(new Chunk(Codecs.getStored(), null,
+						uncompressedBuffer, bytesToRead, uncompressedPooled, null));
+					storedChunk.run();
+					PipelineExecutor.putUninterruptibly(chunks, storedChunk);
+				}
 			}
 
-			// Check out how much data we can read before we cross the block boundary
-			final int bytesToRead = Math.min(sharedBuffer.remaining(), blockSize - readBytes);
+		} catch (IOException ioe) {
+			failure = ioe;
+		} finally {
+			PipelineExecutor.putUninterruptibly(chunks, END_OF_BLOCK);
+		}
+
+		try {
+			PipelineExecutor.getResult(writerResult);
+		} catch (IOException ioe) {
+			if (failure == null) {
+				failure = ioe;
+			}
+		} finally {
+			// Clean up
+			hdfsOutputStream.close();
+			final Iterator<Buffer> it = deferredBuffers.iterator();
+			while (it.hasNext()) {
+				bufferPool.releaseBuffer(it.next().getData());
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+
+		this.uncompressedBytesWrittenInBlock = readBytes;
+		this.compressedBytesWrittenInBlock = chunkWriter.getCompressedBytesWritten();
+
+		LOG.info("Finished block after " + readBytes + " " + readEOF);
+
+		return readEOF;
+	}
+
+	private static ByteBuffer takeScratchBuffer(final Queue<ByteBuffer> scratchBuffers, final int size) {
+
+		final ByteBuffer buffer = scratchBuffers.poll();
+		if (buffer != null && buffer.capacity() >= size) {
+			buffer.clear();
+			return buffer;
+		}
+
+		// The number of scratch buffers is bounded by the pipeline depth
+		return ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * A chunk of uncompressed data on its way through the write pipeline. Calling the chunk compresses it unless it
+	 * has no buffer for the compressed data, in which case it is stored as it is.
+	 */
+	private static final class Chunk implements Callable<Chunk> {
+
+		private Codec codec;
+
+		private final CompressionBypass compressionBypass;
 
-			// Get buffer to cache if uncompressed caching is enabled
-			if (cacheUncompressed) {
-				uncompressedBuffer = bufferPool.lockBuffer();
-				if (uncompressedBuffer == null) {
-					clearUncompressedBuffers();
-					cacheUncompressed = false;
-					uncompressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
+		private final ByteBuffer uncompressed;
+
+		private final int length;
+
+		private final boolean uncompressedPooled;
+
+		private final ByteBuffer compressed;
+
+		private int compressedLength = 0;
+
+		private Chunk(final Codec codec, final CompressionBypass compressionBypass, final ByteBuffer uncompressed,
+				final int length, final boolean uncompressedPooled, final ByteBuffer compressed) {
+			this.codec = codec;
+			this.compressionBypass = compressionBypass;
+			this.uncompressed = uncompressed;
+			this.length = length;
+			this.uncompressedPooled = uncompressedPooled;
+			this.compressed = compressed;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Chunk call() throws IOException {
+
+			if (this.compressed == null) {
+				return this;
+			}
+
+			this.compressedLength = COMPRESSORS.get().compress(this.codec, this.uncompressed, this.length,
+				this.compressed);
+
+			// Fall back to storing the chunk if compression does not pay off or the result does not fit a buffer
+			if (!this.compressionBypass.reportCompression(this.length, this.compressedLength)
+				|| this.compressedLength > MAXIMUM_CHUNK_LENGTH) {
+				this.codec = Codecs.getStored();
+			}
+
+			return this;
+		}
+	}
+
+	/**
+	 * Takes the compressed chunks in order, packs them into the length-prefixed block format and writes the result
+	 * to HDFS, followed by the block's index footer. The writer keeps taking chunks after a failure, so the reading
+	 * side never blocks on a full pipeline.
+	 */
+	private final class ChunkWriter implements Callable<Void> {
+
+		private final FSDataOutputStream hdfsOutputStream;
+
+		private final BlockingQueue<Future<Chunk>> chunks;
+
+		private boolean cacheCompressed;
+
+		private ByteBuffer compressedBuffer = null;
+
+		private int numberOfBytesInCompressedBuffer = 0;
+
+		private int compressedBytesWritten = 0;
+
+		private final BlockIndex index = new BlockIndex();
+
+		private volatile boolean failed = false;
+
+		private ChunkWriter(final FSDataOutputStream hdfsOutputStream, final BlockingQueue<Future<Chunk>> chunks,
+				final boolean cacheCompressed) {
+			this.hdfsOutputStream = hdfsOutputStream;
+			this.chunks = chunks;
+			this.cacheCompressed = cacheCompressed;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Void call() throws IOException {
+
+			IOException failure = null;
+
+			while (true) {
+
+				final Future<Chunk> future = PipelineExecutor.takeUninterruptibly(this.chunks);
+				if (future == END_OF_BLOCK) {
+					break;
+				}
+
+				Chunk chunk = null;
+				try {
+					chunk = PipelineExecutor.getResult(future);
+					if (failure == null) {
+						writeChunk(chunk);
+					}
+				} catch (IOException ioe) {
+					failure = ioe;
+					this.failed = true;
+				} finally {
+					if (chunk != null) {
+						// Compression is done, so the scratch buffers can be reused
+						if (!chunk.uncompressedPooled) {
+							uncompressedScratchBuffers.offer(chunk.uncompressed);
+						}
+						if (chunk.compressed != null) {
+							compressedScratchBuffers.offer(chunk.compressed);
+						}
+					}
 				}
 			}
 
-			// Copy data from shared buffer
-			sharedBuffer.get(uncompressedBuffer, 0, bytesToRead);
+			if (failure == null) {
+				// We still need to write the remaining data from the compressed buffer to HDFS
+				if (this.numberOfBytesInCompressedBuffer > 0) {
+					ByteBufferUtils.write(this.hdfsOutputStream, this.compressedBuffer, 0,
+						this.numberOfBytesInCompressedBuffer, stagingBuffer);
+					this.compressedBytesWritten += this.numberOfBytesInCompressedBuffer;
+					if (this.cacheCompressed) {
+						final Buffer buffer = new Buffer(this.compressedBuffer, this.numberOfBytesInCompressedBuffer);
+						compressedBuffers.add(buffer);
+						this.compressedBuffer = null;
+					}
+				}
 
-			if (cacheUncompressed) {
-				final Buffer buffer = new Buffer(uncompressedBuffer, bytesToRead);
-				this.uncompressedBuffers.add(buffer);
+				// The index footer goes to HDFS only, the cached buffers just hold the chunks
+				this.index.write(this.hdfsOutputStream);
 			}
 
-			// Update number of bytes read from the stream
-			readBytes += bytesToRead;
+			// Hand back a pool buffer which has not made it into the cache list
+			if (this.cacheCompressed && this.compressedBuffer != null) {
+				BufferPool.get().releaseBuffer(this.compressedBuffer);
+			}
 
-			if (!sharedBuffer.hasRemaining()) {
-				this.sharedMemoryConsumer.unlockSharedMemory();
+			if (failure != null) {
+				throw failure;
 			}
 
-			// uncompressedBuffer now contains bytesToRead bytes ready to compress
-			final int numberOfCompressedBytes = this.compressor.compress(uncompressedBuffer, bytesToRead);
+			return null;
+		}
+
+		private void writeChunk(final Chunk chunk) throws IOException {
+
+			final boolean stored = (chunk.codec == Codecs.getStored());
+			final ByteBuffer data = stored ? chunk.uncompressed : chunk.compressed;
+			final int length = stored ? chunk.length : chunk.compressedLength;
+
+			int offset = 0;
+			while (offset < length) {
+
+				int partLength = length - offset;
+				if (stored) {
+					// Stored chunks can be split at any point, the parts are read back as chunks of their own
+					final int space = (this.compressedBuffer == null) ? 0 : this.compressedBuffer.capacity()
+						- this.numberOfBytesInCompressedBuffer - 4;
+					if (space >= MINIMUM_STORED_PART_LENGTH) {
+						partLength = Math.min(partLength, space);
+					} else {
+						partLength = Math.min(partLength, MAXIMUM_CHUNK_LENGTH);
+					}
+				}
+
+				reserveSpace(partLength);
+
+				final int fileOffset = this.compressedBytesWritten + this.numberOfBytesInCompressedBuffer;
+
+				// Write the codec and the number of bytes to the compressed buffer
+				this.compressedBuffer.putInt(this.numberOfBytesInCompressedBuffer,
+					Codecs.encodeChunkHeader(chunk.codec, partLength));
+				this.numberOfBytesInCompressedBuffer += 4;
+				// Write the data itself
+				final ByteBuffer src = data.duplicate();
+				src.clear();
+				src.limit(offset + partLength);
+				src.position(offset);
+				this.compressedBuffer.position(this.numberOfBytesInCompressedBuffer);
+				this.compressedBuffer.put(src);
+				this.index.addChunk(fileOffset, stored ? partLength : chunk.length, ByteBufferUtils.crc32(
+					this.compressedBuffer, this.numberOfBytesInCompressedBuffer, partLength, stagingBuffer));
+				this.numberOfBytesInCompressedBuffer += partLength;
+
+				offset += partLength;
+			}
+		}
+
+		/**
+		 * Makes sure the compressed buffer has enough space left for a chunk of the given length and its header.
+		 */
+		private void reserveSpace(final int numberOfCompressedBytes) throws IOException {
 
-			// Make sure we have a buffer to write the compressed data to
 			while (true) {
 
 				// We still have an compressed buffer
-				if (compressedBuffer != null) {
-					if (numberOfBytesInCompressedBuffer + numberOfCompressedBytes + 4 <= compressedBuffer.length) {
+				if (this.compressedBuffer != null) {
+					if (this.numberOfBytesInCompressedBuffer + numberOfCompressedBytes + 4 <= this.compressedBuffer
+						.capacity()) {
 						// There is enough memory left in the buffer, we can write to it
 						break;
 					} else {
 						// The buffer is full, write it to HDFS and then decide what to do with it
-						hdfsOutputStream.write(compressedBuffer, 0, numberOfBytesInCompressedBuffer);
-						compressedBytesWritten += numberOfBytesInCompressedBuffer;
-						if (cacheCompressed) {
-							final Buffer buffer = new Buffer(compressedBuffer, numberOfBytesInCompressedBuffer);
-							this.compressedBuffers.add(buffer);
-							numberOfBytesInCompressedBuffer = 0;
-							compressedBuffer = null;
+						ByteBufferUtils.write(this.hdfsOutputStream, this.compressedBuffer, 0,
+							this.numberOfBytesInCompressedBuffer, stagingBuffer);
+						this.compressedBytesWritten += this.numberOfBytesInCompressedBuffer;
+						if (this.cacheCompressed) {
+							final Buffer buffer = new Buffer(this.compressedBuffer,
+								this.numberOfBytesInCompressedBuffer);
+							compressedBuffers.add(buffer);
+							this.numberOfBytesInCompressedBuffer = 0;
+							this.compressedBuffer = null;
 						} else {
-							numberOfBytesInCompressedBuffer = 0;
+							this.numberOfBytesInCompressedBuffer = 0;
 							break;
 						}
 					}
 				} else {
 
-					if (cacheCompressed) {
-						compressedBuffer = bufferPool.lockBuffer();
-						if (compressedBuffer == null) {
-							compressedBuffer = new byte[ConfigConstants.BUFFER_SIZE];
-							clearCompressedBuffers();
-							cacheCompressed = false;
+					if (this.cacheCompressed) {
+						this.compressedBuffer = BufferPool.get().lockBuffer();
+						if (this.compressedBuffer != null) {
+							break;
 						}
-						break;
-					} else {
-						System.out.println("Illegal state2!!!!");
+						clearCompressedBuffers();
+						this.cacheCompressed = false;
 					}
 
+					this.compressedBuffer = ByteBuffer.allocate(ConfigConstants.BUFFER_SIZE);
+					break;
 				}
 			}
-
-			// Write the number of compressed bytes to the compressed buffer
-			NumberUtils.integerToByteArray(numberOfCompressedBytes, compressedBuffer, numberOfBytesInCompressedBuffer);
-			numberOfBytesInCompressedBuffer += 4;
-			// Write the compressed data itself
-			System.arraycopy(this.compressor.getCompressedBuffer(), 0, compressedBuffer,
-				numberOfBytesInCompressedBuffer, numberOfCompressedBytes);
-			numberOfBytesInCompressedBuffer += numberOfCompressedBytes;
 		}
 
-		// We still need to write the remaining data from the compressed buffer to HDFS
-		if (numberOfBytesInCompressedBuffer > 0) {
-			hdfsOutputStream.write(compressedBuffer, 0, numberOfBytesInCompressedBuffer);
-			compressedBytesWritten += numberOfBytesInCompressedBuffer;
-			if (cacheCompressed) {
-				final Buffer buffer = new Buffer(compressedBuffer, numberOfBytesInCompressedBuffer);
-				this.compressedBuffers.add(buffer);
-			}
-		}
+		private boolean hasFailed() {
 
-		// Clean up
-		this.uncompressedBytesWrittenInBlock = readBytes;
-		this.compressedBytesWrittenInBlock = compressedBytesWritten;
-		hdfsOutputStream.close();
+			return this.failed;
+		}
 
-		LOG.info("Finished block after " + readBytes + " " + readEOF);
+		private int getCompressedBytesWritten() {
 
-		return readEOF;
+			return this.compressedBytesWritten;
+		}
 	}
 
 	List<Buffer> getUncompressedBuffers() {
@@ -217,14 +530,9 @@ final class WriteOp implements Closeable {
 		return this.compressedBytesWrittenInBlock;
 	}
 
-	private final void clearUncompressedBuffers() {
+	Codec getCodec() {
 
-		final Iterator<Buffer> it = this.uncompressedBuffers.iterator();
-		while (it.hasNext()) {
-			BufferPool.get().releaseBuffer(it.next().getData());
-		}
-
-		this.uncompressedBuffers.clear();
+		return this.codec;
 	}
 
 	private final void clearCompressedBuffers() {
@@ -236,13 +544,4 @@ final class WriteOp implements Closeable {
 
 		this.compressedBuffers.clear();
 	}
-
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public void close() throws IOException {
-
-		this.sharedMemoryConsumer.close();
-	}
 }
@@ -0,0 +1,169 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Adaptive replacement cache. Cached files read once recently are kept in T1, cached files read more often in T2,
+ * both ordered from the least to the most recently used one. Evicted files are remembered in the ghost lists B1 and
+ * B2. Caching a file in B1 again shows that T1 was too small and shifts the target size of T1 up, caching a file in
+ * B2 again shifts it down. The victim is taken from T1 while it exceeds its target size and from T2 otherwise.
+ */
+final class ArcEvictionPolicy implements EvictionPolicy {
+
+	private final LinkedHashSet<Path> t1 = new LinkedHashSet<Path>();
+
+	private final LinkedHashSet<Path> t2 = new LinkedHashSet<Path>();
+
+	private final LinkedHashSet<Path> b1 = new LinkedHashSet<Path>();
+
+	private final LinkedHashSet<Path> b2 = new LinkedHashSet<Path>();
+
+	/**
+	 * The target size of T1
+	 */
+	private double p = 0.0;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "ARC";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileAccessed(final FileMetaData fmd, final long now) {
+
+		final Path path = fmd.getPath();
+
+		// Reads of files which are not cached are not tracked
+		if (this.t1.remove(path) || this.t2.remove(path)) {
+			this.t2.add(path);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileCached(final FileMetaData fmd, final long now) {
+
+		final Path path = fmd.getPath();
+		if (this.t1.contains(path) || this.t2.contains(path)) {
+			return;
+		}
+
+		// The number of cached files including the new one
+		final int capacity = this.t1.size() + this.t2.size() + 1;
+		if (this.b1.contains(path)) {
+			final double delta = (this.b1.size() >= this.b2.size()) ? 1.0 : (double) this.b2.size()
+				/ (double) this.b1.size();
+			this.p = Math.min(this.p + delta, (double) capacity);
+			this.b1.remove(path);
+			this.t2.add(path);
+			return;
+		}
+
+		if (this.b2.contains(path)) {
+			final double delta = (this.b2.size() >= this.b1.size()) ? 1.0 : (double) this.b1.size()
+				/ (double) this.b2.size();
+			this.p = Math.max(this.p - delta, 0.0);
+			this.b2.remove(path);
+			this.t2.add(path);
+			return;
+		}
+
+		this.t1.add(path);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public FileMetaData chooseVictim(final List<FileMetaData> candidates, final long now) {
+
+		final Map<Path, FileMetaData> candidateMap = new HashMap<Path, FileMetaData>();
+		for (final FileMetaData fmd : candidates) {
+
+			// Files the policy does not know about are evicted first
+			if (!this.t1.contains(fmd.getPath()) && !this.t2.contains(fmd.getPath())) {
+				return fmd;
+			}
+			candidateMap.put(fmd.getPath(), fmd);
+		}
+
+		final boolean preferT1 = (double) this.t1.size() > this.p;
+		FileMetaData victim = leastRecentlyUsed(preferT1 ? this.t1 : this.t2, candidateMap);
+		if (victim == null) {
+			victim = leastRecentlyUsed(preferT1 ? this.t2 : this.t1, candidateMap);
+		}
+
+		return victim;
+	}
+
+	private static FileMetaData leastRecentlyUsed(final LinkedHashSet<Path> list,
+			final Map<Path, FileMetaData> candidates) {
+
+		final Iterator<Path> it = list.iterator();
+		while (it.hasNext()) {
+			final FileMetaData fmd = candidates.get(it.next());
+			if (fmd != null) {
+				return fmd;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileEvicted(final FileMetaData fmd) {
+
+		final Path path = fmd.getPath();
+		if (this.t1.remove(path)) {
+			this.b1.add(path);
+		} else if (this.t2.remove(path)) {
+			this.b2.add(path);
+		}
+
+		// The ghost lists remember at most as many files as are cached
+		final int capacity = Math.max(this.t1.size() + this.t2.size(), 1);
+		this.p = Math.min(this.p, (double) capacity);
+		trim(this.b1, capacity);
+		trim(this.b2, capacity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileRemoved(final FileMetaData fmd) {
+
+		final Path path = fmd.getPath();
+		this.t1.remove(path);
+		this.t2.remove(path);
+		this.b1.remove(path);
+		this.b2.remove(path);
+	}
+
+	private static void trim(final LinkedHashSet<Path> list, final int capacity) {
+
+		final Iterator<Path> it = list.iterator();
+		while (list.size() > capacity) {
+			it.next();
+			it.remove();
+		}
+	}
+}
@@ -1,10 +1,11 @@
 package edu.berkeley.icsi.cdfs.namenode;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.fs.Path;
 
@@ -13,6 +14,8 @@ import com.esotericsoftware.kryo.KryoSerializable;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
+import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
+
 final class BlockMetaData implements KryoSerializable {
 
 	private static final int MAX_BLOCK_LOCATION = 100;
@@ -27,17 +30,30 @@ final class BlockMetaData implements KryoSerializable {
 
 	private long offset;
 
-	private final Set<String> cachedCompressed = new HashSet<String>();
+	/**
+	 * The ID of the codec the block has been written with, chunks which did not compress may be stored instead
+	 */
+	private byte codec;
+
+	/**
+	 * The hosts HDFS stores the block file on, <code>null</code> if they have not been retrieved yet
+	 */
+	private volatile String[] hdfsHosts = null;
+
+	private volatile long hdfsHostsExpiration = 0L;
 
-	private final Set<String> cachedUncompressed = new HashSet<String>();
+	private final Set<String> cachedCompressed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final Set<String> cachedUncompressed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	BlockMetaData(final int index, final Path hdfsPath, final int uncompressedLength, final int compressedLength,
-			final long offset) {
+			final long offset, final byte codec) {
 		this.index = index;
 		this.hdfsPath = hdfsPath;
 		this.uncompressedLength = uncompressedLength;
 		this.compressedLength = compressedLength;
 		this.offset = offset;
+		this.codec = codec;
 	}
 
 	@SuppressWarnings("unused")
@@ -47,6 +63,7 @@ final class BlockMetaData implements KryoSerializable {
 		this.uncompressedLength = 0;
 		this.compressedLength = 0;
 		this.offset = 0L;
+		this.codec = 0;
 	}
 
 	int getIndex() {
@@ -69,6 +86,42 @@ final class BlockMetaData implements KryoSerializable {
 		return this.offset;
 	}
 
+	byte getCodec() {
+		return this.codec;
+	}
+
+	/**
+	 * Returns the number of cache buffers the block occupies in the given form.
+	 */
+	int getNumberOfBuffers(final boolean compressed) {
+
+		final long length = compressed ? this.compressedLength : this.uncompressedLength;
+
+		return (int) ((length + ConfigConstants.BUFFER_SIZE - 1) / ConfigConstants.BUFFER_SIZE);
+	}
+
+	void setCodec(final byte codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the HDFS hosts of the block file unless they have expired.
+	 */
+	String[] getHdfsHosts(final long now) {
+
+		if (now >= this.hdfsHostsExpiration) {
+			return null;
+		}
+
+		return this.hdfsHosts;
+	}
+
+	void setHdfsHosts(final String[] hdfsHosts, final long expiration) {
+
+		this.hdfsHosts = hdfsHosts;
+		this.hdfsHostsExpiration = expiration;
+	}
+
 	String[] constructHostList(final String[] hdfsHosts) {
 
 		final List<String> hosts = new ArrayList<String>();
@@ -0,0 +1,78 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+/**
+ * Estimates how often an item has been seen using a few rows of counters. The estimate is the minimum of the item's
+ * counters and never underestimates the true count. To let old popularity fade, all counters are halved once the
+ * number of recorded items reaches ten times the width of a row.
+ */
+final class CountMinSketch {
+
+	private static final int DEPTH = 4;
+
+	private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+	private final int[][] counters;
+
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int size = 0;
+
+	CountMinSketch(final int width) {
+
+		if (Integer.bitCount(width) != 1) {
+			throw new IllegalStateException("Width of count-min sketch must be a power of two");
+		}
+
+		this.counters = new int[DEPTH][width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	private int index(final int hashCode, final int row) {
+
+		int h = hashCode * SEEDS[row];
+		h ^= h >>> 16;
+
+		return h & this.mask;
+	}
+
+	void increment(final Object item) {
+
+		final int hashCode = item.hashCode();
+		for (int i = 0; i < DEPTH; ++i) {
+			final int index = index(hashCode, i);
+			if (this.counters[i][index] < Integer.MAX_VALUE) {
+				++this.counters[i][index];
+			}
+		}
+
+		if (++this.size == this.sampleSize) {
+			age();
+		}
+	}
+
+	int estimate(final Object item) {
+
+		final int hashCode = item.hashCode();
+		int estimate = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; ++i) {
+			estimate = Math.min(estimate, this.counters[i][index(hashCode, i)]);
+		}
+
+		return estimate;
+	}
+
+	private void age() {
+
+		for (int i = 0; i < DEPTH; ++i) {
+			final int[] row = this.counters[i];
+			for (int j = 0; j < row.length; ++j) {
+				row[j] >>>= 1;
+			}
+		}
+
+		this.size >>>= 1;
+	}
+}
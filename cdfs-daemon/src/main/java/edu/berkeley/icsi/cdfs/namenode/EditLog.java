@@ -0,0 +1,367 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * An append-only log of the changes to the file meta data. Records are collected in memory and written with a single
+ * write and sync for all threads waiting at that time (group commit). Each record is framed by its length and a CRC32
+ * checksum, so a record torn by a crash ends the replay and is cut off.
+ * <p>
+ * When the meta data is snapshotted, the log is rolled: the current file is renamed to <code>edits.old</code> and a
+ * new one is started. Once the snapshot is stored, the old file is deleted. Replaying a record which is already
+ * contained in the snapshot has no effect.
+ */
+final class EditLog {
+
+	private static final Log LOG = LogFactory.getLog(EditLog.class);
+
+	private static final String EDITS_FILENAME = "edits";
+
+	private static final String OLD_EDITS_FILENAME = "edits.old";
+
+	private static final byte OP_CREATE = 1;
+
+	private static final byte OP_ADD_BLOCK = 2;
+
+	private final File editsFile;
+
+	private final File oldEditsFile;
+
+	private RandomAccessFile file;
+
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+
+	private final DataOutputStream record = new DataOutputStream(this.recordBuffer);
+
+	private final CRC32 crc = new CRC32();
+
+	private long txId = 0L;
+
+	private long syncedTxId = 0L;
+
+	private boolean syncInProgress = false;
+
+	private int numberOfEditsSinceRoll = 0;
+
+	private IOException failure = null;
+
+	/**
+	 * Opens the log in the given directory for appending. Any torn record at the end of the log is cut off.
+	 */
+	EditLog(final File directory, final long validLength) throws IOException {
+
+		this.editsFile = new File(directory, EDITS_FILENAME);
+		this.oldEditsFile = new File(directory, OLD_EDITS_FILENAME);
+
+		this.file = new RandomAccessFile(this.editsFile, "rw");
+		if (this.file.length() > validLength) {
+			LOG.warn("Cutting off " + (this.file.length() - validLength) + " bytes of torn records from "
+				+ this.editsFile);
+			this.file.setLength(validLength);
+		}
+		this.file.seek(validLength);
+	}
+
+	static File getEditsFile(final File directory) {
+
+		return new File(directory, EDITS_FILENAME);
+	}
+
+	static File getOldEditsFile(final File directory) {
+
+		return new File(directory, OLD_EDITS_FILENAME);
+	}
+
+	synchronized long logCreate(final Path path, final long modificationTime) throws IOException {
+
+		this.record.writeByte(OP_CREATE);
+		this.record.writeUTF(path.toUri().getPath());
+		this.record.writeLong(modificationTime);
+
+		return appendRecord();
+	}
+
+	synchronized long logAddBlock(final Path cdfsPath, final Path hdfsPath, final int blockIndex,
+			final int uncompressedLength, final int compressedLength, final byte codec, final long modificationTime)
+			throws IOException {
+
+		this.record.writeByte(OP_ADD_BLOCK);
+		this.record.writeUTF(cdfsPath.toUri().getPath());
+		this.record.writeUTF(hdfsPath.toString());
+		this.record.writeInt(blockIndex);
+		this.record.writeInt(uncompressedLength);
+		this.record.writeInt(compressedLength);
+		this.record.writeByte(codec);
+		this.record.writeLong(modificationTime);
+
+		return appendRecord();
+	}
+
+	/**
+	 * Must be called while holding the monitor of the log.
+	 */
+	private long appendRecord() throws IOException {
+
+		final byte[] payload = this.recordBuffer.toByteArray();
+		this.recordBuffer.reset();
+
+		this.crc.reset();
+		this.crc.update(payload, 0, payload.length);
+
+		final DataOutputStream dos = new DataOutputStream(this.buffer);
+		dos.writeInt(payload.length);
+		dos.write(payload);
+		dos.writeInt((int) this.crc.getValue());
+
+		++this.numberOfEditsSinceRoll;
+
+		return ++this.txId;
+	}
+
+	/**
+	 * Waits until the record with the given transaction ID is on disk. If no other thread is writing to the log at the
+	 * moment, the calling thread writes all records collected so far.
+	 */
+	void sync(final long txId) throws IOException {
+
+		final ByteArrayOutputStream toWrite;
+		final long lastTxId;
+
+		synchronized (this) {
+
+			while (true) {
+
+				if (this.failure != null) {
+					throw new IOException("Edit log has failed before", this.failure);
+				}
+
+				if (this.syncedTxId >= txId) {
+					return;
+				}
+
+				if (!this.syncInProgress) {
+					break;
+				}
+
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for edit log sync");
+				}
+			}
+
+			this.syncInProgress = true;
+			toWrite = this.buffer;
+			this.buffer = new ByteArrayOutputStream();
+			lastTxId = this.txId;
+		}
+
+		IOException ioe = null;
+		try {
+			this.file.write(toWrite.toByteArray());
+			this.file.getChannel().force(false);
+		} catch (IOException e) {
+			ioe = e;
+		}
+
+		synchronized (this) {
+
+			this.syncInProgress = false;
+			if (ioe == null) {
+				this.syncedTxId = lastTxId;
+			} else {
+				// The file may contain a partial write now, so nothing must be appended anymore
+				this.failure = ioe;
+			}
+			notifyAll();
+		}
+
+		if (ioe != null) {
+			throw ioe;
+		}
+	}
+
+	synchronized int getNumberOfEditsSinceRoll() {
+
+		return this.numberOfEditsSinceRoll;
+	}
+
+	/**
+	 * Writes all collected records, renames the current log file to <code>edits.old</code> and starts a new one.
+	 */
+	synchronized void roll() throws IOException {
+
+		while (this.syncInProgress) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for edit log sync");
+			}
+		}
+
+		if (this.failure != null) {
+			throw new IOException("Edit log has failed before", this.failure);
+		}
+
+		if (this.oldEditsFile.exists()) {
+			throw new IllegalStateException(this.oldEditsFile + " still exists");
+		}
+
+		this.file.write(this.buffer.toByteArray());
+		this.buffer.reset();
+		this.file.getChannel().force(false);
+		this.file.close();
+		this.syncedTxId = this.txId;
+
+		if (!this.editsFile.renameTo(this.oldEditsFile)) {
+			throw new IOException("Cannot rename " + this.editsFile + " to " + this.oldEditsFile);
+		}
+
+		this.file = new RandomAccessFile(this.editsFile, "rw");
+		this.numberOfEditsSinceRoll = 0;
+	}
+
+	/**
+	 * Deletes the log file of the last roll after its records have been included in a snapshot.
+	 */
+	void purgeOldEdits() throws IOException {
+
+		if (this.oldEditsFile.exists() && !this.oldEditsFile.delete()) {
+			throw new IOException("Cannot delete " + this.oldEditsFile);
+		}
+	}
+
+	synchronized void close() {
+
+		while (this.syncInProgress) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		try {
+			if (this.failure == null) {
+				this.file.write(this.buffer.toByteArray());
+				this.buffer.reset();
+				this.file.getChannel().force(false);
+			}
+			this.file.close();
+		} catch (IOException ioe) {
+			LOG.error("Cannot close edit log: " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Applies the records of the given log file to the meta data.
+	 *
+	 * @param logFile
+	 *        the log file to replay
+	 * @param metaData
+	 *        the meta data to apply the records to
+	 * @return the length of the valid part of the log file in bytes
+	 * @throws IOException
+	 *         thrown if an error occurs while reading the log file
+	 */
+	static long replay(final File logFile, final Map<String, FileMetaData> metaData) throws IOException {
+
+		if (!logFile.exists()) {
+			return 0L;
+		}
+
+		final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+		final CRC32 crc = new CRC32();
+		long validLength = 0L;
+		int numberOfRecords = 0;
+
+		try {
+
+			while (true) {
+
+				final byte[] payload;
+				try {
+					final int length = dis.readInt();
+					if (length <= 0 || length > logFile.length()) {
+						break;
+					}
+					payload = new byte[length];
+					dis.readFully(payload);
+					crc.reset();
+					crc.update(payload, 0, length);
+					if (dis.readInt() != (int) crc.getValue()) {
+						break;
+					}
+				} catch (EOFException e) {
+					break;
+				}
+
+				apply(new DataInputStream(new ByteArrayInputStream(payload)), metaData);
+				validLength += 8 + payload.length;
+				++numberOfRecords;
+			}
+
+		} finally {
+			dis.close();
+		}
+
+		LOG.info("Replayed " + numberOfRecords + " records from " + logFile);
+
+		return validLength;
+	}
+
+	private static void apply(final DataInputStream record, final Map<String, FileMetaData> metaData)
+			throws IOException {
+
+		final byte op = record.readByte();
+		final String path = record.readUTF();
+
+		switch (op) {
+		case OP_CREATE: {
+			final FileMetaData fmd = new FileMetaData(new Path(path));
+			fmd.setModificationTime(record.readLong());
+			metaData.put(path, fmd);
+			break;
+		}
+		case OP_ADD_BLOCK: {
+			final Path hdfsPath = new Path(record.readUTF());
+			final int blockIndex = record.readInt();
+			final int uncompressedLength = record.readInt();
+			final int compressedLength = record.readInt();
+			final byte codec = record.readByte();
+			final long modificationTime = record.readLong();
+
+			final FileMetaData fmd = metaData.get(path);
+			if (fmd == null) {
+				throw new IllegalStateException("Edit log adds block " + blockIndex + " to unknown file " + path);
+			}
+			// Blocks already contained in the snapshot are skipped
+			if (blockIndex >= fmd.getNumberOfBlocks()) {
+				fmd.addNewBlock(hdfsPath, blockIndex, uncompressedLength, compressedLength, codec);
+				fmd.setModificationTime(modificationTime);
+			}
+			break;
+		}
+		default:
+			throw new IllegalStateException("Unknown edit log operation " + op);
+		}
+	}
+}
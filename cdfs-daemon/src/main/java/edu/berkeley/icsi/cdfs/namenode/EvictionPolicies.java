@@ -0,0 +1,39 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+final class EvictionPolicies {
+
+	private EvictionPolicies() {
+	}
+
+	/**
+	 * Creates the eviction policy with the given name, which is one of <code>lfu-f</code>, <code>life</code>,
+	 * <code>lru-k</code>, <code>arc</code> or <code>w-tinylfu</code>.
+	 *
+	 * @param name
+	 *        the name of the policy
+	 * @param fileAccessList
+	 *        the popularity ranking of the files
+	 * @return the eviction policy with the given name
+	 */
+	static EvictionPolicy forName(final String name, final FileAccessList fileAccessList) {
+
+		final String n = name.trim().toLowerCase();
+		if ("lfu-f".equals(n)) {
+			return new LfufEvictionPolicy(fileAccessList);
+		}
+		if ("life".equals(n)) {
+			return new LifeEvictionPolicy();
+		}
+		if ("lru-k".equals(n)) {
+			return new LruKEvictionPolicy();
+		}
+		if ("arc".equals(n)) {
+			return new ArcEvictionPolicy();
+		}
+		if ("w-tinylfu".equals(n)) {
+			return new TinyLfuEvictionPolicy();
+		}
+
+		throw new IllegalStateException("Unknown eviction policy " + name);
+	}
+}
@@ -0,0 +1,50 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.util.List;
+
+/**
+ * Decides which file a data node evicts blocks of. The name node groups a host's cached files by their form
+ * (compressed or uncompressed) and, unless disabled, by whether all of their blocks are cached, and asks the policy to
+ * choose among the files of one group at a time. Incompletely cached files go first, since a file only speeds up a job
+ * once it is cached completely. Uncompressed copies go before compressed ones.
+ * <p>
+ * All methods are called while holding the monitor of the meta data store.
+ */
+interface EvictionPolicy {
+
+	String getName();
+
+	/**
+	 * Called whenever a client reads from the given file, whether it is cached or not. Only files which have been
+	 * passed to {@link #fileCached(FileMetaData, long)} may be tracked in response.
+	 */
+	void fileAccessed(FileMetaData fmd, long now);
+
+	/**
+	 * Called once a block of the given file is cached while no other block of it is. After a full cache report, this
+	 * may happen for a file the policy tracks already.
+	 */
+	void fileCached(FileMetaData fmd, long now);
+
+	/**
+	 * Chooses the file to evict among the given ones, which are cached in the same form and are all either complete
+	 * or incomplete.
+	 *
+	 * @param candidates
+	 *        the files to choose from, never empty
+	 * @param now
+	 *        the current time in milliseconds
+	 * @return the file to evict
+	 */
+	FileMetaData chooseVictim(List<FileMetaData> candidates, long now);
+
+	/**
+	 * Called once no block of the given file is cached on any host anymore.
+	 */
+	void fileEvicted(FileMetaData fmd);
+
+	/**
+	 * Called when the given file has been replaced, so everything remembered about its path is forgotten.
+	 */
+	void fileRemoved(FileMetaData fmd);
+}
@@ -2,16 +2,18 @@ package edu.berkeley.icsi.cdfs.namenode;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,6 +22,12 @@ import org.apache.hadoop.util.StringUtils;
 import edu.berkeley.icsi.cdfs.PopularBlock;
 import edu.berkeley.icsi.cdfs.PopularFile;
 
+/**
+ * Ranks files by an exponentially decayed access score. Instead of decaying all scores over time, new accesses are
+ * weighted up relative to a fixed landmark time (forward decay), so the ranking never has to be recomputed. A score
+ * at time <code>t</code> is its stored value times <code>2^-((t - landmark) / halfLife)</code>. Before the weights
+ * get too large, all scores are rescaled to a new landmark.
+ */
 final class FileAccessList {
 
 	private static final Log LOG = LogFactory.getLog(FileAccessList.class);
@@ -30,34 +38,69 @@ final class FileAccessList {
 
 	private static final int HOT_SET_SIZE = 10;
 
+	/**
+	 * The number of half-lives after which the scores are rescaled to a new landmark
+	 */
+	private static final double RESCALE_HALF_LIVES = 512.0;
+
 	private static final class FileAccessListEntry {
 
 		private final FileMetaData file;
 
-		private int index;
-
-		private double accessCount = 0.0;
-
-		private FileAccessListEntry prev = null;
+		/**
+		 * The decayed access count relative to the landmark
+		 */
+		private double score = 0.0;
 
-		private FileAccessListEntry next = null;
+		/**
+		 * Orders entries with the same score, an entry which reached its score later is ranked lower
+		 */
+		private long sequence;
 
-		private FileAccessListEntry(final FileMetaData file, final int index) {
+		private FileAccessListEntry(final FileMetaData file, final long sequence) {
 			this.file = file;
-			this.index = index;
+			this.sequence = sequence;
 		}
 	}
 
-	private static final class FileAccessListIterator implements Iterator<FileMetaData> {
+	/**
+	 * Ranks entries by descending score.
+	 */
+	private static final Comparator<FileAccessListEntry> RANKING = new Comparator<FileAccessListEntry>() {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int compare(final FileAccessListEntry o1, final FileAccessListEntry o2) {
+
+			if (o1.score > o2.score) {
+				return -1;
+			}
+
+			if (o1.score < o2.score) {
+				return 1;
+			}
+
+			if (o1.sequence < o2.sequence) {
+				return -1;
+			}
+
+			if (o1.sequence > o2.sequence) {
+				return 1;
+			}
 
-		private FileAccessListEntry current;
+			return 0;
+		}
+	};
+
+	private static final class FileAccessListIterator implements Iterator<FileMetaData> {
 
-		private final boolean forward;
+		private final Iterator<FileAccessListEntry> it;
 
-		private FileAccessListIterator(final FileAccessListEntry current, final boolean forward) {
+		private FileAccessListIterator(final Iterator<FileAccessListEntry> it) {
 
-			this.current = current;
-			this.forward = forward;
+			this.it = it;
 		}
 
 		/**
@@ -66,7 +109,7 @@ final class FileAccessList {
 		@Override
 		public boolean hasNext() {
 
-			return (this.current != null);
+			return this.it.hasNext();
 		}
 
 		/**
@@ -75,19 +118,7 @@ final class FileAccessList {
 		@Override
 		public FileMetaData next() {
 
-			if (this.current == null) {
-				throw new NoSuchElementException();
-			}
-
-			final FileMetaData fmd = this.current.file;
-
-			if (this.forward) {
-				this.current = this.current.next;
-			} else {
-				this.current = this.current.prev;
-			}
-
-			return fmd;
+			return this.it.next().file;
 		}
 
 		/**
@@ -103,17 +134,37 @@ final class FileAccessList {
 
 	private final Map<FileMetaData, FileAccessListEntry> lookup = new HashMap<FileMetaData, FileAccessListEntry>();
 
+	/**
+	 * All entries from the most to the least accessed one
+	 */
+	private final TreeSet<FileAccessListEntry> ranking = new TreeSet<FileAccessListEntry>(RANKING);
+
 	private PopularFile[] cachedPopularFiles = null;
 
-	private FileAccessListEntry head = null;
+	/**
+	 * The lowest ranked entry of the cached popular files
+	 */
+	private FileAccessListEntry cachedPopularFilesBoundary = null;
 
-	private FileAccessListEntry tail = null;
+	private int cachedMaximumNumberOfFiles = 0;
 
 	private long counter = 0;
 
-	private int nextElementIndex = 1;
+	private long nextSequence = 0L;
+
+	private final double halfLife;
+
+	private long landmark = System.currentTimeMillis();
+
+	/**
+	 * The decayed number of accesses to all files relative to the landmark
+	 */
+	private double totalAccesses = 0.0;
+
+	FileAccessList(final MetaDataStore mds, final long halfLife) {
+
+		this.halfLife = (double) halfLife;
 
-	FileAccessList(final MetaDataStore mds) {
 		try {
 			loadPopularityList(mds);
 		} catch (IOException e) {
@@ -121,37 +172,53 @@ final class FileAccessList {
 		}
 	}
 
+	boolean contains(final FileMetaData fmd) {
+
+		return this.lookup.containsKey(fmd);
+	}
+
+	/**
+	 * Drops the given file from the ranking, e.g. because it has been replaced.
+	 */
+	void remove(final FileMetaData fmd) {
+
+		final FileAccessListEntry entry = this.lookup.remove(fmd);
+		if (entry != null) {
+			this.ranking.remove(entry);
+			this.cachedPopularFiles = null;
+		}
+	}
+
 	Iterator<FileMetaData> iterator() {
 
-		return new FileAccessListIterator(this.head, true);
+		return new FileAccessListIterator(this.ranking.iterator());
 	}
 
 	Iterator<FileMetaData> reverseIterator() {
 
-		return new FileAccessListIterator(this.tail, false);
+		return new FileAccessListIterator(this.ranking.descendingIterator());
 	}
 
-	private void printAccessCounts() {
+	private void printAccessCounts(final double weight) {
 
 		final StringBuilder sb = new StringBuilder();
-		FileAccessListEntry current = this.head;
+		final Iterator<FileAccessListEntry> it = this.ranking.iterator();
 
-		while (current != null) {
+		for (int i = 1; i <= HOT_SET_SIZE && it.hasNext(); ++i) {
 
-			sb.append(current.file.getPath());
+			final FileAccessListEntry entry = it.next();
+			sb.append(entry.file.getPath());
 			sb.append(":\t");
-			sb.append(current.index);
+			sb.append(i);
 			sb.append('\t');
-			sb.append(current.accessCount);
+			sb.append(entry.score / weight);
 
-			if (current.next != null) {
+			if (it.hasNext() && i < HOT_SET_SIZE) {
 				sb.append('\n');
 			}
-
-			current = current.next;
 		}
 
-		LOG.info(sb.toString());
+		LOG.debug(sb.toString());
 	}
 
 	private static double getIncreaseCountValue(final FileMetaData fmd) {
@@ -159,97 +226,96 @@ final class FileAccessList {
 		return 1.0 / (double) fmd.getNumberOfBlocks();
 	}
 
-	void increaseAccessCount(final FileMetaData fmd) {
+	private double getWeight(final long now) {
 
-		FileAccessListEntry entry = this.lookup.get(fmd);
-		if (entry == null) {
-			entry = new FileAccessListEntry(fmd, this.nextElementIndex++);
-			this.lookup.put(fmd, entry);
+		return Math.pow(2.0, (double) (now - this.landmark) / this.halfLife);
+	}
 
-			// Add entry to tail of list
-			if (this.tail == null) {
-				// List is empty
-				this.tail = entry;
-				this.head = entry;
-			} else {
-
-				final FileAccessListEntry oldTail = this.tail;
-				this.tail = entry;
-				entry.prev = oldTail;
-				oldTail.next = entry;
-			}
-		}
+	/**
+	 * Moves the landmark to the given time and scales all scores accordingly.
+	 */
+	private void rescale(final long now) {
 
-		// Increase access count
-		entry.accessCount += getIncreaseCountValue(fmd);
+		final double factor = 1.0 / getWeight(now);
 
-		while (true) {
+		// Rounding may turn close scores into equal ones, so the ranking is rebuilt instead of updated in place
+		final List<FileAccessListEntry> entries = new ArrayList<FileAccessListEntry>(this.ranking);
+		this.ranking.clear();
+		for (final FileAccessListEntry entry : entries) {
+			entry.score *= factor;
+			this.ranking.add(entry);
+		}
 
-			final FileAccessListEntry prev = entry.prev;
+		this.totalAccesses *= factor;
+		this.landmark = now;
+		this.cachedPopularFiles = null;
+	}
 
-			// We need to rebuild the hot set
-			if (entry.index <= HOT_SET_SIZE) {
-				this.cachedPopularFiles = null;
-			}
+	void increaseAccessCount(final FileMetaData fmd) {
 
-			if (prev == null) {
-				break;
-			}
+		final long now = System.currentTimeMillis();
+		if ((double) (now - this.landmark) / this.halfLife > RESCALE_HALF_LIVES) {
+			rescale(now);
+		}
+		final double weight = getWeight(now);
 
-			if (prev.accessCount >= entry.accessCount) {
-				break;
-			}
+		FileAccessListEntry entry = this.lookup.get(fmd);
+		if (entry == null) {
+			entry = new FileAccessListEntry(fmd, this.nextSequence++);
+			this.lookup.put(fmd, entry);
+		} else {
+			this.ranking.remove(entry);
+		}
 
-			// Swap prev and entry
-			final FileAccessListEntry next = entry.next;
-			final FileAccessListEntry prevPrev = prev.prev;
+		// The popular files change if the entry leaves or enters them
+		final boolean wasPopular = isCachedPopularFile(entry);
 
-			entry.prev = prevPrev;
-			entry.next = prev;
-			prev.prev = entry;
-			prev.next = next;
+		// Increase access count
+		entry.score += getIncreaseCountValue(fmd) * weight;
+		this.totalAccesses += weight;
+		entry.sequence = this.nextSequence++;
+		this.ranking.add(entry);
 
-			final int oldIndex = entry.index;
-			entry.index = prev.index;
-			prev.index = oldIndex;
+		if (wasPopular || isCachedPopularFile(entry)) {
+			this.cachedPopularFiles = null;
+		}
 
-			if (next != null) {
-				next.prev = prev;
-			}
+		if (++this.counter % REPORT_INTERVAL == 0L && LOG.isDebugEnabled()) {
 
-			if (prevPrev != null) {
-				prevPrev.next = entry;
-			}
+			printAccessCounts(weight);
+		}
+	}
 
-			if (entry == this.tail) {
-				this.tail = prev;
-			}
+	private boolean isCachedPopularFile(final FileAccessListEntry entry) {
 
-			if (prev == this.head) {
-				this.head = entry;
-			}
+		if (this.cachedPopularFiles == null) {
+			return false;
 		}
 
-		if (++this.counter % REPORT_INTERVAL == 0L) {
-
-			printAccessCounts();
+		// If there are fewer files than asked for, every file is popular
+		if (this.cachedPopularFilesBoundary == null) {
+			return true;
 		}
+
+		return RANKING.compare(entry, this.cachedPopularFilesBoundary) <= 0;
 	}
 
 	PopularFile[] getPopularFiles(final int maximumNumberOfFiles) {
 
-		if (this.cachedPopularFiles != null) {
+		if (this.cachedPopularFiles != null && this.cachedMaximumNumberOfFiles == maximumNumberOfFiles) {
 			return this.cachedPopularFiles;
 		}
 
 		final List<PopularFile> popularFiles = new ArrayList<PopularFile>(maximumNumberOfFiles);
 
-		FileAccessListEntry entry = this.head;
+		final Iterator<FileAccessListEntry> entries = this.ranking.iterator();
+		FileAccessListEntry entry = null;
 		for (int i = 0; i < maximumNumberOfFiles; ++i) {
 
-			if (entry == null) {
+			if (!entries.hasNext()) {
 				break;
 			}
+			entry = entries.next();
 
 			final int numberOfBlocks = entry.file.getNumberOfBlocks();
 			final PopularBlock[] popularBlocks = new PopularBlock[numberOfBlocks];
@@ -261,14 +327,15 @@ final class FileAccessList {
 					bmd.getCompressedLength());
 			}
 
-			final double popularityFactor = (entry.accessCount * (double) numberOfBlocks) / (double) this.counter;
+			final double popularityFactor = (entry.score * (double) numberOfBlocks) / this.totalAccesses;
 
 			popularFiles.add(new PopularFile(entry.file.getPath(), popularBlocks, popularityFactor));
-
-			entry = entry.next;
 		}
 
 		this.cachedPopularFiles = popularFiles.toArray(new PopularFile[0]);
+		this.cachedMaximumNumberOfFiles = maximumNumberOfFiles;
+		// Without a boundary, the cached files contain all entries
+		this.cachedPopularFilesBoundary = entries.hasNext() ? entry : null;
 
 		return this.cachedPopularFiles;
 	}
@@ -289,23 +356,30 @@ final class FileAccessList {
 
 		try {
 
+			// Scores are stored as of now, the time and the total accesses follow the entries
+			final long now = System.currentTimeMillis();
+			final double weight = getWeight(now);
+
+			// The file starts with the next rank to keep the format of earlier versions
 			dos.writeLong(this.counter);
-			dos.writeInt(this.nextElementIndex);
+			dos.writeInt(this.ranking.size() + 1);
 
-			FileAccessListEntry entry = this.head;
+			final Iterator<FileAccessListEntry> it = this.ranking.iterator();
 			int c = 0;
-			while (entry != null) {
+			while (it.hasNext()) {
 
+				final FileAccessListEntry entry = it.next();
 				++c;
 
 				dos.writeUTF(entry.file.getPath().toUri().getPath());
-				dos.writeInt(entry.index);
-				dos.writeDouble(entry.accessCount);
-
-				entry = entry.next;
+				dos.writeInt(c);
+				dos.writeDouble(entry.score / weight);
 			}
 
-			LOG.info("Writing " + c + " elements, " + this.nextElementIndex);
+			dos.writeDouble(this.totalAccesses / weight);
+			dos.writeLong(now);
+
+			LOG.info("Writing " + c + " elements");
 
 		} finally {
 			dos.close();
@@ -325,11 +399,9 @@ final class FileAccessList {
 		try {
 
 			this.counter = dis.readLong();
-			this.nextElementIndex = dis.readInt();
 
-			final int numberOfFiles = this.nextElementIndex - 1;
+			final int numberOfFiles = dis.readInt() - 1;
 
-			FileAccessListEntry previousEntry = null;
 			LOG.info("Expecting to read " + numberOfFiles + " files");
 			for (int i = 0; i < numberOfFiles; ++i) {
 
@@ -339,24 +411,25 @@ final class FileAccessList {
 					throw new IllegalStateException("Cannot find metadata to file " + path);
 				}
 				final int index = dis.readInt();
-				final double accessCount = dis.readDouble();
+				final double score = dis.readDouble();
 
-				final FileAccessListEntry entry = new FileAccessListEntry(fmd, index);
-				entry.accessCount = accessCount;
-
-				if (previousEntry == null) {
-					this.head = entry;
-				} else {
-					previousEntry.next = entry;
-				}
-
-				entry.prev = previousEntry;
-				this.tail = entry;
-				previousEntry = entry;
+				// The entries are stored by rank, so the sequence keeps the order of entries with equal scores
+				final FileAccessListEntry entry = new FileAccessListEntry(fmd, this.nextSequence++);
+				entry.score = score;
 
+				this.ranking.add(entry);
 				this.lookup.put(fmd, entry);
 
-				LOG.info("Read " + path + ", " + index + ", " + accessCount);
+				LOG.info("Read " + path + ", " + index + ", " + score);
+			}
+
+			// Earlier versions stored undecayed counts without the time, so they are taken as of now
+			try {
+				this.totalAccesses = dis.readDouble();
+				this.landmark = dis.readLong();
+			} catch (EOFException e) {
+				this.totalAccesses = (double) this.counter;
+				this.landmark = System.currentTimeMillis();
 			}
 
 		} finally {
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.hadoop.fs.Path;
 
@@ -16,11 +17,14 @@ final class FileMetaData implements KryoSerializable, Comparable<FileMetaData> {
 
 	private Path path;
 
-	private long length;
+	private volatile long length;
 
-	private long modificationTime;
+	private volatile long modificationTime;
 
-	private final List<BlockMetaData> blocks = new ArrayList<BlockMetaData>();
+	/**
+	 * Blocks are only ever appended, so readers can work on a snapshot without locking the file
+	 */
+	private final List<BlockMetaData> blocks = new CopyOnWriteArrayList<BlockMetaData>();
 
 	FileMetaData(final Path path) {
 		this.path = path;
@@ -83,14 +87,16 @@ final class FileMetaData implements KryoSerializable, Comparable<FileMetaData> {
 		return (startA < endB && startB < endA);
 	}
 
-	void addNewBlock(final Path hdfsPath, final int blockIndex, final int uncompressedLength, final int compressedLength) {
+	synchronized void addNewBlock(final Path hdfsPath, final int blockIndex, final int uncompressedLength,
+			final int compressedLength, final byte codec) {
 
 		// Sanity check
 		if (blockIndex != this.blocks.size()) {
 			throw new IllegalStateException("Expected block " + this.blocks.size() + ", but received " + blockIndex);
 		}
 
-		this.blocks.add(new BlockMetaData(blockIndex, hdfsPath, uncompressedLength, compressedLength, this.length));
+		this.blocks.add(new BlockMetaData(blockIndex, hdfsPath, uncompressedLength, compressedLength, this.length,
+			codec));
 
 		// Increase the length of the total file
 		this.length += uncompressedLength;
@@ -107,6 +113,10 @@ final class FileMetaData implements KryoSerializable, Comparable<FileMetaData> {
 		return this.modificationTime;
 	}
 
+	void setModificationTime(final long modificationTime) {
+		this.modificationTime = modificationTime;
+	}
+
 	BlockMetaData addCachedBlock(final int blockIndex, final String host, final boolean compressed) {
 
 		final BlockMetaData bmd = this.blocks.get(blockIndex);
@@ -135,6 +145,24 @@ final class FileMetaData implements KryoSerializable, Comparable<FileMetaData> {
 		return true;
 	}
 
+	/**
+	 * Checks whether any block of the file is cached in any form on any host.
+	 */
+	boolean isCached() {
+
+		final Iterator<BlockMetaData> it = this.blocks.iterator();
+
+		while (it.hasNext()) {
+
+			final BlockMetaData bmd = it.next();
+			if (bmd.isCached(false) || bmd.isCached(true)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	BlockMetaData removeCachedBlock(final int blockIndex, final String host, final boolean compressed) {
 
 		final BlockMetaData bmd = this.blocks.get(blockIndex);
@@ -157,10 +185,14 @@ final class FileMetaData implements KryoSerializable, Comparable<FileMetaData> {
 		output.writeString(this.path.toString());
 		output.writeLong(this.length);
 		output.writeLong(this.modificationTime);
-		output.writeInt(this.blocks.size());
+		// A negative block count announces the codecs following the blocks, older files lack them
+		output.writeInt(-this.blocks.size() - 1);
 		for (final BlockMetaData bmd : this.blocks) {
 			kryo.writeObject(output, bmd);
 		}
+		for (final BlockMetaData bmd : this.blocks) {
+			output.writeByte(bmd.getCodec());
+		}
 	}
 
 	/**
@@ -172,10 +204,17 @@ final class FileMetaData implements KryoSerializable, Comparable<FileMetaData> {
 		this.path = new Path(input.readString());
 		this.length = input.readLong();
 		this.modificationTime = input.readLong();
-		final int numberOfBlocks = input.readInt();
+		final int blockCount = input.readInt();
+		final boolean hasCodecs = (blockCount < 0);
+		final int numberOfBlocks = hasCodecs ? -blockCount - 1 : blockCount;
 		for (int i = 0; i < numberOfBlocks; ++i) {
 			this.blocks.add(kryo.readObject(input, BlockMetaData.class));
 		}
+		if (hasCodecs) {
+			for (final BlockMetaData bmd : this.blocks) {
+				bmd.setCodec(input.readByte());
+			}
+		}
 	}
 
 	Iterator<BlockMetaData> getBlockIterator() {
@@ -1,58 +1,37 @@
 package edu.berkeley.icsi.cdfs.namenode;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
-import edu.berkeley.icsi.cdfs.cache.EvictionEntry;
-
 final class HostCacheData {
 
-	private final Map<FileMetaData, Set<BlockMetaData>> cachedCompressedBlocks = new TreeMap<FileMetaData, Set<BlockMetaData>>();
-
-	private final Map<FileMetaData, Set<BlockMetaData>> cachedUncompressedBlocks = new TreeMap<FileMetaData, Set<BlockMetaData>>();
+	private static final Comparator<BlockMetaData> BLOCK_INDEX_COMPARATOR = new Comparator<BlockMetaData>() {
 
-	private final FileAccessList fileAccessList;
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int compare(final BlockMetaData o1, final BlockMetaData o2) {
 
-	HostCacheData(final FileAccessList fileAccessList) {
-		this.fileAccessList = fileAccessList;
-	}
-
-	EvictionEntry getLargestCompressedIncompleteFile() {
-		return getLargestFile(true, false);
-	}
-
-	EvictionEntry getLargestUncompressedIncompleteFile() {
-		return getLargestFile(false, false);
-	}
-
-	EvictionEntry getLargestCompressedCompleteFile() {
-		return getLargestFile(true, true);
-	}
-
-	EvictionEntry getLargestUncompressedCompleteFile() {
-		return getLargestFile(false, true);
-	}
-
-	EvictionEntry getLeastAccessedCompressedIncompleteFile() {
-		return getLeastAccessedFile(true, false);
-	}
-
-	EvictionEntry getLeastAccessedUncompressedIncompleteFile() {
-		return getLeastAccessedFile(false, false);
-	}
+			return o1.getIndex() - o2.getIndex();
+		}
+	};
 
-	EvictionEntry getLeastAccessedCompressedCompleteFile() {
-		return getLeastAccessedFile(true, true);
-	}
+	private final Map<FileMetaData, Set<BlockMetaData>> cachedCompressedBlocks = new TreeMap<FileMetaData, Set<BlockMetaData>>();
 
-	EvictionEntry getLeastAccessedUncompressedCompleteFile() {
-		return getLeastAccessedFile(false, true);
-	}
+	private final Map<FileMetaData, Set<BlockMetaData>> cachedUncompressedBlocks = new TreeMap<FileMetaData, Set<BlockMetaData>>();
 
-	private EvictionEntry getLeastAccessedFile(final boolean compressed, final boolean complete) {
+	/**
+	 * Returns the files with cached blocks in the given form whose blocks are either all cached or not.
+	 */
+	List<FileMetaData> getCachedFiles(final boolean compressed, final boolean complete) {
 
 		final Map<FileMetaData, Set<BlockMetaData>> cachedBlocks;
 		if (compressed) {
@@ -61,48 +40,50 @@ final class HostCacheData {
 			cachedBlocks = this.cachedUncompressedBlocks;
 		}
 
-		FileMetaData leastAccessedFile = null;
-		final Iterator<FileMetaData> it = this.fileAccessList.reverseIterator();
+		final List<FileMetaData> files = new ArrayList<FileMetaData>();
+		final Iterator<FileMetaData> it = cachedBlocks.keySet().iterator();
 		while (it.hasNext()) {
-
 			final FileMetaData fmd = it.next();
-			if (!cachedBlocks.containsKey(fmd)) {
-				continue;
+			if (complete == fmd.isCachedCompletely(compressed)) {
+				files.add(fmd);
 			}
+		}
 
-			if (complete != fmd.isCachedCompletely(compressed)) {
-				continue;
-			}
+		return files;
+	}
 
-			leastAccessedFile = fmd;
-			break;
-		}
+	/**
+	 * Returns all files with cached blocks in the given form.
+	 */
+	List<FileMetaData> getCachedFiles(final boolean compressed) {
 
-		if (leastAccessedFile == null) {
-			return null;
+		if (compressed) {
+			return new ArrayList<FileMetaData>(this.cachedCompressedBlocks.keySet());
 		}
 
-		return new EvictionEntry(leastAccessedFile.getPath(), leastAccessedFile.getNumberOfBlocks(), compressed);
+		return new ArrayList<FileMetaData>(this.cachedUncompressedBlocks.keySet());
 	}
 
-	private EvictionEntry getLargestFile(final boolean compressed, final boolean complete) {
+	/**
+	 * Returns the blocks of the given file cached in the given form, ordered by their index.
+	 */
+	List<BlockMetaData> getCachedBlocks(final FileMetaData fmd, final boolean compressed) {
 
-		final Map<FileMetaData, Set<BlockMetaData>> cachedBlocks;
+		final Set<BlockMetaData> blockSet;
 		if (compressed) {
-			cachedBlocks = this.cachedCompressedBlocks;
+			blockSet = this.cachedCompressedBlocks.get(fmd);
 		} else {
-			cachedBlocks = this.cachedUncompressedBlocks;
+			blockSet = this.cachedUncompressedBlocks.get(fmd);
 		}
 
-		final Iterator<FileMetaData> it = cachedBlocks.keySet().iterator();
-		while (it.hasNext()) {
-			final FileMetaData fmd = it.next();
-			if (complete == fmd.isCachedCompletely(compressed)) {
-				return new EvictionEntry(fmd.getPath(), fmd.getNumberOfBlocks(), compressed);
-			}
+		if (blockSet == null) {
+			return Collections.emptyList();
 		}
 
-		return null;
+		final List<BlockMetaData> blocks = new ArrayList<BlockMetaData>(blockSet);
+		Collections.sort(blocks, BLOCK_INDEX_COMPARATOR);
+
+		return blocks;
 	}
 
 	void add(final FileMetaData fmd, final BlockMetaData bmd, final boolean compressed) {
@@ -122,6 +103,29 @@ final class HostCacheData {
 		blockSet.add(bmd);
 	}
 
+	/**
+	 * Removes the host from all blocks it has cached and forgets about these blocks.
+	 */
+	void clear(final String host) {
+
+		clear(this.cachedCompressedBlocks, host, true);
+		clear(this.cachedUncompressedBlocks, host, false);
+	}
+
+	private static void clear(final Map<FileMetaData, Set<BlockMetaData>> cachedBlocks, final String host,
+			final boolean compressed) {
+
+		final Iterator<Set<BlockMetaData>> it = cachedBlocks.values().iterator();
+		while (it.hasNext()) {
+			final Iterator<BlockMetaData> it2 = it.next().iterator();
+			while (it2.hasNext()) {
+				it2.next().removeCachedBlock(host, compressed);
+			}
+		}
+
+		cachedBlocks.clear();
+	}
+
 	void remove(final FileMetaData fmd, final BlockMetaData bmd, final boolean compressed) {
 
 		final Map<FileMetaData, Set<BlockMetaData>> cachedBlocks;
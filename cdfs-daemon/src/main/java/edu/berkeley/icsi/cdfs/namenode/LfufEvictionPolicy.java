@@ -0,0 +1,84 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evicts the least frequently used file according to the decayed popularity ranking.
+ */
+final class LfufEvictionPolicy implements EvictionPolicy {
+
+	private final FileAccessList fileAccessList;
+
+	LfufEvictionPolicy(final FileAccessList fileAccessList) {
+		this.fileAccessList = fileAccessList;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "LFU-F";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileAccessed(final FileMetaData fmd, final long now) {
+
+		// The file access list is updated by the meta data store
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileCached(final FileMetaData fmd, final long now) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public FileMetaData chooseVictim(final List<FileMetaData> candidates, final long now) {
+
+		// Files which have never been read are the least popular ones
+		final Set<FileMetaData> candidateSet = Collections.newSetFromMap(new IdentityHashMap<FileMetaData, Boolean>());
+		for (final FileMetaData fmd : candidates) {
+			if (!this.fileAccessList.contains(fmd)) {
+				return fmd;
+			}
+			candidateSet.add(fmd);
+		}
+
+		final Iterator<FileMetaData> it = this.fileAccessList.reverseIterator();
+		while (it.hasNext()) {
+			final FileMetaData fmd = it.next();
+			if (candidateSet.contains(fmd)) {
+				return fmd;
+			}
+		}
+
+		return candidates.get(0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileEvicted(final FileMetaData fmd) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileRemoved(final FileMetaData fmd) {
+	}
+}
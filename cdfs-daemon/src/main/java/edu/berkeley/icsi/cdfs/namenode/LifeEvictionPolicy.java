@@ -0,0 +1,62 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.util.List;
+
+/**
+ * Evicts the largest file, which frees the most memory while hurting the fewest jobs.
+ */
+final class LifeEvictionPolicy implements EvictionPolicy {
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "LIFE";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileAccessed(final FileMetaData fmd, final long now) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileCached(final FileMetaData fmd, final long now) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public FileMetaData chooseVictim(final List<FileMetaData> candidates, final long now) {
+
+		FileMetaData victim = null;
+		for (final FileMetaData fmd : candidates) {
+			if (victim == null || fmd.getLength() > victim.getLength()) {
+				victim = fmd;
+			}
+		}
+
+		return victim;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileEvicted(final FileMetaData fmd) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileRemoved(final FileMetaData fmd) {
+	}
+}
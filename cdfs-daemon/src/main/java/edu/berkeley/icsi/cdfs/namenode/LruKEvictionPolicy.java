@@ -0,0 +1,135 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Evicts the file whose K-th most recent access lies furthest in the past (LRU-K with K = 2). Files accessed fewer
+ * than K times are evicted first, the least recently used of them before the others. Unlike plain LRU, a single scan
+ * over a file does not make it look popular.
+ */
+final class LruKEvictionPolicy implements EvictionPolicy {
+
+	private static final int K = 2;
+
+	/**
+	 * The times of the last K accesses of each cached file, the most recent one first, <code>0</code> for none
+	 */
+	private final Map<Path, long[]> history = new HashMap<Path, long[]>();
+
+	/**
+	 * The access times of evicted files, the least recently evicted one first, so a file cached again soon after its
+	 * eviction is recognized
+	 */
+	private final LinkedHashMap<Path, long[]> retainedHistory = new LinkedHashMap<Path, long[]>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "LRU-" + K;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileAccessed(final FileMetaData fmd, final long now) {
+
+		// Reads of files which are not cached are not tracked
+		final long[] accessTimes = this.history.get(fmd.getPath());
+		if (accessTimes != null) {
+			recordAccess(accessTimes, now);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileCached(final FileMetaData fmd, final long now) {
+
+		final Path path = fmd.getPath();
+		if (this.history.containsKey(path)) {
+			return;
+		}
+
+		long[] accessTimes = this.retainedHistory.remove(path);
+		if (accessTimes == null) {
+			accessTimes = new long[K];
+		}
+		this.history.put(path, accessTimes);
+
+		// The file is cached because it has just been read
+		recordAccess(accessTimes, now);
+	}
+
+	private static void recordAccess(final long[] accessTimes, final long now) {
+
+		System.arraycopy(accessTimes, 0, accessTimes, 1, K - 1);
+		accessTimes[0] = now;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public FileMetaData chooseVictim(final List<FileMetaData> candidates, final long now) {
+
+		FileMetaData victim = null;
+		long victimKthAccess = Long.MAX_VALUE;
+		long victimLastAccess = Long.MAX_VALUE;
+
+		for (final FileMetaData fmd : candidates) {
+
+			final long[] accessTimes = this.history.get(fmd.getPath());
+			final long kthAccess = (accessTimes == null) ? 0L : accessTimes[K - 1];
+			final long lastAccess = (accessTimes == null) ? 0L : accessTimes[0];
+
+			if (kthAccess < victimKthAccess || (kthAccess == victimKthAccess && lastAccess < victimLastAccess)) {
+				victim = fmd;
+				victimKthAccess = kthAccess;
+				victimLastAccess = lastAccess;
+			}
+		}
+
+		return victim;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileEvicted(final FileMetaData fmd) {
+
+		final long[] accessTimes = this.history.remove(fmd.getPath());
+		if (accessTimes != null) {
+			this.retainedHistory.put(fmd.getPath(), accessTimes);
+		}
+
+		// The history of at most as many evicted files as are cached is retained
+		final int capacity = Math.max(this.history.size(), 1);
+		final Iterator<Path> it = this.retainedHistory.keySet().iterator();
+		while (this.retainedHistory.size() > capacity) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileRemoved(final FileMetaData fmd) {
+
+		this.history.remove(fmd.getPath());
+		this.retainedHistory.remove(fmd.getPath());
+	}
+}
@@ -4,9 +4,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -24,39 +29,90 @@ import edu.berkeley.icsi.cdfs.BlockReadInformation;
 import edu.berkeley.icsi.cdfs.CDFS;
 import edu.berkeley.icsi.cdfs.CDFSBlockLocation;
 import edu.berkeley.icsi.cdfs.PopularFile;
+import edu.berkeley.icsi.cdfs.cache.CachedBlocks;
 import edu.berkeley.icsi.cdfs.cache.EvictionEntry;
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.utils.HostUtils;
 import edu.berkeley.icsi.cdfs.utils.PathConverter;
 
+/**
+ * The file meta data is kept in a concurrent map and can be read without locking. Changes to a file lock only the
+ * file itself. The host cache data and the file access list span all files, so they are guarded by the monitor of
+ * the store. HDFS is never called while holding any of these locks. Only creating a file holds a lock for its path
+ * while doing so, since an existing file's replacement must be persisted and its old blocks deleted before the new
+ * file becomes visible.
+ * <p>
+ * Changes are persisted through an {@link EditLog}, which is compacted into a snapshot of all files once it has grown
+ * large enough. At startup, the snapshot is loaded and the log is replayed on top of it.
+ */
 final class MetaDataStore {
 
 	private static final Log LOG = LogFactory.getLog(MetaDataStore.class);
 
+	private static final String LOG_DIRECTORY = "log";
+
+	private static final String IMAGE_FILENAME = "image";
+
+	/**
+	 * The number of locks the paths of files being created are spread across
+	 */
+	private static final int NUMBER_OF_CREATE_LOCKS = 64;
+
 	private final FileSystem hdfs;
 
 	private final PathConverter pathConverter;
 
 	private final String storageLocation;
 
-	private final Map<String, FileMetaData> metaData = new HashMap<String, FileMetaData>();
+	private final File logDirectory;
+
+	private final ConcurrentHashMap<String, FileMetaData> metaData = new ConcurrentHashMap<String, FileMetaData>();
+
+	private final Object[] createLocks = new Object[NUMBER_OF_CREATE_LOCKS];
 
 	private final Map<String, HostCacheData> hostCacheData = new HashMap<String, HostCacheData>();
 
 	private final FileAccessList fileAccessList;
 
+	private final EvictionPolicy evictionPolicy;
+
+	/**
+	 * Whether incompletely cached files are evicted before completely cached ones
+	 */
+	private final boolean evictAllOrNothing;
+
 	private final Kryo kryo = new Kryo();
 
 	private final boolean cacheUncompressed;
 
 	private final boolean cacheCompressed;
 
+	private final long hdfsHostsTTL;
+
+	private final EditLog editLog;
+
+	private final int snapshotThreshold;
+
+	private final Object snapshotLock = new Object();
+
+	/**
+	 * Held shared by each create and exclusively by the snapshot while it rolls the edit log and collects the files,
+	 * so a file logged before the roll is always part of the snapshot
+	 */
+	private final ReadWriteLock createBarrier = new ReentrantReadWriteLock();
+
+	private final Snapshotter snapshotter;
+
 	public MetaDataStore(final FileSystem hdfs, final PathConverter pathConverter, final Configuration conf)
 			throws IOException {
 
 		this.hdfs = hdfs;
 		this.pathConverter = pathConverter;
 
+		for (int i = 0; i < this.createLocks.length; ++i) {
+			this.createLocks[i] = new Object();
+		}
+
 		String userName = System.getProperty("user.name");
 		if (userName == null) {
 			userName = "default";
@@ -68,94 +124,242 @@ final class MetaDataStore {
 		this.cacheCompressed = conf.getBoolean(ConfigConstants.ENABLE_COMPRESSED_CACHING_KEY,
 			ConfigConstants.DEFAULT_ENABLE_COMPRESSED_CACHING);
 
+		this.hdfsHostsTTL = conf.getLong(ConfigConstants.NAMENODE_HDFS_HOSTS_TTL_KEY,
+			ConfigConstants.DEFAULT_NAMENODE_HDFS_HOSTS_TTL);
+
+		this.snapshotThreshold = conf.getInt(ConfigConstants.NAMENODE_SNAPSHOT_EDITS_KEY,
+			ConfigConstants.DEFAULT_NAMENODE_SNAPSHOT_EDITS);
+		if (this.snapshotThreshold < 1) {
+			throw new IllegalStateException(ConfigConstants.NAMENODE_SNAPSHOT_EDITS_KEY + " must be at least 1");
+		}
+
 		this.storageLocation = "/tmp/cdfs-" + userName;
-		new File(this.storageLocation).mkdirs();
-		loadMetaData();
+		this.logDirectory = new File(this.storageLocation, LOG_DIRECTORY);
+		this.logDirectory.mkdirs();
+
+		final boolean migrated = loadMetaData();
+
+		// An old log is left over if the name node stopped during a snapshot
+		final File oldEditsFile = EditLog.getOldEditsFile(this.logDirectory);
+		final boolean snapshotIncomplete = oldEditsFile.exists();
+		EditLog.replay(oldEditsFile, this.metaData);
+		final long validLength = EditLog.replay(EditLog.getEditsFile(this.logDirectory), this.metaData);
+		this.editLog = new EditLog(this.logDirectory, validLength);
 
-		this.fileAccessList = new FileAccessList(this);
+		if (migrated || snapshotIncomplete) {
+			saveSnapshot();
+		}
+		if (migrated) {
+			deleteLegacyMetaData();
+		}
+
+		final long halfLife = conf.getLong(ConfigConstants.NAMENODE_POPULARITY_HALF_LIFE_KEY,
+			ConfigConstants.DEFAULT_NAMENODE_POPULARITY_HALF_LIFE);
+		if (halfLife < 1L) {
+			throw new IllegalStateException(ConfigConstants.NAMENODE_POPULARITY_HALF_LIFE_KEY + " must be at least 1");
+		}
+		this.fileAccessList = new FileAccessList(this, halfLife);
+		this.evictionPolicy = EvictionPolicies.forName(conf.get(ConfigConstants.NAMENODE_EVICTION_POLICY_KEY,
+			ConfigConstants.DEFAULT_NAMENODE_EVICTION_POLICY), this.fileAccessList);
+		this.evictAllOrNothing = conf.getBoolean(ConfigConstants.NAMENODE_EVICTION_ALL_OR_NOTHING_KEY,
+			ConfigConstants.DEFAULT_NAMENODE_EVICTION_ALL_OR_NOTHING);
+		LOG.info("Using eviction policy " + this.evictionPolicy.getName() + " (all or nothing "
+			+ (this.evictAllOrNothing ? "enabled" : "disabled") + ")");
+
+		this.snapshotter = new Snapshotter(this);
 	}
 
-	private void loadMetaData() throws IOException {
+	/**
+	 * Loads the latest snapshot or, if there is none, the meta data stored as one file per path by earlier versions.
+	 *
+	 * @return <code>true</code> if meta data of an earlier version has been loaded, <code>false</code> otherwise
+	 */
+	private boolean loadMetaData() throws IOException {
+
+		final File image = new File(this.logDirectory, IMAGE_FILENAME);
+		if (image.exists()) {
+
+			final Input input = new Input(new FileInputStream(image));
+			try {
+				final int numberOfFiles = input.readInt();
+				for (int i = 0; i < numberOfFiles; ++i) {
+					final FileMetaData fmd = this.kryo.readObject(input, FileMetaData.class);
+					this.metaData.put(fmd.getPath().toUri().getPath(), fmd);
+				}
+			} finally {
+				input.close();
+			}
 
-		final File dir = new File(this.storageLocation);
+			LOG.info("Loaded snapshot with " + this.metaData.size() + " files");
+
+			return false;
+		}
 
-		for (final File file : dir.listFiles()) {
+		boolean migrated = false;
+		for (final File file : new File(this.storageLocation).listFiles()) {
+
+			if (!file.isFile()) {
+				continue;
+			}
 
 			final Input input = new Input(new FileInputStream(file));
 			final FileMetaData fmd = this.kryo.readObject(input, FileMetaData.class);
 			input.close();
 
 			this.metaData.put(fmd.getPath().toUri().getPath(), fmd);
+			migrated = true;
+		}
+
+		if (migrated) {
+			LOG.info("Migrating meta data of " + this.metaData.size() + " files to the edit log");
+		}
+
+		return migrated;
+	}
+
+	private void deleteLegacyMetaData() {
+
+		for (final File file : new File(this.storageLocation).listFiles()) {
+			if (file.isFile() && !file.delete()) {
+				LOG.warn("Cannot delete " + file);
+			}
 		}
 	}
 
-	private void save(final FileMetaData fmd) throws IOException {
+	void snapshotIfNecessary() throws IOException {
+
+		if (this.editLog.getNumberOfEditsSinceRoll() >= this.snapshotThreshold) {
+			saveSnapshot();
+		}
+	}
+
+	/**
+	 * Rolls the edit log and writes all files to a new snapshot. Files may change while the snapshot is written, but
+	 * these changes are recorded in the new log, whose replay has no effect on changes already in the snapshot.
+	 */
+	private void saveSnapshot() throws IOException {
+
+		synchronized (this.snapshotLock) {
+
+			final List<FileMetaData> files;
+			this.createBarrier.writeLock().lock();
+			try {
+				if (!EditLog.getOldEditsFile(this.logDirectory).exists()) {
+					this.editLog.roll();
+				}
+
+				files = new ArrayList<FileMetaData>(this.metaData.values());
+			} finally {
+				this.createBarrier.writeLock().unlock();
+			}
+			final File tmpImage = new File(this.logDirectory, IMAGE_FILENAME + ".tmp");
+			final FileOutputStream fos = new FileOutputStream(tmpImage);
+			final Output output = new Output(fos);
+			try {
+				output.writeInt(files.size());
+				for (final FileMetaData fmd : files) {
+					synchronized (fmd) {
+						this.kryo.writeObject(output, fmd);
+					}
+				}
+				output.flush();
+				fos.getFD().sync();
+			} finally {
+				output.close();
+			}
 
-		final Path path = fmd.getPath();
-		final File file = new File(this.storageLocation + File.separator + path.toUri().getPath().replace("/", ""));
+			if (!tmpImage.renameTo(new File(this.logDirectory, IMAGE_FILENAME))) {
+				throw new IOException("Cannot rename " + tmpImage + " to " + IMAGE_FILENAME);
+			}
+
+			this.editLog.purgeOldEdits();
 
-		final Output output = new Output(new FileOutputStream(file));
-		this.kryo.writeObject(output, fmd);
-		output.close();
+			LOG.info("Saved snapshot with " + files.size() + " files");
+		}
 	}
 
-	synchronized FileMetaData getMetaDataByPath(final String path) {
+	FileMetaData getMetaDataByPath(final String path) {
 
 		return this.metaData.get(path);
 	}
 
 	synchronized void shutDown() {
 
+		this.snapshotter.shutDown();
+		this.editLog.close();
 		this.fileAccessList.shutDown();
 	}
 
-	synchronized boolean create(final Path path, final boolean overwrite) throws IOException {
+	boolean create(final Path path, final boolean overwrite) throws IOException {
 
 		final String key = path.toUri().getPath();
+		final FileMetaData fmd = new FileMetaData(path);
+
+		// A snapshot must not see the creation in the edit log being rolled but miss the file in the meta data
+		this.createBarrier.readLock().lock();
+		try {
+			synchronized (this.createLocks[(key.hashCode() & Integer.MAX_VALUE) % this.createLocks.length]) {
+
+				final FileMetaData oldFmd = this.metaData.get(key);
+				if (oldFmd != null) {
+					// Return with error if file already exists
+					if (!overwrite) {
+						return false;
+					}
+					// Blocks still added to the old file are logged before the new file or not at all
+					synchronized (oldFmd) {
+						this.metaData.remove(key, oldFmd);
+					}
+					synchronized (this) {
+						this.fileAccessList.remove(oldFmd);
+						this.evictionPolicy.fileRemoved(oldFmd);
+					}
+				}
 
-		FileMetaData fmd;
+				// Save meta data changes, blocks can only be added to the new file after its creation has been logged
+				this.editLog.sync(this.editLog.logCreate(path, fmd.getModificationTime()));
 
-		if (overwrite) {
-			// Delete file if it already exists
-			fmd = this.metaData.remove(key);
-			if (fmd != null) {
-				synchronized (this.hdfs) {
-					final Iterator<BlockMetaData> it = fmd.getBlockIterator();
+				// The new blocks are written to the same paths in HDFS, so the old ones must be gone before
+				if (oldFmd != null) {
+					final Iterator<BlockMetaData> it = oldFmd.getBlockIterator();
 					while (it.hasNext()) {
 						final BlockMetaData bmd = it.next();
 						this.hdfs.delete(bmd.getHdfsPath(), false);
 					}
 				}
-			}
 
-		} else {
-			// Return with error if file already exists
-			if (this.metaData.containsKey(key)) {
-				return false;
+				this.metaData.put(key, fmd);
 			}
+		} finally {
+			this.createBarrier.readLock().unlock();
 		}
 
-		// Create new meta data
-		fmd = new FileMetaData(path);
-		this.metaData.put(path.toUri().getPath(), fmd);
-
-		// Save meta data changes
-		save(fmd);
-
 		return true;
 	}
 
-	synchronized void addNewBlock(final Path cdfsPath, final Path hdfsPath, final int blockIndex,
-			final int uncompressedLength, final int compressedLength) throws IOException {
+	void addNewBlock(final Path cdfsPath, final Path hdfsPath, final int blockIndex, final int uncompressedLength,
+			final int compressedLength, final byte codec) throws IOException {
 
 		final FileMetaData fmd = this.metaData.get(cdfsPath.toUri().getPath());
-		fmd.addNewBlock(hdfsPath, blockIndex, uncompressedLength, compressedLength);
+		if (fmd == null) {
+			throw new IllegalStateException("Cannot find meta data for " + cdfsPath);
+		}
+
+		final long txId;
+		synchronized (fmd) {
+			if (this.metaData.get(cdfsPath.toUri().getPath()) != fmd) {
+				throw new IllegalStateException(cdfsPath + " has been replaced while adding block " + blockIndex);
+			}
+			fmd.addNewBlock(hdfsPath, blockIndex, uncompressedLength, compressedLength, codec);
+			txId = this.editLog.logAddBlock(cdfsPath, hdfsPath, blockIndex, uncompressedLength, compressedLength,
+				codec, fmd.getModificationTime());
+		}
 
-		// Save meta data changes
-		save(fmd);
+		// Save meta data changes, other threads' changes are written together with this one
+		this.editLog.sync(txId);
 	}
 
-	synchronized FileStatus getFileStatus(final Path path) {
+	FileStatus getFileStatus(final Path path) {
 
 		final FileMetaData fmd = this.metaData.get(path.toUri().getPath());
 		if (fmd == null) {
@@ -168,8 +372,7 @@ final class MetaDataStore {
 		return fs;
 	}
 
-	synchronized CDFSBlockLocation[] getFileBlockLocations(final Path path, final long start, final long len)
-			throws IOException {
+	CDFSBlockLocation[] getFileBlockLocations(final Path path, final long start, final long len) throws IOException {
 
 		final FileMetaData fmd = this.metaData.get(path.toUri().getPath());
 		if (fmd == null) {
@@ -182,24 +385,17 @@ final class MetaDataStore {
 		}
 
 		// Construct host priorities
+		final long now = System.currentTimeMillis();
 		final CDFSBlockLocation[] blockLocations = new CDFSBlockLocation[blocks.length];
 		for (int i = 0; i < blocks.length; ++i) {
 
-			final Path hdfsPath = this.pathConverter.convert(path, "_" + blocks[i].getIndex());
-			BlockLocation[] hdfsBlockLocations;
-			synchronized (this.hdfs) {
-				final FileStatus fileStatus = this.hdfs.getFileStatus(hdfsPath);
-				hdfsBlockLocations = this.hdfs.getFileBlockLocations(fileStatus, 0L, fileStatus.getLen());
-			}
-			if (hdfsBlockLocations == null) {
-				throw new IllegalStateException("Could not retrieve block locations for " + hdfsPath);
-			}
-
-			if (hdfsBlockLocations.length != 1) {
-				throw new IllegalStateException(hdfsPath + " spreads across " + blockLocations.length + " blocks");
+			String[] hdfsHosts = blocks[i].getHdfsHosts(now);
+			if (hdfsHosts == null) {
+				hdfsHosts = retrieveHdfsHosts(path, blocks[i].getIndex());
+				blocks[i].setHdfsHosts(hdfsHosts, now + this.hdfsHostsTTL);
 			}
 
-			final String hosts[] = blocks[i].constructHostList(hdfsBlockLocations[0].getHosts());
+			final String hosts[] = blocks[i].constructHostList(hdfsHosts);
 			final String names[] = new String[hosts.length];
 			for (int j = 0; j < hosts.length; ++j) {
 				names[j] = hosts[j] + ":" + CDFS.DATANODE_DATA_PORT;
@@ -215,7 +411,24 @@ final class MetaDataStore {
 		return blockLocations;
 	}
 
-	synchronized BlockReadInformation[] getBlockReadInformation(final Path path, final long start, final long len) {
+	private String[] retrieveHdfsHosts(final Path path, final int blockIndex) throws IOException {
+
+		final Path hdfsPath = this.pathConverter.convert(path, "_" + blockIndex);
+		final FileStatus fileStatus = this.hdfs.getFileStatus(hdfsPath);
+		final BlockLocation[] hdfsBlockLocations = this.hdfs.getFileBlockLocations(fileStatus, 0L,
+			fileStatus.getLen());
+		if (hdfsBlockLocations == null) {
+			throw new IllegalStateException("Could not retrieve block locations for " + hdfsPath);
+		}
+
+		if (hdfsBlockLocations.length != 1) {
+			throw new IllegalStateException(hdfsPath + " spreads across " + hdfsBlockLocations.length + " blocks");
+		}
+
+		return hdfsBlockLocations[0].getHosts();
+	}
+
+	BlockReadInformation[] getBlockReadInformation(final Path path, final long start, final long len) {
 
 		final FileMetaData fmd = this.metaData.get(path.toUri().getPath());
 		if (fmd == null) {
@@ -223,7 +436,10 @@ final class MetaDataStore {
 		}
 
 		// Increase access count
-		this.fileAccessList.increaseAccessCount(fmd);
+		synchronized (this) {
+			this.fileAccessList.increaseAccessCount(fmd);
+			this.evictionPolicy.fileAccessed(fmd, System.currentTimeMillis());
+		}
 
 		final BlockMetaData[] blocks = fmd.getBlockMetaData(start, len);
 		if (blocks == null) {
@@ -254,17 +470,72 @@ final class MetaDataStore {
 			throw new IllegalStateException("Cannot find meta data for " + path);
 		}
 
+		if (!fmd.isCached()) {
+			this.evictionPolicy.fileCached(fmd, System.currentTimeMillis());
+		}
 		final BlockMetaData bmd = fmd.addCachedBlock(blockIndex, host, compressed);
 
 		// Update host view
 		HostCacheData hcd = this.hostCacheData.get(host);
 		if (hcd == null) {
-			hcd = new HostCacheData(this.fileAccessList);
+			hcd = new HostCacheData();
 			this.hostCacheData.put(host, hcd);
 		}
 		hcd.add(fmd, bmd, compressed);
 	}
 
+	synchronized void replaceCachedBlocks(final List<CachedBlocks> cachedBlocks, final String host) {
+
+		// The files cached on the host before, some of which may not be cached anywhere anymore afterwards
+		final List<FileMetaData> previouslyCachedFiles = new ArrayList<FileMetaData>();
+
+		HostCacheData hcd = this.hostCacheData.get(host);
+		if (hcd == null) {
+			hcd = new HostCacheData();
+			this.hostCacheData.put(host, hcd);
+		} else {
+			previouslyCachedFiles.addAll(hcd.getCachedFiles(false));
+			previouslyCachedFiles.addAll(hcd.getCachedFiles(true));
+			hcd.clear(host);
+		}
+
+		final long now = System.currentTimeMillis();
+		int numberOfBlocks = 0;
+		final Iterator<CachedBlocks> it = cachedBlocks.iterator();
+		while (it.hasNext()) {
+
+			final CachedBlocks cb = it.next();
+			final Path path = cb.getPathWrapper().getPath();
+			final FileMetaData fmd = this.metaData.get(path.toUri().getPath());
+			if (fmd == null) {
+				LOG.warn(host + " reports cached blocks of unknown file " + path);
+				continue;
+			}
+
+			for (int i = cb.nextSetBit(0); i >= 0; i = cb.nextSetBit(i + 1)) {
+				if (i >= fmd.getNumberOfBlocks()) {
+					LOG.warn(host + " reports unknown block " + i + " of " + path);
+					break;
+				}
+				if (!fmd.isCached()) {
+					this.evictionPolicy.fileCached(fmd, now);
+				}
+				hcd.add(fmd, fmd.addCachedBlock(i, host, cb.isCompressed()), cb.isCompressed());
+				++numberOfBlocks;
+			}
+		}
+
+		final Iterator<FileMetaData> it2 = previouslyCachedFiles.iterator();
+		while (it2.hasNext()) {
+			final FileMetaData fmd = it2.next();
+			if (!fmd.isCached()) {
+				this.evictionPolicy.fileEvicted(fmd);
+			}
+		}
+
+		LOG.info("Received full cache report with " + numberOfBlocks + " blocks from " + host);
+	}
+
 	synchronized void confirmEviction(final Path path, final int blockIndex, final boolean compressed, final String host) {
 
 		final FileMetaData fmd = this.metaData.get(path.toUri().getPath());
@@ -279,9 +550,14 @@ final class MetaDataStore {
 			throw new IllegalStateException("No cache data for host " + host);
 		}
 		hcd.remove(fmd, bmd, compressed);
+
+		if (!fmd.isCached()) {
+			this.evictionPolicy.fileEvicted(fmd);
+		}
 	}
 
-	synchronized EvictionEntry getFileToEvictLIFE(final String host) {
+	synchronized EvictionEntry getBlocksToEvict(final String host, final int numberOfBuffers,
+			final List<CachedBlocks> blocksInUse) {
 
 		final String strippedHost = HostUtils.stripFQDN(host);
 
@@ -290,74 +566,72 @@ final class MetaDataStore {
 			throw new IllegalStateException("Evict: No host cache data for host " + host);
 		}
 
-		EvictionEntry ee = hcd.getLargestUncompressedIncompleteFile();
-		if (ee != null) {
-			LOG.info("LIFE: Chose to evict " + ee.getPathWrapper().getPath() + " (uncompressed, incomplete) at "
-				+ strippedHost);
-			return ee;
-		}
+		// Uncompressed copies go before compressed ones, incomplete files before complete ones if all or nothing
+		final long now = System.currentTimeMillis();
+		final int numberOfGroups = this.evictAllOrNothing ? 4 : 2;
+		for (int i = 0; i < numberOfGroups; ++i) {
 
-		ee = hcd.getLargestCompressedIncompleteFile();
-		if (ee != null) {
-			LOG.info("LIFE: Chose to evict " + ee.getPathWrapper().getPath() + " (compressed, incomplete) at "
-				+ strippedHost);
-			return ee;
-		}
+			final boolean compressed = (i % 2 == 1);
 
-		ee = hcd.getLargestUncompressedCompleteFile();
-		if (ee != null) {
-			LOG.info("LIFE: Chose to evict " + ee.getPathWrapper().getPath() + " (uncompressed, complete) at "
-				+ strippedHost);
-			return ee;
-		}
-
-		ee = hcd.getLargestCompressedCompleteFile();
-		if (ee != null) {
-			LOG.info("LIFE: Chose to evict " + ee.getPathWrapper().getPath() + " (compressed, complete) at "
-				+ strippedHost);
-			return ee;
-		}
+			final List<FileMetaData> candidates;
+			if (this.evictAllOrNothing) {
+				candidates = hcd.getCachedFiles(compressed, i >= 2);
+			} else {
+				candidates = hcd.getCachedFiles(compressed);
+			}
 
-		throw new IllegalStateException("LIFE: No file to evict from host " + strippedHost);
-	}
+			// Move on to the next file if the blocks of the chosen one are all in use
+			FileMetaData fmd = null;
+			List<BlockMetaData> cachedBlocks = null;
+			final List<Integer> blockIndices = new ArrayList<Integer>();
+			while (blockIndices.isEmpty() && !candidates.isEmpty()) {
+
+				fmd = this.evictionPolicy.chooseVictim(candidates, now);
+				candidates.remove(fmd);
+
+				// Jobs read files from the start, so the last blocks go first
+				cachedBlocks = hcd.getCachedBlocks(fmd, compressed);
+				int freedBuffers = 0;
+				for (int j = cachedBlocks.size() - 1; j >= 0 && freedBuffers < numberOfBuffers; --j) {
+					final BlockMetaData bmd = cachedBlocks.get(j);
+					if (!isInUse(blocksInUse, fmd.getPath(), bmd.getIndex(), compressed)) {
+						blockIndices.add(Integer.valueOf(bmd.getIndex()));
+						freedBuffers += bmd.getNumberOfBuffers(compressed);
+					}
+				}
+			}
+			if (blockIndices.isEmpty()) {
+				continue;
+			}
 
-	synchronized EvictionEntry getFileToEvictLFUF(final String host) {
+			LOG.info(this.evictionPolicy.getName() + ": Chose to evict " + blockIndices.size() + " of "
+				+ cachedBlocks.size() + " blocks of " + fmd.getPath() + " ("
+				+ (compressed ? "compressed" : "uncompressed") + ") at " + strippedHost);
 
-		final String strippedHost = HostUtils.stripFQDN(host);
+			final int[] indices = new int[blockIndices.size()];
+			for (int j = 0; j < indices.length; ++j) {
+				indices[j] = blockIndices.get(j).intValue();
+			}
 
-		final HostCacheData hcd = this.hostCacheData.get(host);
-		if (hcd == null) {
-			throw new IllegalStateException("Evict: No host cache data for host " + host);
+			return new EvictionEntry(fmd.getPath(), indices, compressed);
 		}
 
-		EvictionEntry ee = hcd.getLeastAccessedUncompressedIncompleteFile();
-		if (ee != null) {
-			LOG.info("LFU-F: Chose to evict " + ee.getPathWrapper().getPath() + " (uncompressed, incomplete) at "
-				+ strippedHost);
-			return ee;
-		}
+		LOG.info(this.evictionPolicy.getName() + ": All cached blocks at " + strippedHost + " are in use");
 
-		ee = hcd.getLeastAccessedCompressedIncompleteFile();
-		if (ee != null) {
-			LOG.info("LFU-F: Chose to evict " + ee.getPathWrapper().getPath() + " (compressed, incomplete) at "
-				+ strippedHost);
-			return ee;
-		}
+		return null;
+	}
 
-		ee = hcd.getLeastAccessedUncompressedCompleteFile();
-		if (ee != null) {
-			LOG.info("LFU-F: Chose to evict " + ee.getPathWrapper().getPath() + " (uncompressed, complete) at "
-				+ strippedHost);
-			return ee;
-		}
+	private static boolean isInUse(final List<CachedBlocks> blocksInUse, final Path path, final int blockIndex,
+			final boolean compressed) {
 
-		ee = hcd.getLeastAccessedCompressedCompleteFile();
-		if (ee != null) {
-			LOG.info("LFU-F: Chose to evict " + ee.getPathWrapper().getPath() + " (compressed, complete) at "
-				+ strippedHost);
-			return ee;
+		final Iterator<CachedBlocks> it = blocksInUse.iterator();
+		while (it.hasNext()) {
+			final CachedBlocks cb = it.next();
+			if (cb.isCompressed() == compressed && cb.get(blockIndex) && cb.getPathWrapper().getPath().equals(path)) {
+				return true;
+			}
 		}
 
-		throw new IllegalStateException("LFU-F: No file to evict from host " + strippedHost);
+		return false;
 	}
 }
@@ -24,6 +24,8 @@ import edu.berkeley.icsi.cdfs.BlockReadInformation;
 import edu.berkeley.icsi.cdfs.CDFSBlockLocation;
 import edu.berkeley.icsi.cdfs.ConnectionInfo;
 import edu.berkeley.icsi.cdfs.PopularFile;
+import edu.berkeley.icsi.cdfs.cache.CacheReport;
+import edu.berkeley.icsi.cdfs.cache.CachedBlocks;
 import edu.berkeley.icsi.cdfs.cache.EvictionEntry;
 import edu.berkeley.icsi.cdfs.conf.ConfigConstants;
 import edu.berkeley.icsi.cdfs.conf.ConfigUtils;
@@ -164,10 +166,10 @@ public class NameNode implements ClientNameNodeProtocol, DataNodeNameNodeProtoco
 	 */
 	@Override
 	public void createNewBlock(final PathWrapper cdfsPath, final PathWrapper hdfsPath, final int blockIndex,
-			final int uncompressedLength, final int compressedLength) throws IOException {
+			final int uncompressedLength, final int compressedLength, final byte codec) throws IOException {
 
 		this.metaDataStore.addNewBlock(cdfsPath.getPath(), hdfsPath.getPath(), blockIndex, uncompressedLength,
-			compressedLength);
+			compressedLength, codec);
 	}
 
 	/**
@@ -216,9 +218,46 @@ public class NameNode implements ClientNameNodeProtocol, DataNodeNameNodeProtoco
 	 * {@inheritDoc}
 	 */
 	@Override
-	public EvictionEntry getFileToEvict(final String host) throws IOException {
+	public void reportCacheUpdates(final WritableArrayList<CacheReport> cacheReports, final String host)
+			throws IOException {
+
+		final Iterator<CacheReport> it = cacheReports.iterator();
+		while (it.hasNext()) {
+
+			final CacheReport cr = it.next();
+			final Path path = cr.getPathWrapper().getPath();
+			try {
+				if (cr.isCached()) {
+					this.metaDataStore.reportCachedBlock(path, cr.getBlockIndex(), cr.isCompressed(), host);
+				} else {
+					this.metaDataStore.confirmEviction(path, cr.getBlockIndex(), cr.isCompressed(), host);
+				}
+			} catch (IllegalStateException ise) {
+				// The file may have been deleted in the meantime, this must not affect the other reports
+				LOG.warn("Ignoring cache report for block " + cr.getBlockIndex() + " of " + path + " from " + host
+					+ ": " + ise.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reportFullCache(final WritableArrayList<CachedBlocks> cachedBlocks, final String host)
+			throws IOException {
+
+		this.metaDataStore.replaceCachedBlocks(cachedBlocks, host);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public EvictionEntry getBlocksToEvict(final String host, final int numberOfBuffers,
+			final WritableArrayList<CachedBlocks> blocksInUse) throws IOException {
 
-		return this.metaDataStore.getFileToEvictLFUF(host);
+		return this.metaDataStore.getBlocksToEvict(host, numberOfBuffers, blocksInUse);
 	}
 
 	/**
@@ -0,0 +1,64 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Regularly checks whether the edit log has grown enough to compact it into a new snapshot of the meta data.
+ */
+final class Snapshotter extends Thread {
+
+	private static final Log LOG = LogFactory.getLog(Snapshotter.class);
+
+	private static final int CHECK_INTERVAL = 10000;
+
+	private final MetaDataStore metaDataStore;
+
+	private volatile boolean shutDownRequested = false;
+
+	Snapshotter(final MetaDataStore metaDataStore) {
+		super("Snapshot thread");
+
+		this.metaDataStore = metaDataStore;
+
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+
+		while (!this.shutDownRequested) {
+
+			try {
+				Thread.sleep(CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				continue;
+			}
+
+			try {
+				this.metaDataStore.snapshotIfNecessary();
+			} catch (IOException ioe) {
+				LOG.error(StringUtils.stringifyException(ioe));
+			}
+		}
+	}
+
+	void shutDown() {
+
+		this.shutDownRequested = true;
+		interrupt();
+
+		try {
+			join();
+		} catch (InterruptedException e) {
+			LOG.warn(StringUtils.stringifyException(e));
+		}
+	}
+}
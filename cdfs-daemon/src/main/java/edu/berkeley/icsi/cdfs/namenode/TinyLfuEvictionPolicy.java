@@ -0,0 +1,156 @@
+package edu.berkeley.icsi.cdfs.namenode;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Window TinyLFU. Newly cached files enter a small window ordered by recency, files pushed out of the window move on
+ * to the main region. The access frequencies of all files, cached or not, are estimated by a count-min sketch. When
+ * choosing a victim, the least recently used candidate of the window competes with the least frequently used
+ * candidate of the main region, and the window's file is only admitted to the main region if it has been read more
+ * often. This way a burst of new files cannot flush the frequently read ones.
+ */
+final class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+	private static final int SKETCH_WIDTH = 4096;
+
+	/**
+	 * The share of the cached files kept in the window in percent
+	 */
+	private static final int WINDOW_PERCENTAGE = 1;
+
+	private final CountMinSketch sketch = new CountMinSketch(SKETCH_WIDTH);
+
+	private final LinkedHashSet<Path> window = new LinkedHashSet<Path>();
+
+	private final LinkedHashSet<Path> main = new LinkedHashSet<Path>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+
+		return "W-TinyLFU";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileAccessed(final FileMetaData fmd, final long now) {
+
+		final Path path = fmd.getPath();
+		this.sketch.increment(path);
+
+		if (this.window.remove(path)) {
+			this.window.add(path);
+		} else if (this.main.remove(path)) {
+			this.main.add(path);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileCached(final FileMetaData fmd, final long now) {
+
+		final Path path = fmd.getPath();
+		if (this.window.contains(path) || this.main.contains(path)) {
+			return;
+		}
+
+		this.window.add(path);
+
+		final int maximumWindowSize = Math.max((this.window.size() + this.main.size()) * WINDOW_PERCENTAGE / 100, 1);
+		if (this.window.size() > maximumWindowSize) {
+			final Iterator<Path> it = this.window.iterator();
+			final Path oldest = it.next();
+			it.remove();
+			this.main.add(oldest);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public FileMetaData chooseVictim(final List<FileMetaData> candidates, final long now) {
+
+		final Map<Path, FileMetaData> candidateMap = new HashMap<Path, FileMetaData>();
+		for (final FileMetaData fmd : candidates) {
+
+			// Files the policy does not know about are evicted first
+			if (!this.window.contains(fmd.getPath()) && !this.main.contains(fmd.getPath())) {
+				return fmd;
+			}
+			candidateMap.put(fmd.getPath(), fmd);
+		}
+
+		// The least recently used candidate of the window
+		FileMetaData windowVictim = null;
+		Iterator<Path> it = this.window.iterator();
+		while (it.hasNext() && windowVictim == null) {
+			windowVictim = candidateMap.get(it.next());
+		}
+
+		// The least frequently used candidate of the main region, the least recently used one among equals
+		FileMetaData mainVictim = null;
+		int mainVictimFrequency = Integer.MAX_VALUE;
+		it = this.main.iterator();
+		while (it.hasNext()) {
+			final Path path = it.next();
+			final FileMetaData fmd = candidateMap.get(path);
+			if (fmd != null) {
+				final int frequency = this.sketch.estimate(path);
+				if (frequency < mainVictimFrequency) {
+					mainVictim = fmd;
+					mainVictimFrequency = frequency;
+				}
+			}
+		}
+
+		if (windowVictim == null) {
+			return mainVictim;
+		}
+
+		if (mainVictim == null) {
+			return windowVictim;
+		}
+
+		// Admit the window's file only if it is read more often than the main region's victim
+		if (this.sketch.estimate(windowVictim.getPath()) > mainVictimFrequency) {
+			return mainVictim;
+		}
+
+		return windowVictim;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileEvicted(final FileMetaData fmd) {
+
+		// The sketch keeps the file's frequency, so it competes fairly when it is cached again
+		this.window.remove(fmd.getPath());
+		this.main.remove(fmd.getPath());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void fileRemoved(final FileMetaData fmd) {
+
+		// The sketch cannot forget single files, its counts fade as other files are read
+		this.window.remove(fmd.getPath());
+		this.main.remove(fmd.getPath());
+	}
+}
@@ -6,6 +6,8 @@ import org.apache.hadoop.ipc.VersionedProtocol;
 
 import edu.berkeley.icsi.cdfs.BlockReadInformation;
 import edu.berkeley.icsi.cdfs.PopularFile;
+import edu.berkeley.icsi.cdfs.cache.CacheReport;
+import edu.berkeley.icsi.cdfs.cache.CachedBlocks;
 import edu.berkeley.icsi.cdfs.cache.EvictionEntry;
 import edu.berkeley.icsi.cdfs.statistics.ReadStatistics;
 import edu.berkeley.icsi.cdfs.utils.PathWrapper;
@@ -14,11 +16,28 @@ import edu.berkeley.icsi.cdfs.utils.WritableArrayList;
 public interface DataNodeNameNodeProtocol extends VersionedProtocol {
 
 	void createNewBlock(PathWrapper cdfsPath, PathWrapper hdfsPath, int blockIndex, int uncompressedLength,
-			int compressedLength) throws IOException;
+			int compressedLength, byte codec) throws IOException;
 
 	void reportCachedBlock(PathWrapper cdfsPath, int blockIndex, boolean compressed, String host) throws IOException;
 
-	EvictionEntry getFileToEvict(String host) throws IOException;
+	/**
+	 * Applies the given cached blocks and evictions of a data node in their order.
+	 */
+	void reportCacheUpdates(WritableArrayList<CacheReport> cacheReports, String host) throws IOException;
+
+	/**
+	 * Replaces everything the name node knows about the caches of a data node with the given blocks.
+	 */
+	void reportFullCache(WritableArrayList<CachedBlocks> cachedBlocks, String host) throws IOException;
+
+	/**
+	 * Chooses blocks cached at the given host whose eviction frees at least the given number of buffers, as far as a
+	 * single file allows. Blocks the host cannot evict at the moment because they are in use are skipped.
+	 *
+	 * @return the blocks to evict or <code>null</code> if all cached blocks are in use
+	 */
+	EvictionEntry getBlocksToEvict(String host, int numberOfBuffers, WritableArrayList<CachedBlocks> blocksInUse)
+			throws IOException;
 
 	void confirmEviction(PathWrapper cdfsPath, int blockIndex, boolean compressed, String host) throws IOException;
 
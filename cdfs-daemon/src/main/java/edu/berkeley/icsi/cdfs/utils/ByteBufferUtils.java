@@ -0,0 +1,75 @@
+package edu.berkeley.icsi.cdfs.utils;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public final class ByteBufferUtils {
+
+	/**
+	 * The size of the heap array used to stage data for off-heap buffers.
+	 */
+	public static final int STAGING_BUFFER_SIZE = 64 * 1024;
+
+	private ByteBufferUtils() {
+	}
+
+	public static void readFully(final DataInput in, final ByteBuffer dst, final int offset, final int len,
+			final byte[] stagingBuffer) throws IOException {
+
+		if (dst.hasArray()) {
+			in.readFully(dst.array(), dst.arrayOffset() + offset, len);
+			return;
+		}
+
+		final ByteBuffer view = dst.duplicate();
+		view.limit(offset + len);
+		view.position(offset);
+		while (view.hasRemaining()) {
+			final int chunk = Math.min(stagingBuffer.length, view.remaining());
+			in.readFully(stagingBuffer, 0, chunk);
+			view.put(stagingBuffer, 0, chunk);
+		}
+	}
+
+	public static void write(final OutputStream out, final ByteBuffer src, final int offset, final int len,
+			final byte[] stagingBuffer) throws IOException {
+
+		if (src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + offset, len);
+			return;
+		}
+
+		final ByteBuffer view = src.duplicate();
+		view.limit(offset + len);
+		view.position(offset);
+		while (view.hasRemaining()) {
+			final int chunk = Math.min(stagingBuffer.length, view.remaining());
+			view.get(stagingBuffer, 0, chunk);
+			out.write(stagingBuffer, 0, chunk);
+		}
+	}
+
+	public static int crc32(final ByteBuffer src, final int offset, final int len, final byte[] stagingBuffer) {
+
+		final CRC32 crc = new CRC32();
+
+		if (src.hasArray()) {
+			crc.update(src.array(), src.arrayOffset() + offset, len);
+			return (int) crc.getValue();
+		}
+
+		final ByteBuffer view = src.duplicate();
+		view.limit(offset + len);
+		view.position(offset);
+		while (view.hasRemaining()) {
+			final int chunk = Math.min(stagingBuffer.length, view.remaining());
+			view.get(stagingBuffer, 0, chunk);
+			crc.update(stagingBuffer, 0, chunk);
+		}
+
+		return (int) crc.getValue();
+	}
+}